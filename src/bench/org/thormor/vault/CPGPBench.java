@@ -0,0 +1,636 @@
+package org.thormor.vault;
+
+// Measures the encrypt, decrypt, sign and verify paths in CPGPUtils
+// over a range of payload sizes, recipient counts and kinds of
+// data. Each case is warmed up, then run repeatedly for a fixed
+// time; the report shows throughput, latency percentiles and the
+// bytes allocated per operation on the measuring thread.
+//
+// Run it with "ant bench", passing options with -Dbench.args, eg:
+//
+//   ant bench -Dbench.args="--sizes=100,1m,1g --recipients=1,8"
+//
+// Options:
+//   --ops=encrypt,decrypt,decrypt-hinted,sign,verify
+//                              (decrypt-hinted remembers our session
+//                               slot between runs, as the vault does;
+//                               decrypt-pipelined is also available)
+//   --sizes=100,64k,1m,16m     (suffixes k, m and g are allowed)
+//   --recipients=1,4,16
+//   --data=json,random         (compressible or incompressible)
+//   --time=3                   (seconds to measure each case)
+//   --warmup=1                 (seconds to warm up each case)
+//   --compress=always          (or adaptive, or never)
+//   --threads=4                (deflate threads; default is 1)
+//   --engines=auto             (or any of jce,bc; see CCryptoEngine)
+//   --csv=results.csv          (also write the results here)
+//
+// Payloads are generated as they are read, so even large sizes
+// need little memory; ciphertext for the decrypt and verify cases
+// is kept in a temporary file when it is too large for memory.
+
+import org.bouncyrattle.openpgp.PGPKeyPair;
+import org.bouncyrattle.openpgp.PGPKeyRingGenerator;
+import org.bouncyrattle.openpgp.PGPPrivateKey;
+import org.bouncyrattle.openpgp.PGPPublicKey;
+import org.bouncyrattle.openpgp.PGPSecretKey;
+import org.bouncyrattle.openpgp.PGPSecretKeyRing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+public class CPGPBench
+{
+    public static void main(String args[])
+        throws Exception
+    {
+        CPGPBench bench = new CPGPBench();
+        for (String arg: args) {
+            if (!bench.parse(arg)) {
+                System.err.println("Unknown option: "+arg);
+                System.exit(1);
+            }
+        }
+        bench.run();
+    }
+
+    private boolean parse(String arg)
+    {
+        if (arg.startsWith("--ops=")) {
+            m_ops = split(arg);
+        }
+        else if (arg.startsWith("--sizes=")) {
+            m_sizes.clear();
+            for (String s: split(arg)) { m_sizes.add(parseSize(s)); }
+        }
+        else if (arg.startsWith("--recipients=")) {
+            m_recipients.clear();
+            for (String s: split(arg)) { m_recipients.add(Integer.parseInt(s)); }
+        }
+        else if (arg.startsWith("--data=")) {
+            m_data = split(arg);
+        }
+        else if (arg.startsWith("--time=")) {
+            m_time_msec = (long) (1000*Double.parseDouble(value(arg)));
+        }
+        else if (arg.startsWith("--warmup=")) {
+            m_warmup_msec = (long) (1000*Double.parseDouble(value(arg)));
+        }
+        else if (arg.startsWith("--compress=")) {
+            m_compression.setMode
+                (CCompressionPolicy.Mode.valueOf
+                 (value(arg).toUpperCase(Locale.US)));
+        }
+        else if (arg.startsWith("--threads=")) {
+            m_compression.setThreads(Integer.parseInt(value(arg)));
+        }
+        else if (arg.startsWith("--engines=")) {
+            m_engines.clear();
+            for (String s: split(arg)) {
+                m_engines.add
+                    (CCryptoEngine.Engine.valueOf(s.toUpperCase(Locale.US)));
+            }
+        }
+        else if (arg.startsWith("--csv=")) {
+            m_csv = new File(value(arg));
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
+
+    private void run()
+        throws Exception
+    {
+        setupKeys();
+
+        PrintWriter csv = null;
+        if (m_csv != null) {
+            csv = new PrintWriter(new FileWriter(m_csv));
+            csv.println
+                ("engine,op,size,recipients,data,iterations,ops_per_sec,"+
+                 "mb_per_sec,p50_ms,p90_ms,p99_ms,max_ms,alloc_per_op");
+        }
+        System.out.println
+            (String.format
+             (Locale.US,
+              "%-4s %-14s %10s %5s %-7s %8s %10s %9s %9s %9s %9s %12s",
+              "eng", "op", "size", "rcpts", "data", "ops/s", "MB/s",
+              "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc/op"));
+
+        try {
+            for (CCryptoEngine.Engine engine: m_engines) {
+                CCryptoEngine.setEngine(engine);
+                runCases(csv);
+            }
+        }
+        finally {
+            if (csv != null) { csv.close(); }
+        }
+    }
+
+    private void runCases(PrintWriter csv)
+        throws Exception
+    {
+        for (String op: m_ops) {
+            for (long size: m_sizes) {
+                for (String data: m_data) {
+                    boolean uses_recipients = !op.equals("sign") &&
+                        !op.equals("verify");
+                    List<Integer> counts = uses_recipients?
+                        m_recipients:Arrays.asList(0);
+                    for (int count: counts) {
+                        Result r = runCase(op, size, count, data);
+                        report(r, System.out, csv);
+                    }
+                }
+            }
+        }
+    }
+
+    private Result runCase(String op, long size, int nrecipients, String data)
+        throws Exception
+    {
+        Task task = makeTask(op, size, nrecipients, data);
+        try {
+            // Warm up, so the measurement sees compiled code.
+            long until = System.currentTimeMillis() + m_warmup_msec;
+            int n = 0;
+            while ((n < MIN_WARMUP) || (System.currentTimeMillis() < until)) {
+                task.run();
+                n++;
+            }
+
+            Result ret = new Result(op, size, nrecipients, data);
+            long start = System.nanoTime();
+            long alloc_start = allocatedBytes();
+            until = System.currentTimeMillis() + m_time_msec;
+            while ((ret.m_count < MIN_ITERATIONS) ||
+                   (System.currentTimeMillis() < until)) {
+                long t0 = System.nanoTime();
+                task.run();
+                ret.add(System.nanoTime() - t0);
+            }
+            long alloc_end = allocatedBytes();
+            ret.m_elapsed = System.nanoTime() - start;
+            if ((alloc_start >= 0) && (alloc_end >= 0)) {
+                ret.m_alloc = (alloc_end - alloc_start)/ret.m_count;
+            }
+            return ret;
+        }
+        finally {
+            task.cleanup();
+        }
+    }
+
+    private Task makeTask
+        (final String op, final long size, int nrecipients,
+         final String data)
+        throws IOException
+    {
+        final boolean compressible = data.equals("json");
+        final List<PGPPublicKey> recipients =
+            new ArrayList<PGPPublicKey>();
+        if (nrecipients > 0) {
+            // Our own key goes last, so decryption has to skip
+            // past all the other sessions.
+            recipients.addAll(getOtherKeys(nrecipients - 1));
+            recipients.add(m_enc_pubkey);
+        }
+
+        if (op.equals("encrypt")) {
+            return new Task() {
+                void run() throws IOException {
+                    CPGPUtils.encrypt
+                        (new PayloadInputStream(size, compressible), size,
+                         new DiscardOutputStream(), recipients,
+                         m_sign_pubkey, m_sign_privkey, "bench", new Date(), m_compression);
+                }
+            };
+        }
+        if (op.equals("sign")) {
+            return new Task() {
+                void run() throws IOException {
+                    CPGPUtils.sign
+                        (new PayloadInputStream(size, compressible), size,
+                         new DiscardOutputStream(),
+                         m_sign_pubkey, m_sign_privkey, "bench", new Date(), m_compression);
+                }
+            };
+        }
+
+        // decrypt and verify need content to work on.
+        final Stored stored = new Stored(size);
+        OutputStream out = stored.openOutput();
+        try {
+            if (op.startsWith("decrypt")) {
+                CPGPUtils.encrypt
+                    (new PayloadInputStream(size, compressible), size,
+                     out, recipients,
+                     m_sign_pubkey, m_sign_privkey, "bench", new Date(), m_compression);
+            }
+            else if (op.equals("verify")) {
+                CPGPUtils.sign
+                    (new PayloadInputStream(size, compressible), size,
+                     out, m_sign_pubkey, m_sign_privkey, "bench", new Date(), m_compression);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown op: "+op);
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (op.startsWith("decrypt")) {
+            final CSlotHints hints =
+                op.equals("decrypt-hinted")?new CSlotHints():null;
+            final ExecutorService stages =
+                op.equals("decrypt-pipelined")?CWorkers.stageExecutor():null;
+            return new Task() {
+                void run() throws IOException {
+                    InputStream in = stored.openInput();
+                    try {
+                        CPGPUtils.decrypt
+                            (in, s_discard, m_enc_privkey, m_sign_pubkey,
+                             hints, stages);
+                    }
+                    finally { in.close(); }
+                }
+                void cleanup() { stored.cleanup(); }
+            };
+        }
+        return new Task() {
+            void run() throws IOException {
+                InputStream in = stored.openInput();
+                try { CPGPUtils.verify(in, s_discard, m_sign_pubkey); }
+                finally { in.close(); }
+            }
+            void cleanup() { stored.cleanup(); }
+        };
+    }
+
+    private void setupKeys()
+        throws Exception
+    {
+        System.out.println("Generating keys...");
+        PGPKeyRingGenerator krgen =
+            CPGPUtils.generateKeyRingGenerator("bench", null, PASS);
+        PGPSecretKeyRing skr = krgen.generateSecretKeyRing();
+
+        PGPSecretKey sign_key = CPGPUtils.getSigningKey(skr);
+        m_sign_pubkey = sign_key.getPublicKey();
+        m_sign_privkey = CPGPUtils.extractPrivateKey(sign_key, PASS);
+
+        m_enc_pubkey = CPGPUtils.getEncryptionKey
+            (krgen.generatePublicKeyRing());
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSecretKey> ski = (Iterator<PGPSecretKey>) skr.getSecretKeys();
+        while (ski.hasNext()) {
+            PGPSecretKey cur = ski.next();
+            if (cur.getKeyID() == m_enc_pubkey.getKeyID()) {
+                m_enc_privkey = CPGPUtils.extractPrivateKey(cur, PASS);
+            }
+        }
+        if (m_enc_privkey == null) {
+            throw new IllegalStateException("No encryption key generated");
+        }
+    }
+
+    // Encryption keys for recipients other than ourselves, made as
+    // they are needed.
+    @SuppressWarnings("deprecation")
+    private List<PGPPublicKey> getOtherKeys(int count)
+        throws IOException
+    {
+        try {
+            if (m_other_keys.size() < count) {
+                KeyPairGenerator kpg =
+                    KeyPairGenerator.getInstance("RSA", "BR");
+                kpg.initialize(2048);
+                while (m_other_keys.size() < count) {
+                    m_other_keys.add
+                        (new PGPKeyPair
+                         (PGPPublicKey.RSA_ENCRYPT, kpg.generateKeyPair(),
+                          new Date()).getPublicKey());
+                }
+            }
+            return m_other_keys.subList(0, count);
+        }
+        catch (Exception ex) {
+            throw CUtils.insert(new IOException(), ex);
+        }
+    }
+
+    private void report(Result r, PrintStream out, PrintWriter csv)
+    {
+        Arrays.sort(r.m_samples, 0, r.m_count);
+        double secs = r.m_elapsed / 1e9;
+        double ops = r.m_count / secs;
+        double mbs = (ops * r.m_size) / (1024.0*1024.0);
+        double p50 = percentile(r, 0.50);
+        double p90 = percentile(r, 0.90);
+        double p99 = percentile(r, 0.99);
+        double max = r.m_samples[r.m_count-1] / 1e6;
+
+        out.println
+            (String.format
+             (Locale.US,
+              "%-4s %-14s %10s %5s %-7s %8.1f %10.2f %9.3f %9.3f %9.3f %9.3f %12s",
+              engineName(), r.m_op, formatSize(r.m_size),
+              (r.m_recipients > 0)?String.valueOf(r.m_recipients):"-",
+              r.m_data, ops, mbs, p50, p90, p99, max,
+              (r.m_alloc >= 0)?formatSize(r.m_alloc):"n/a"));
+        if (csv != null) {
+            csv.println
+                (String.format
+                 (Locale.US,
+                  "%s,%s,%d,%d,%s,%d,%.3f,%.3f,%.4f,%.4f,%.4f,%.4f,%d",
+                  engineName(), r.m_op, r.m_size, r.m_recipients, r.m_data, r.m_count,
+                  ops, mbs, p50, p90, p99, max, r.m_alloc));
+        }
+    }
+
+    private static String engineName()
+    { return CCryptoEngine.isUsingJCE()?"jce":"bc"; }
+
+    // in milliseconds, from sorted samples.
+    private static double percentile(Result r, double p)
+    {
+        int idx = (int) Math.ceil(p * r.m_count) - 1;
+        idx = Math.max(0, Math.min(r.m_count-1, idx));
+        return r.m_samples[idx] / 1e6;
+    }
+
+    // Bytes allocated so far by this thread, or -1 if the jvm
+    // cannot tell us.
+    private static long allocatedBytes()
+    {
+        if (s_alloc_method == null) { return -1; }
+        try {
+            Object ret = s_alloc_method.invoke
+                (ManagementFactory.getThreadMXBean(),
+                 Thread.currentThread().getId());
+            return ((Long) ret).longValue();
+        }
+        catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    private static Method findAllocMethod()
+    {
+        try {
+            Class<?> cls = Class.forName("com.sun.management.ThreadMXBean");
+            if (!cls.isInstance(ManagementFactory.getThreadMXBean())) {
+                return null;
+            }
+            return cls.getMethod("getThreadAllocatedBytes", long.class);
+        }
+        catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static List<String> split(String arg)
+    { return Arrays.asList(value(arg).split(",")); }
+
+    private static String value(String arg)
+    { return arg.substring(arg.indexOf('=')+1); }
+
+    private static long parseSize(String s)
+    {
+        s = s.trim().toLowerCase(Locale.US);
+        long mult = 1;
+        if (s.endsWith("k")) { mult = 1L<<10; }
+        else if (s.endsWith("m")) { mult = 1L<<20; }
+        else if (s.endsWith("g")) { mult = 1L<<30; }
+        if (mult != 1) { s = s.substring(0, s.length()-1); }
+        return Long.parseLong(s) * mult;
+    }
+
+    private static String formatSize(long n)
+    {
+        if ((n >= (1L<<30)) && (n % (1L<<30) == 0)) { return (n>>30)+"g"; }
+        if ((n >= (1L<<20)) && (n % (1L<<20) == 0)) { return (n>>20)+"m"; }
+        if ((n >= (1L<<10)) && (n % (1L<<10) == 0)) { return (n>>10)+"k"; }
+        return String.valueOf(n);
+    }
+
+    private abstract static class Task
+    {
+        abstract void run() throws IOException;
+        void cleanup() {}
+    }
+
+    private final static class Result
+    {
+        private Result(String op, long size, int recipients, String data)
+        {
+            m_op = op;
+            m_size = size;
+            m_recipients = recipients;
+            m_data = data;
+        }
+
+        private void add(long nanos)
+        {
+            if (m_count == m_samples.length) {
+                m_samples = Arrays.copyOf(m_samples, 2*m_count);
+            }
+            m_samples[m_count++] = nanos;
+        }
+
+        private final String m_op;
+        private final long m_size;
+        private final int m_recipients;
+        private final String m_data;
+        private long[] m_samples = new long[1024];
+        private int m_count = 0;
+        private long m_elapsed;
+        private long m_alloc = -1;
+    }
+
+    // Holds prepared ciphertext in memory, or in a temporary file
+    // when it is large.
+    private final static class Stored
+    {
+        private Stored(long size)
+            throws IOException
+        {
+            if (size > MAX_IN_MEMORY) {
+                m_file = File.createTempFile("thormor_bench", null);
+                m_file.deleteOnExit();
+            }
+            else {
+                m_file = null;
+            }
+        }
+
+        private OutputStream openOutput()
+            throws IOException
+        {
+            if (m_file != null) {
+                return new BufferedOutputStream(new FileOutputStream(m_file));
+            }
+            m_bout = new ByteArrayOutputStream();
+            return m_bout;
+        }
+
+        private InputStream openInput()
+            throws IOException
+        {
+            if (m_file != null) {
+                return new BufferedInputStream(new FileInputStream(m_file));
+            }
+            if (m_bytes == null) { m_bytes = m_bout.toByteArray(); }
+            return new ByteArrayInputStream(m_bytes);
+        }
+
+        private void cleanup()
+        {
+            if (m_file != null) { m_file.delete(); }
+            m_bout = null;
+            m_bytes = null;
+        }
+
+        private final File m_file;
+        private ByteArrayOutputStream m_bout;
+        private byte[] m_bytes;
+    }
+
+    // Generates a payload of a given size as it is read. Compressible
+    // data looks like a stream of json messages; incompressible data
+    // is random.
+    private final static class PayloadInputStream
+        extends InputStream
+    {
+        private PayloadInputStream(long size, boolean compressible)
+        {
+            m_left = size;
+            m_compressible = compressible;
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0)?-1:(b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len)
+            throws IOException
+        {
+            if (m_left <= 0) { return -1; }
+            int n = (int) Math.min(len, m_left);
+            if (m_compressible) {
+                for (int i=0; i<n; i++) {
+                    if (m_pos == m_chunk.length) { nextChunk(); }
+                    buf[off+i] = m_chunk[m_pos++];
+                }
+            }
+            else {
+                if ((off == 0) && (n == buf.length)) {
+                    m_random.nextBytes(buf);
+                }
+                else {
+                    byte[] tmp = new byte[n];
+                    m_random.nextBytes(tmp);
+                    System.arraycopy(tmp, 0, buf, off, n);
+                }
+            }
+            m_left -= n;
+            return n;
+        }
+
+        private void nextChunk()
+        {
+            m_chunk = CUtils.getBytes
+                ("{\"type\":\"text\",\"text\":\"Message number "+(m_seq++)+
+                 " from the benchmark\",\"created\":"+(1340000000000L+m_seq)+
+                 ",\"attachments\":[]}\n");
+            m_pos = 0;
+        }
+
+        private long m_left;
+        private final boolean m_compressible;
+        private final Random m_random = new Random(42);
+        private byte[] m_chunk = new byte[0];
+        private int m_pos = 0;
+        private long m_seq = 0;
+    }
+
+    private final static class DiscardOutputStream
+        extends OutputStream
+    {
+        @Override
+        public void write(int b)
+        {}
+
+        @Override
+        public void write(byte[] buf, int off, int len)
+        {}
+    }
+
+    private final static CPGPUtils.StreamFactory s_discard =
+        new CPGPUtils.StreamFactory() {
+            public OutputStream createOutputStream
+                (String filename, Date modifydate)
+            { return new DiscardOutputStream(); }
+            public void fail() {}
+        };
+
+    private List<String> m_ops =
+        Arrays.asList("encrypt", "decrypt", "decrypt-hinted", "sign", "verify");
+    private final List<Long> m_sizes =
+        new ArrayList<Long>(Arrays.asList(100L, 64L<<10, 1L<<20, 16L<<20));
+    private final List<Integer> m_recipients =
+        new ArrayList<Integer>(Arrays.asList(1, 4, 16));
+    private List<String> m_data = Arrays.asList("json", "random");
+    private long m_time_msec = 3000;
+    private long m_warmup_msec = 1000;
+    private File m_csv = null;
+    private final List<CCryptoEngine.Engine> m_engines =
+        new ArrayList<CCryptoEngine.Engine>
+        (Arrays.asList(CCryptoEngine.Engine.AUTO));
+    private final CCompressionPolicy m_compression =
+        new CCompressionPolicy().setMode(CCompressionPolicy.Mode.ALWAYS);
+
+    private final List<PGPPublicKey> m_other_keys =
+        new ArrayList<PGPPublicKey>();
+    private PGPPublicKey m_sign_pubkey;
+    private PGPPrivateKey m_sign_privkey;
+    private PGPPublicKey m_enc_pubkey;
+    private PGPPrivateKey m_enc_privkey;
+
+    private final static Method s_alloc_method = findAllocMethod();
+    private final static String PASS = "bench";
+    private final static int MIN_WARMUP = 2;
+    private final static int MIN_ITERATIONS = 5;
+    private final static long MAX_IN_MEMORY = 64L<<20;
+}
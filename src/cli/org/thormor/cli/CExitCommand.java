@@ -4,7 +4,7 @@ class CExitCommand
     implements ICommand
 {
     public void process(String args[])
-    { System.exit(0); }
+    { CMain.exit(); }
 
     public String getName()
     { return "exit"; }
@@ -2,9 +2,11 @@ package org.thormor.cli;
 
 import org.thormor.vault.CLinkedVault;
 import org.thormor.vault.CVault;
+import org.thormor.vault.CBatchResult;
 import org.thormor.provider.IProgressMonitor;
 
 import java.util.List;
+import java.util.Map;
 import java.io.IOException;
 import java.io.File;
 import java.net.URL;
@@ -22,11 +24,15 @@ class CFetchCommand
         if (recip == null) { return; }
         CVault vault = CMain.getVault();
         IProgressMonitor mon = CMain.getProgressMonitor();
-        for (CLinkedVault lv: recip) {
-            try { vault.fetchMessagesFrom(lv, mon); }
-            catch (IOException ioe) {
-                ioe.printStackTrace();
-            }
+        CBatchResult result =
+            vault.fetchMessagesFrom(recip, mon, FETCH_THREADS);
+        for (Map.Entry<CLinkedVault,Exception> failure:
+                 result.getFailures().entrySet()) {
+            CLinkedVault lv = failure.getKey();
+            System.out.println
+                ("Unable to fetch from "+
+                 ((lv.getAlias() != null)?lv.getAlias():lv.getId().toString()));
+            failure.getValue().printStackTrace();
         }
 
         // Also download any referenced files from our messages.
@@ -106,6 +112,12 @@ class CFetchCommand
         if (!target.canRead()) {
             vault.fetchContent(new URL(src), lv, target, mon);
         }
+        else {
+            vault.getCacheManager().noteAccess(target);
+        }
         return target;
     }
+
+    // number of linked vaults fetched at the same time.
+    private final static int FETCH_THREADS = 8;
 }
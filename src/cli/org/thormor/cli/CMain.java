@@ -11,6 +11,7 @@ import org.thormor.provider.remote.googlesites.CSiteInfo;
 import org.thormor.vault.CVault;
 import org.thormor.vault.CLinkedVault;
 import org.thormor.provider.IProgressMonitor;
+import org.thormor.provider.CRetryingRemoteProvider;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -33,7 +34,9 @@ public class CMain
         s_rprovider = new CGoogleSitesProvider("vault", "Thormor Vault");
 
         // Initialize the vault.
-        s_vault = new CVault(s_rprovider, s_lprovider);
+        s_vault = new CVault
+            (CRetryingRemoteProvider.wrap(s_rprovider), s_lprovider);
+        s_vault.getCacheManager().setBudget(s_cache_budget);
 
         // Check whether we need to initialize the vault.
         // sequence.
@@ -56,6 +59,18 @@ public class CMain
     { return s_monitor; }
     static Console getConsole()
     { return s_console; }
+    // Save any pending vault changes before leaving.
+    final static void exit()
+    {
+        if (s_vault.getState() == CVault.State.UNLOCKED) {
+            try { s_vault.flush(); }
+            catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+        System.exit(0);
+    }
+
     final static void dumpVaultInfo()
     {
         System.out.println("Vault Information");
@@ -339,6 +354,7 @@ public class CMain
                 ioe.printStackTrace();
             }
         }
+        exit();
     }
 
     private final static void processLine(String line)
@@ -420,6 +436,17 @@ public class CMain
             else if (curarg.startsWith("--local-dir=")) {
                 s_local_root = new File(getParam(curarg));
             }
+            else if (curarg.startsWith("--cache-mb=")) {
+                try {
+                    s_cache_budget =
+                        Long.parseLong(getParam(curarg))*1024l*1024l;
+                }
+                catch (NumberFormatException nfe) {
+                    System.out.println("Bad cache size: "+curarg);
+                    usage();
+                    System.exit(1);
+                }
+            }
 
             else {
                 System.out.println("Unknown argument: "+curarg);
@@ -451,6 +478,7 @@ public class CMain
         System.out.println("--help\tShow usage");
         System.out.println("--local-dir=<path>\tUse this directory to store configuration and downloaded messages");
         System.out.println("--progress\tShow messages about network progress");
+        System.out.println("--cache-mb=<size>\tLimit downloaded files to this many megabytes");
     }
 
     private static class Monitor
@@ -474,6 +502,7 @@ public class CMain
     }
 
     private static File s_local_root = null;
+    private static long s_cache_budget = 0;
     private static CVault s_vault;
     private static CGoogleSitesProvider s_rprovider;
     private static CHomeDirectoryProvider s_lprovider;
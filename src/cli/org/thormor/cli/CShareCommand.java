@@ -2,6 +2,7 @@ package org.thormor.cli;
 
 import org.thormor.vault.CVault;
 import org.thormor.vault.CLinkedVault;
+import org.thormor.vault.CBatchResult;
 
 import java.util.List;
 import java.util.Map;
@@ -40,7 +41,17 @@ class CShareCommand
         (List<CLinkedVault>recip, JSONObject message)
         throws IOException
     {
-        CMain.getVault().postMessage
-            (recip, message, CMain.getProgressMonitor());
+        CBatchResult result = CMain.getVault().postMessage
+            (recip, message, CMain.getProgressMonitor(), POST_THREADS);
+        for (Map.Entry<CLinkedVault,Exception> failure:
+                 result.getFailures().entrySet()) {
+            CLinkedVault lv = failure.getKey();
+            System.out.println
+                ("Unable to share with "+
+                 ((lv.getAlias() != null)?lv.getAlias():lv.getId().toString()));
+            failure.getValue().printStackTrace();
+        }
     }
+
+    private final static int POST_THREADS = 8;
 }
@@ -0,0 +1,179 @@
+package org.thormor.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * This class publishes a {@link CMetricsRegistry} as an MBean, so
+ * it can be watched with jconsole or any other JMX client.
+ *
+ * <p>Each counter appears as an attribute of the same name. Each
+ * histogram "x" appears as the attributes "x.count", "x.mean_ms",
+ * "x.p50_ms", "x.p99_ms" and "x.max_ms". The set of attributes grows
+ * as new operations are reported. The "reset" operation forgets all
+ * measurements.</p>
+ */
+
+public class CJmxExporter
+    implements DynamicMBean
+{
+    /**
+     * The name under which registries are published by default.
+     */
+    public final static String DEFAULT_NAME = "org.thormor:type=Metrics";
+
+    /**
+     * Publish a registry with the platform MBean server, under the
+     * default name.
+     *
+     * @throws IllegalStateException if it could not be published,
+     * eg: because another registry already uses the name.
+     */
+    public static CJmxExporter register(CMetricsRegistry registry)
+    { return register(registry, DEFAULT_NAME); }
+
+    /**
+     * Publish a registry with the platform MBean server.
+     *
+     * @param name is an object name, such as
+     * "org.thormor:type=Metrics,vault=alice".
+     * @throws IllegalStateException if it could not be published.
+     */
+    public static CJmxExporter register(CMetricsRegistry registry, String name)
+    {
+        CJmxExporter ret = new CJmxExporter(registry);
+        try {
+            ret.m_name = new ObjectName(name);
+            ret.m_server.registerMBean(ret, ret.m_name);
+        }
+        catch (JMException jme) {
+            throw new IllegalStateException("Unable to register "+name, jme);
+        }
+        return ret;
+    }
+
+    /**
+     * Remove the registry from the MBean server.
+     */
+    public void unregister()
+    {
+        try { m_server.unregisterMBean(m_name); }
+        catch (JMException jme) {
+            throw new IllegalStateException
+                ("Unable to unregister "+m_name, jme);
+        }
+    }
+
+    public Object getAttribute(String attribute)
+        throws AttributeNotFoundException
+    {
+        int idx = attribute.lastIndexOf('.');
+        if (idx > 0) {
+            CMetricsRegistry.Histogram h =
+                m_registry.getHistogram(attribute.substring(0, idx));
+            if (h != null) {
+                String field = attribute.substring(idx+1);
+                if (field.equals("count")) { return h.getCount(); }
+                if (field.equals("mean_ms")) { return ms(h.getMeanNanos()); }
+                if (field.equals("p50_ms")) {
+                    return ms(h.getPercentileNanos(0.5));
+                }
+                if (field.equals("p99_ms")) {
+                    return ms(h.getPercentileNanos(0.99));
+                }
+                if (field.equals("max_ms")) { return ms(h.getMaxNanos()); }
+            }
+        }
+        if (m_registry.hasCounter(attribute)) {
+            return m_registry.getCount(attribute);
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes)
+    {
+        AttributeList ret = new AttributeList();
+        for (String attribute: attributes) {
+            try { ret.add(new Attribute(attribute, getAttribute(attribute))); }
+            catch (AttributeNotFoundException ign) {}
+        }
+        return ret;
+    }
+
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException
+    { throw new AttributeNotFoundException(attribute.getName()+" is read-only"); }
+
+    public AttributeList setAttributes(AttributeList attributes)
+    { return new AttributeList(); }
+
+    public Object invoke(String action, Object[] params, String[] signature)
+        throws ReflectionException
+    {
+        if ("reset".equals(action) &&
+            ((params == null) || (params.length == 0))) {
+            m_registry.reset();
+            return null;
+        }
+        throw new ReflectionException
+            (new NoSuchMethodException(action), "Unknown operation "+action);
+    }
+
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (String name: m_registry.getCounterNames()) {
+            attrs.add(attribute(name, "java.lang.Long", "Counter"));
+        }
+        for (String name: m_registry.getHistogramNames()) {
+            attrs.add(attribute(name+".count", "java.lang.Long",
+                                "Number of operations"));
+            attrs.add(attribute(name+".mean_ms", "java.lang.Double",
+                                "Mean latency in milliseconds"));
+            attrs.add(attribute(name+".p50_ms", "java.lang.Double",
+                                "Median latency in milliseconds"));
+            attrs.add(attribute(name+".p99_ms", "java.lang.Double",
+                                "99th percentile latency in milliseconds"));
+            attrs.add(attribute(name+".max_ms", "java.lang.Double",
+                                "Largest latency in milliseconds"));
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo
+            ("reset", "Forget all measurements", new MBeanParameterInfo[0],
+             "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo
+            (getClass().getName(), "Thormor vault and provider metrics",
+             attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null,
+             new MBeanOperationInfo[] { reset }, null);
+    }
+
+    // private helpers
+    private CJmxExporter(CMetricsRegistry registry)
+    {
+        m_registry = registry;
+        m_server = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    private static MBeanAttributeInfo attribute
+        (String name, String type, String description)
+    { return new MBeanAttributeInfo(name, type, description, true, false, false); }
+
+    private static Double ms(long nanos)
+    { return nanos/1e6; }
+
+    private final CMetricsRegistry m_registry;
+    private final MBeanServer m_server;
+    private ObjectName m_name;
+}
@@ -0,0 +1,258 @@
+package org.thormor.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class holds the {@link IMetrics} that the library reports
+ * to, and has the helpers it uses to do so. No metrics are reported
+ * until one is set, and the helpers then cost very little.
+ *
+ * <p>To watch a running application, keep the measurements in a
+ * registry and publish it over JMX:</p>
+ * <pre>
+ *   CMetricsRegistry registry = new CMetricsRegistry();
+ *   CMetrics.setMetrics(registry);
+ *   CJmxExporter.register(registry);
+ * </pre>
+ *
+ * <p>The names reported are listed below. Operations are timed only
+ * when they succeed, and also report a failure when they throw.
+ * Remote providers report the requests they make; the vault reports
+ * its own operations, which include any requests, decryption and
+ * retries they need.</p>
+ */
+
+public final class CMetrics
+{
+    /** Uploads to the remote provider. */
+    public final static String PROVIDER_UPLOAD = "provider.upload";
+    /** Bytes uploaded to the remote provider. */
+    public final static String PROVIDER_UPLOAD_BYTES = "provider.upload.bytes";
+    /** Downloads from the remote provider, including opened streams. */
+    public final static String PROVIDER_DOWNLOAD = "provider.download";
+    /** Bytes downloaded from the remote provider. */
+    public final static String PROVIDER_DOWNLOAD_BYTES =
+        "provider.download.bytes";
+    /** Conditional downloads answered with no updates. */
+    public final static String PROVIDER_NOT_MODIFIED =
+        "provider.download.not_modified";
+    /** Deletes from the remote provider. */
+    public final static String PROVIDER_DELETE = "provider.delete";
+    /** Requests retried by a {@link org.thormor.provider.CRetryingRemoteProvider}. */
+    public final static String PROVIDER_RETRIES = "provider.retries";
+    /** Requests that succeeded after a retry. */
+    public final static String PROVIDER_RECOVERIES = "provider.recoveries";
+    /** Requests that ran out of retries. */
+    public final static String PROVIDER_GIVEUPS = "provider.giveups";
+
+    /** Fetches of messages from all linked vaults; ie, a polling cycle. */
+    public final static String VAULT_POLL = "vault.poll";
+    /** Fetches of messages from one linked vault. */
+    public final static String VAULT_FETCH = "vault.fetch";
+    /** Cached files that were found to be current. */
+    public final static String VAULT_CACHE_NOT_MODIFIED =
+        "vault.cache.not_modified";
+    /** Cached files that were downloaded again. */
+    public final static String VAULT_CACHE_DOWNLOADED =
+        "vault.cache.downloaded";
+    /** Messages posted to the outbox of one linked vault. */
+    public final static String VAULT_POST_MESSAGE = "vault.post_message";
+    /** Content and detached messages encrypted and uploaded. */
+    public final static String VAULT_POST_CONTENT = "vault.post_content";
+    /** Content downloaded and decrypted. */
+    public final static String VAULT_FETCH_CONTENT = "vault.fetch_content";
+
+    /** Content signed and encrypted. */
+    public final static String PGP_ENCRYPT = "pgp.encrypt";
+    /** Content decrypted and verified. */
+    public final static String PGP_DECRYPT = "pgp.decrypt";
+    /** Content signed without encryption. */
+    public final static String PGP_SIGN = "pgp.sign";
+    /** Signed content verified without decryption. */
+    public final static String PGP_VERIFY = "pgp.verify";
+    /** Session keys encrypted to a recipient's public key. */
+    public final static String RSA_ENCRYPT = "pgp.rsa.encrypt";
+    /** Session keys tried with our private key. */
+    public final static String RSA_DECRYPT = "pgp.rsa.decrypt";
+    /** Signatures made with a private key. */
+    public final static String RSA_SIGN = "pgp.rsa.sign";
+    /** Signatures checked with a public key. */
+    public final static String RSA_VERIFY = "pgp.rsa.verify";
+
+    /**
+     * Times one operation. Call {@link #stop()} when it succeeds,
+     * or {@link #failed(Throwable)} when it throws.
+     */
+    public final static class Timer
+    {
+        private Timer(String name)
+        {
+            m_name = name;
+            m_start = System.nanoTime();
+        }
+
+        /**
+         * Record the time since the timer was created.
+         */
+        public void stop()
+        { time(m_name, System.nanoTime() - m_start); }
+
+        /**
+         * Record a failure of the operation.
+         *
+         * @return the cause, so it can be rethrown.
+         */
+        public <T extends Throwable> T failed(T cause)
+        { return failure(m_name, cause); }
+
+        /**
+         * Time an operation that ends when its stream is read, such
+         * as a streamed download. The timer stops when the returned
+         * stream reaches its end or is closed, whichever is first,
+         * and records a failure if reading it throws.
+         */
+        public InputStream stopWhenDone(InputStream in)
+        {
+            if (s_metrics == null) { return in; }
+            final AtomicBoolean done = new AtomicBoolean(false);
+            return new FilterInputStream(in) {
+                @Override
+                public int read()
+                    throws IOException
+                {
+                    try {
+                        int ret = super.read();
+                        if ((ret < 0) && done.compareAndSet(false, true)) {
+                            stop();
+                        }
+                        return ret;
+                    }
+                    catch (IOException ioe) {
+                        throw fail(ioe);
+                    }
+                }
+
+                @Override
+                public int read(byte[] buf, int off, int len)
+                    throws IOException
+                {
+                    try {
+                        int ret = super.read(buf, off, len);
+                        if ((ret < 0) && done.compareAndSet(false, true)) {
+                            stop();
+                        }
+                        return ret;
+                    }
+                    catch (IOException ioe) {
+                        throw fail(ioe);
+                    }
+                }
+
+                @Override
+                public void close()
+                    throws IOException
+                {
+                    try { super.close(); }
+                    catch (IOException ioe) {
+                        throw fail(ioe);
+                    }
+                    if (done.compareAndSet(false, true)) { stop(); }
+                }
+
+                private IOException fail(IOException ioe)
+                {
+                    if (done.compareAndSet(false, true)) { failed(ioe); }
+                    return ioe;
+                }
+            };
+        }
+
+        private final String m_name;
+        private final long m_start;
+    }
+
+    /**
+     * Report measurements to this metrics. Pass null to stop
+     * reporting them.
+     */
+    public static void setMetrics(IMetrics metrics)
+    { s_metrics = metrics; }
+
+    /**
+     * @return the metrics set with setMetrics(), or null.
+     */
+    public static IMetrics getMetrics()
+    { return s_metrics; }
+
+    /**
+     * Add to a counter.
+     */
+    public static void count(String name, long delta)
+    {
+        IMetrics metrics = s_metrics;
+        if (metrics != null) { metrics.count(name, delta); }
+    }
+
+    /**
+     * Record how long an operation took.
+     */
+    public static void time(String name, long nanos)
+    {
+        IMetrics metrics = s_metrics;
+        if (metrics != null) { metrics.time(name, nanos); }
+    }
+
+    /**
+     * Record a failure.
+     *
+     * @return the cause, so it can be rethrown.
+     */
+    public static <T extends Throwable> T failure(String name, T cause)
+    {
+        IMetrics metrics = s_metrics;
+        if (metrics != null) { metrics.failure(name, cause); }
+        return cause;
+    }
+
+    /**
+     * Start timing an operation.
+     */
+    public static Timer timer(String name)
+    { return new Timer(name); }
+
+    /**
+     * @return a stream that adds the bytes read through it to a
+     * counter.
+     */
+    public static InputStream meter(InputStream in, final String name)
+    {
+        if (s_metrics == null) { return in; }
+        return new FilterInputStream(in) {
+            @Override
+            public int read()
+                throws IOException
+            {
+                int ret = super.read();
+                if (ret >= 0) { count(name, 1); }
+                return ret;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len)
+                throws IOException
+            {
+                int ret = super.read(buf, off, len);
+                if (ret > 0) { count(name, ret); }
+                return ret;
+            }
+        };
+    }
+
+    private CMetrics()
+    {}
+
+    private static volatile IMetrics s_metrics = null;
+}
@@ -0,0 +1,195 @@
+package org.thormor.metrics;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class keeps measurements in memory, as counters and latency
+ * histograms that can be read at any time.
+ *
+ * <p>A failure of an operation "x" adds to the counter
+ * "x.failures", and to a counter for the type of failure, such as
+ * "x.failures.FileNotFoundException".</p>
+ *
+ * @see CJmxExporter
+ */
+
+public class CMetricsRegistry
+    implements IMetrics
+{
+    /**
+     * A histogram of latencies. Times fall into buckets that double
+     * in size, so percentiles are accurate to within a factor of two;
+     * enough to tell a slow poll from a stalled one.
+     */
+    public final static class Histogram
+    {
+        /**
+         * @return the number of times recorded.
+         */
+        public long getCount()
+        { return m_count.get(); }
+
+        /**
+         * @return the sum of the times recorded, in nanoseconds.
+         */
+        public long getTotalNanos()
+        { return m_total.get(); }
+
+        /**
+         * @return the largest time recorded, in nanoseconds.
+         */
+        public long getMaxNanos()
+        { return m_max.get(); }
+
+        /**
+         * @return the average time, in nanoseconds.
+         */
+        public long getMeanNanos()
+        {
+            long count = getCount();
+            return (count == 0)?0:(getTotalNanos()/count);
+        }
+
+        /**
+         * @param fraction is between 0 and 1; eg: 0.99 for the 99th
+         * percentile.
+         * @return an upper bound on the time that this fraction of
+         * operations took, in nanoseconds.
+         */
+        public long getPercentileNanos(double fraction)
+        {
+            if ((fraction < 0) || (fraction > 1)) {
+                throw new IllegalArgumentException("Bad fraction: "+fraction);
+            }
+            long count = getCount();
+            if (count == 0) { return 0; }
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i=0; i<BUCKETS; i++) {
+                seen += m_buckets.get(i);
+                if ((seen >= rank) && (seen > 0)) {
+                    return Math.min(upperBound(i), getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+
+        private void record(long nanos)
+        {
+            if (nanos < 0) { nanos = 0; }
+            m_buckets.incrementAndGet(bucketFor(nanos));
+            m_count.incrementAndGet();
+            m_total.addAndGet(nanos);
+            long max;
+            while ((max = m_max.get()) < nanos) {
+                if (m_max.compareAndSet(max, nanos)) { break; }
+            }
+        }
+
+        // bucket i holds times below 2^(i+1) nanoseconds.
+        private static int bucketFor(long nanos)
+        { return Math.max(0, 63 - Long.numberOfLeadingZeros(nanos)); }
+
+        private static long upperBound(int bucket)
+        { return (bucket >= 62)?Long.MAX_VALUE:(1L << (bucket+1)); }
+
+        private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong m_count = new AtomicLong();
+        private final AtomicLong m_total = new AtomicLong();
+        private final AtomicLong m_max = new AtomicLong();
+
+        private final static int BUCKETS = 64;
+    }
+
+    public void count(String name, long delta)
+    { counter(name).addAndGet(delta); }
+
+    public void time(String name, long nanos)
+    {
+        Histogram h = m_histograms.get(name);
+        if (h == null) {
+            Histogram fresh = new Histogram();
+            h = m_histograms.putIfAbsent(name, fresh);
+            if (h == null) { h = fresh; }
+        }
+        h.record(nanos);
+    }
+
+    public void failure(String name, Throwable cause)
+    {
+        count(name+".failures", 1);
+        count(name+".failures."+typeOf(cause), 1);
+    }
+
+    /**
+     * @return the value of a counter, or zero if it was never
+     * reported.
+     */
+    public long getCount(String name)
+    {
+        AtomicLong ret = m_counters.get(name);
+        return (ret == null)?0:ret.get();
+    }
+
+    /**
+     * @return the histogram for an operation, or null if it was
+     * never timed.
+     */
+    public Histogram getHistogram(String name)
+    { return m_histograms.get(name); }
+
+    /**
+     * @return the names of all counters, in order.
+     */
+    public Set<String> getCounterNames()
+    { return new TreeSet<String>(m_counters.keySet()); }
+
+    /**
+     * @return the names of all histograms, in order.
+     */
+    public Set<String> getHistogramNames()
+    { return new TreeSet<String>(m_histograms.keySet()); }
+
+    /**
+     * Forget all measurements.
+     */
+    public void reset()
+    {
+        m_counters.clear();
+        m_histograms.clear();
+    }
+
+    // package methods
+    boolean hasCounter(String name)
+    { return m_counters.containsKey(name); }
+
+    // private helpers
+    private AtomicLong counter(String name)
+    {
+        AtomicLong ret = m_counters.get(name);
+        if (ret == null) {
+            AtomicLong fresh = new AtomicLong();
+            ret = m_counters.putIfAbsent(name, fresh);
+            if (ret == null) { ret = fresh; }
+        }
+        return ret;
+    }
+
+    // anonymous classes have no simple name.
+    private static String typeOf(Throwable cause)
+    {
+        if (cause == null) { return "unknown"; }
+        String ret = cause.getClass().getSimpleName();
+        return (ret.length() > 0)?ret:cause.getClass().getName();
+    }
+
+    private final ConcurrentMap<String,AtomicLong> m_counters =
+        new ConcurrentHashMap<String,AtomicLong>();
+    private final ConcurrentMap<String,Histogram> m_histograms =
+        new ConcurrentHashMap<String,Histogram>();
+}
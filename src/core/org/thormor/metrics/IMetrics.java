@@ -0,0 +1,37 @@
+package org.thormor.metrics;
+
+/**
+ * Implement this interface to receive measurements from the
+ * library, and install it with {@link CMetrics#setMetrics(IMetrics)}.
+ * {@link CMetricsRegistry} is an implementation that keeps them in
+ * memory, and which {@link CJmxExporter} can publish.
+ *
+ * <p>Methods are called from many threads at once, often while
+ * content is being transferred or decrypted; so they must be
+ * thread-safe, and should return quickly without blocking.</p>
+ *
+ * <p>Names are short dotted strings, such as "provider.download";
+ * see {@link CMetrics} for those reported by the library.</p>
+ */
+
+public interface IMetrics
+{
+    /**
+     * Add to a counter, such as the number of bytes downloaded.
+     */
+    public void count(String name, long delta);
+
+    /**
+     * Record how long a successful operation took.
+     *
+     * @param nanos is the elapsed time in nanoseconds.
+     */
+    public void time(String name, long nanos);
+
+    /**
+     * Record that an operation failed.
+     *
+     * @param cause is what the operation threw.
+     */
+    public void failure(String name, Throwable cause);
+}
@@ -0,0 +1,16 @@
+/**
+ * Measurements of vault and provider operations.
+ *
+ * <p>The library reports counters, latencies and failures to an
+ * {@link org.thormor.metrics.IMetrics} installed with
+ * {@link org.thormor.metrics.CMetrics#setMetrics}. Use
+ * {@link org.thormor.metrics.CMetricsRegistry} to keep them in
+ * memory, and {@link org.thormor.metrics.CJmxExporter} to watch them
+ * over JMX; or implement the interface to forward them to your own
+ * monitoring system.</p>
+ * <p>Please also refer to the
+ * <a href="https://github.com/kbsriram/thormor/docs/libapi.md">Library
+ * Documentation</a> for more information.</p>
+ */
+
+package org.thormor.metrics;
@@ -0,0 +1,127 @@
+package org.thormor.provider;
+
+import org.thormor.vault.CVault;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Adapters between blocking and asynchronous remote providers.
+ *
+ * <p>Use {@link #async(IRemoteProvider, Executor)} to drive an
+ * existing provider through the asynchronous api; its requests then
+ * run on the executor. Use {@link #blocking(IAsyncRemoteProvider)}
+ * to hand an asynchronous provider to code that expects a blocking
+ * one; each request then waits for its future.</p>
+ *
+ * <p>Adapting a provider back and forth returns the original.</p>
+ */
+
+public final class CAsyncProviders
+{
+    /**
+     * @return an asynchronous view of the provider, which runs
+     * requests on the executor.
+     */
+    public static IAsyncRemoteProvider async
+        (IRemoteProvider provider, Executor executor)
+    {
+        if (provider instanceof Blocking) {
+            return ((Blocking) provider).m_delegate;
+        }
+        return new Async(provider, executor);
+    }
+
+    /**
+     * @return a blocking view of the provider, which waits for each
+     * request to complete.
+     */
+    public static IRemoteProvider blocking(IAsyncRemoteProvider provider)
+    {
+        if (provider instanceof Async) {
+            return ((Async) provider).m_delegate;
+        }
+        return new Blocking(provider);
+    }
+
+    private final static class Async
+        implements IAsyncRemoteProvider
+    {
+        private Async(IRemoteProvider delegate, Executor executor)
+        {
+            m_delegate = delegate;
+            m_executor = executor;
+        }
+
+        public CFuture<URL> upload
+            (final CUploadInfo info, final IProgressMonitor mon)
+        {
+            return CFuture.submit(m_executor, new Callable<URL>() {
+                    public URL call()
+                        throws IOException
+                    { return m_delegate.upload(info, mon); }
+                });
+        }
+
+        public CFuture<Void> delete
+            (final URL url, final IProgressMonitor mon)
+        {
+            return CFuture.submit(m_executor, new Callable<Void>() {
+                    public Void call()
+                        throws IOException
+                    {
+                        m_delegate.delete(url, mon);
+                        return null;
+                    }
+                });
+        }
+
+        public CFuture<IRemoteProvider.DownloadStatus> download
+            (final CDownloadInfo info, final IProgressMonitor mon)
+        {
+            return CFuture.submit
+                (m_executor, new Callable<IRemoteProvider.DownloadStatus>() {
+                    public IRemoteProvider.DownloadStatus call()
+                        throws IOException
+                    { return m_delegate.download(info, mon); }
+                });
+        }
+
+        public void postUnlockHook(CVault vault)
+            throws IOException
+        { m_delegate.postUnlockHook(vault); }
+
+        private final IRemoteProvider m_delegate;
+        private final Executor m_executor;
+    }
+
+    private final static class Blocking
+        implements IRemoteProvider
+    {
+        private Blocking(IAsyncRemoteProvider delegate)
+        { m_delegate = delegate; }
+
+        public URL upload(CUploadInfo info, IProgressMonitor mon)
+            throws IOException
+        { return m_delegate.upload(info, mon).await(); }
+
+        public void delete(URL url, IProgressMonitor mon)
+            throws IOException
+        { m_delegate.delete(url, mon).await(); }
+
+        public DownloadStatus download(CDownloadInfo info, IProgressMonitor mon)
+            throws IOException
+        { return m_delegate.download(info, mon).await(); }
+
+        public void postUnlockHook(CVault vault)
+            throws IOException
+        { m_delegate.postUnlockHook(vault); }
+
+        private final IAsyncRemoteProvider m_delegate;
+    }
+
+    private CAsyncProviders()
+    {}
+}
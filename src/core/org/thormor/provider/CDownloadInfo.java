@@ -11,7 +11,9 @@ import java.net.URL;
 public class  CDownloadInfo
 {
     /**
-     * @return location to download the file.
+     * @return location to download the file, or null if the content
+     * is read as a stream.
+     * @see IStreamingRemoteProvider#openDownload(CDownloadInfo, IProgressMonitor)
      */
     public File getTarget()
     { return m_target; }
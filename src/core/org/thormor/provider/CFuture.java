@@ -0,0 +1,279 @@
+package org.thormor.provider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of an operation that completes later. Besides waiting
+ * for the result as with any {@link Future}, you can register
+ * callbacks, or chain further operations with
+ * {@link #then(CFuture.Continuation)}.
+ *
+ * <p>Callbacks and continuations run on the thread that completes
+ * the future, or right away on the calling thread if it is already
+ * complete. They should not block; start another asynchronous
+ * operation instead.</p>
+ *
+ * <p>Asynchronous providers create a future, return it, and later
+ * call {@link #complete(Object)} or {@link #fail(Throwable)}.</p>
+ */
+
+public class CFuture<T>
+    implements Future<T>
+{
+    /**
+     * Implement this interface to be told when a future completes.
+     * Exactly one of the methods is called.
+     */
+    public interface Callback<T>
+    {
+        public void completed(T result);
+        public void failed(Throwable cause);
+    }
+
+    /**
+     * Implement this interface to start another operation with the
+     * result of a future.
+     *
+     * @see CFuture#then(CFuture.Continuation)
+     */
+    public interface Continuation<T,U>
+    {
+        public CFuture<U> apply(T result)
+            throws Exception;
+    }
+
+    /**
+     * @return a future that has already completed with the value.
+     */
+    public static <T> CFuture<T> completed(T value)
+    {
+        CFuture<T> ret = new CFuture<T>();
+        ret.complete(value);
+        return ret;
+    }
+
+    /**
+     * @return a future that has already failed with the cause.
+     */
+    public static <T> CFuture<T> failed(Throwable cause)
+    {
+        CFuture<T> ret = new CFuture<T>();
+        ret.fail(cause);
+        return ret;
+    }
+
+    /**
+     * Run a task on an executor, returning a future for its
+     * result. A task that is cancelled before it starts is not run.
+     */
+    public static <T> CFuture<T> submit
+        (Executor executor, final Callable<T> task)
+    {
+        final CFuture<T> ret = new CFuture<T>();
+        executor.execute(new Runnable() {
+                public void run()
+                {
+                    if (ret.isDone()) { return; }
+                    try { ret.complete(task.call()); }
+                    catch (Throwable th) { ret.fail(th); }
+                }
+            });
+        return ret;
+    }
+
+    /**
+     * Complete the future with a value.
+     *
+     * @return false if the future was already complete.
+     */
+    public boolean complete(T value)
+    { return finish(value, null, false); }
+
+    /**
+     * Complete the future with a failure.
+     *
+     * @return false if the future was already complete.
+     */
+    public boolean fail(Throwable cause)
+    {
+        if (cause == null) { throw new NullPointerException("cause"); }
+        return finish(null, cause, false);
+    }
+
+    /**
+     * Register a callback, which is called once the future
+     * completes.
+     *
+     * @return this future.
+     */
+    public CFuture<T> addCallback(Callback<? super T> callback)
+    {
+        synchronized (this) {
+            if (!m_done) {
+                m_callbacks.add(callback);
+                return this;
+            }
+        }
+        call(callback);
+        return this;
+    }
+
+    /**
+     * Start another operation once this one succeeds. If this
+     * future fails, or the continuation throws an exception, the
+     * returned future fails with the same cause.
+     *
+     * @return a future for the result of the continuation.
+     */
+    public <U> CFuture<U> then(final Continuation<? super T,U> next)
+    {
+        final CFuture<U> ret = new CFuture<U>();
+        addCallback(new Callback<T>() {
+                public void completed(T result)
+                {
+                    CFuture<U> f;
+                    try { f = next.apply(result); }
+                    catch (Throwable th) {
+                        ret.fail(th);
+                        return;
+                    }
+                    if (f == null) {
+                        ret.complete(null);
+                        return;
+                    }
+                    f.addCallback(new Callback<U>() {
+                            public void completed(U value)
+                            { ret.complete(value); }
+                            public void failed(Throwable cause)
+                            { ret.fail(cause); }
+                        });
+                }
+                public void failed(Throwable cause)
+                { ret.fail(cause); }
+            });
+        return ret;
+    }
+
+    /**
+     * Wait for the result. A failure is thrown as is if it is an
+     * IOException or a RuntimeException, and is otherwise wrapped
+     * in an IOException.
+     */
+    public T await()
+        throws IOException
+    {
+        try { return get(); }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) { throw (IOException) cause; }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) { throw (Error) cause; }
+            IOException ioe = new IOException(cause.toString());
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Cancel the future, failing it with a CancellationException.
+     * Work that has already started is not interrupted.
+     */
+    public boolean cancel(boolean interrupt)
+    { return finish(null, new CancellationException(), true); }
+
+    public synchronized boolean isCancelled()
+    { return m_cancelled; }
+
+    public synchronized boolean isDone()
+    { return m_done; }
+
+    public synchronized T get()
+        throws InterruptedException, ExecutionException
+    {
+        while (!m_done) { wait(); }
+        return result();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long until = System.nanoTime() + unit.toNanos(timeout);
+        while (!m_done) {
+            long left = until - System.nanoTime();
+            if (left <= 0) { throw new TimeoutException(); }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return result();
+    }
+
+    // private helpers
+    private boolean finish(T value, Throwable cause, boolean cancelled)
+    {
+        List<Callback<? super T>> callbacks;
+        synchronized (this) {
+            if (m_done) { return false; }
+            m_done = true;
+            m_value = value;
+            m_cause = cause;
+            m_cancelled = cancelled;
+            callbacks = m_callbacks;
+            m_callbacks = null;
+            notifyAll();
+        }
+        for (Callback<? super T> callback: callbacks) { call(callback); }
+        return true;
+    }
+
+    private void call(Callback<? super T> callback)
+    {
+        T value;
+        Throwable cause;
+        synchronized (this) {
+            value = m_value;
+            cause = m_cause;
+        }
+        try {
+            if (cause == null) { callback.completed(value); }
+            else { callback.failed(cause); }
+        }
+        catch (RuntimeException rte) {
+            s_logger.log(Level.WARNING, "Callback failed", rte);
+        }
+    }
+
+    private T result()
+        throws ExecutionException
+    {
+        if (m_cancelled) { throw new CancellationException(); }
+        if (m_cause != null) { throw new ExecutionException(m_cause); }
+        return m_value;
+    }
+
+    private boolean m_done = false;
+    private boolean m_cancelled = false;
+    private T m_value = null;
+    private Throwable m_cause = null;
+    private List<Callback<? super T>> m_callbacks =
+        new ArrayList<Callback<? super T>>();
+
+    private final static Logger s_logger =
+        Logger.getLogger(CFuture.class.getName());
+}
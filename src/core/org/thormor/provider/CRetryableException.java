@@ -0,0 +1,19 @@
+package org.thormor.provider;
+
+import java.io.IOException;
+
+/**
+ * Providers throw this exception when a request failed in a way that
+ * may well succeed if it is tried again later, such as when the
+ * server is temporarily overloaded.
+ *
+ * @see CRetryingRemoteProvider
+ */
+
+public class CRetryableException
+    extends IOException
+{
+    static final long serialVersionUID = 6518391802212541717L;
+    public CRetryableException(String s)
+    { super(s); }
+}
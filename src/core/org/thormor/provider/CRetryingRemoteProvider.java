@@ -0,0 +1,298 @@
+package org.thormor.provider;
+
+import org.thormor.metrics.CMetrics;
+import org.thormor.vault.CVault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class wraps another {@link IRemoteProvider}, and retries
+ * requests that fail with a {@link CRetryableException} or a socket
+ * timeout. It waits between attempts with an exponential backoff
+ * with full jitter: each wait is a random time between zero and a
+ * limit that doubles with every attempt, up to a maximum.
+ *
+ * <p>Only requests that can safely be repeated are retried; these
+ * are downloads, deletes, and uploads that update an existing
+ * URL. Uploads of new content, and uploads from streams, are only
+ * tried once.</p>
+ *
+ * <p>Retries also draw from a budget shared by all requests, which
+ * is refilled by a fraction of a token for every request made. When
+ * the remote service is failing broadly, this keeps retries from
+ * adding much load to it.</p>
+ */
+
+public class CRetryingRemoteProvider
+    implements IRemoteProvider
+{
+    /**
+     * Wrap a provider. If it also implements
+     * {@link IStreamingRemoteProvider}, so does the returned
+     * provider.
+     */
+    public static CRetryingRemoteProvider wrap(IRemoteProvider delegate)
+    {
+        if (delegate instanceof IStreamingRemoteProvider) {
+            return new Streaming((IStreamingRemoteProvider) delegate);
+        }
+        return new CRetryingRemoteProvider(delegate);
+    }
+
+    /**
+     * @return the provider being wrapped.
+     */
+    public IRemoteProvider getDelegate()
+    { return m_delegate; }
+
+    /**
+     * @param attempts is the most times a request is tried,
+     * including the first. The default is 4.
+     */
+    public synchronized CRetryingRemoteProvider setMaxAttempts(int attempts)
+    {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("Bad attempts: "+attempts);
+        }
+        m_max_attempts = attempts;
+        return this;
+    }
+
+    /**
+     * @param base is the limit on the first wait, in milliseconds.
+     * The default is 500.
+     * @param max is the largest limit on any wait, in milliseconds.
+     * The default is 30000.
+     */
+    public synchronized CRetryingRemoteProvider setBackoff(long base, long max)
+    {
+        if ((base < 0) || (max < base)) {
+            throw new IllegalArgumentException
+                ("Bad backoff: "+base+", "+max);
+        }
+        m_base_delay = base;
+        m_max_delay = max;
+        return this;
+    }
+
+    /**
+     * @param ratio is the fraction of a retry earned by every
+     * request. The default is 0.2, so retries are at most about a
+     * fifth of all requests.
+     * @param burst is the most retries that can be saved up, and
+     * the number available at the start. The default is 10.
+     */
+    public synchronized CRetryingRemoteProvider setRetryBudget
+        (double ratio, int burst)
+    {
+        if ((ratio < 0) || (burst < 0)) {
+            throw new IllegalArgumentException
+                ("Bad budget: "+ratio+", "+burst);
+        }
+        m_budget_ratio = ratio;
+        m_budget_max = burst;
+        m_budget = Math.min(m_budget, burst);
+        return this;
+    }
+
+    /**
+     * @return the number of retries made.
+     */
+    public long getRetries()
+    { return m_retries.get(); }
+
+    /**
+     * @return the number of requests that succeeded after at least
+     * one retry.
+     */
+    public long getRecoveries()
+    { return m_recoveries.get(); }
+
+    /**
+     * @return the number of requests that failed with a retryable
+     * error, but were not retried again because they ran out of
+     * attempts or budget.
+     */
+    public long getGiveUps()
+    { return m_giveups.get(); }
+
+    public URL upload(final CUploadInfo info, final IProgressMonitor mon)
+        throws IOException
+    {
+        Op<URL> op = new Op<URL>() {
+            URL run() throws IOException
+            { return m_delegate.upload(info, mon); }
+        };
+        // Creating new content is not idempotent.
+        if (info.getUpdateURL() == null) { return once(op); }
+        return retry(op, "upload to "+info.getUpdateURL(), mon);
+    }
+
+    public void delete(final URL url, final IProgressMonitor mon)
+        throws IOException
+    {
+        retry(new Op<Void>() {
+                Void run() throws IOException
+                {
+                    m_delegate.delete(url, mon);
+                    return null;
+                }
+            }, "delete of "+url, mon);
+    }
+
+    public DownloadStatus download
+        (final CDownloadInfo info, final IProgressMonitor mon)
+        throws IOException
+    {
+        return retry(new Op<DownloadStatus>() {
+                DownloadStatus run() throws IOException
+                { return m_delegate.download(info, mon); }
+            }, "download of "+info.getSource(), mon);
+    }
+
+    public void postUnlockHook(CVault vault)
+        throws IOException
+    { m_delegate.postUnlockHook(vault); }
+
+    // package or subclass methods
+    CRetryingRemoteProvider(IRemoteProvider delegate)
+    { m_delegate = delegate; }
+
+    abstract static class Op<T>
+    {
+        abstract T run() throws IOException;
+    }
+
+    <T> T once(Op<T> op)
+        throws IOException
+    {
+        earn();
+        return op.run();
+    }
+
+    <T> T retry(Op<T> op, String what, IProgressMonitor mon)
+        throws IOException
+    {
+        earn();
+        int attempt = 0;
+        while (true) {
+            try {
+                T ret = op.run();
+                if (attempt > 0) {
+                    m_recoveries.incrementAndGet();
+                    CMetrics.count(CMetrics.PROVIDER_RECOVERIES, 1);
+                }
+                return ret;
+            }
+            catch (IOException ioe) {
+                if (!isRetryable(ioe)) { throw ioe; }
+                attempt++;
+                if (!mayRetry(attempt)) {
+                    m_giveups.incrementAndGet();
+                    CMetrics.count(CMetrics.PROVIDER_GIVEUPS, 1);
+                    throw ioe;
+                }
+                long delay = nextDelay(attempt);
+                if (mon != null) {
+                    mon.status("Retrying "+what+" in "+delay+"ms");
+                }
+                m_retries.incrementAndGet();
+                CMetrics.count(CMetrics.PROVIDER_RETRIES, 1);
+                sleep(delay);
+            }
+        }
+    }
+
+    // private helpers
+    private static boolean isRetryable(IOException ioe)
+    {
+        return
+            (ioe instanceof CRetryableException) ||
+            (ioe instanceof SocketTimeoutException);
+    }
+
+    private synchronized void earn()
+    { m_budget = Math.min(m_budget_max, m_budget + m_budget_ratio); }
+
+    private synchronized boolean mayRetry(int attempt)
+    {
+        if (attempt >= m_max_attempts) { return false; }
+        if (m_budget < 1) { return false; }
+        m_budget -= 1;
+        return true;
+    }
+
+    private synchronized long nextDelay(int attempt)
+    {
+        long limit = m_base_delay;
+        for (int i=1; (i<attempt) && (limit < m_max_delay); i++) {
+            limit *= 2;
+        }
+        limit = Math.min(limit, m_max_delay);
+        return (long) (m_random.nextDouble() * limit);
+    }
+
+    private static void sleep(long msec)
+        throws IOException
+    {
+        try { Thread.sleep(msec); }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during retry");
+        }
+    }
+
+    private final IRemoteProvider m_delegate;
+    private final Random m_random = new Random();
+    private final AtomicLong m_retries = new AtomicLong();
+    private final AtomicLong m_recoveries = new AtomicLong();
+    private final AtomicLong m_giveups = new AtomicLong();
+    private int m_max_attempts = 4;
+    private long m_base_delay = 500;
+    private long m_max_delay = 30*1000;
+    private double m_budget_ratio = 0.2;
+    private int m_budget_max = 10;
+    private double m_budget = 10;
+
+    // Adds retries of stream opens; streamed uploads cannot be
+    // replayed, so they are only tried once.
+    private final static class Streaming
+        extends CRetryingRemoteProvider
+        implements IStreamingRemoteProvider
+    {
+        private Streaming(IStreamingRemoteProvider delegate)
+        {
+            super(delegate);
+            m_streaming = delegate;
+        }
+
+        public InputStream openDownload
+            (final CDownloadInfo info, final IProgressMonitor mon)
+            throws IOException
+        {
+            return retry(new Op<InputStream>() {
+                    InputStream run() throws IOException
+                    { return m_streaming.openDownload(info, mon); }
+                }, "download of "+info.getSource(), mon);
+        }
+
+        public URL uploadStream
+            (final CUploadInfo info, final InputStream in, final long length,
+             final IProgressMonitor mon)
+            throws IOException
+        {
+            return once(new Op<URL>() {
+                    URL run() throws IOException
+                    { return m_streaming.uploadStream(info, in, length, mon); }
+                });
+        }
+
+        private final IStreamingRemoteProvider m_streaming;
+    }
+}
@@ -12,7 +12,9 @@ import java.net.URL;
 public class  CUploadInfo
 {
     /**
-     * @return location of the file to be uploaded.
+     * @return location of the file to be uploaded, or null if the
+     * content is provided as a stream.
+     * @see IStreamingRemoteProvider#uploadStream
      */
     public File getSource()
     { return m_src; }
@@ -0,0 +1,39 @@
+package org.thormor.provider;
+
+import org.thormor.vault.CVault;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Implement this interface instead of {@link IRemoteProvider} if
+ * your cloud storage is accessed with non-blocking I/O. Each request
+ * returns at once, and completes its future when it is done. The
+ * requests have the same meaning as those in {@link IRemoteProvider}.
+ *
+ * @see CAsyncProviders
+ */
+
+public interface IAsyncRemoteProvider
+{
+    /**
+     * @see IRemoteProvider#upload(CUploadInfo, IProgressMonitor)
+     */
+    public CFuture<URL> upload(CUploadInfo info, IProgressMonitor mon);
+
+    /**
+     * @see IRemoteProvider#delete(URL, IProgressMonitor)
+     */
+    public CFuture<Void> delete(URL url, IProgressMonitor mon);
+
+    /**
+     * @see IRemoteProvider#download(CDownloadInfo, IProgressMonitor)
+     */
+    public CFuture<IRemoteProvider.DownloadStatus> download
+        (CDownloadInfo info, IProgressMonitor mon);
+
+    /**
+     * @see IRemoteProvider#postUnlockHook(CVault)
+     */
+    public void postUnlockHook(CVault vault)
+        throws IOException;
+}
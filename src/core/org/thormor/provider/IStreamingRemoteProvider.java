@@ -0,0 +1,49 @@
+package org.thormor.provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Implement this interface in addition to {@link IRemoteProvider}
+ * if your cloud storage can hand content back as a stream. The vault
+ * then processes large content as it arrives, and uploads content
+ * while it is still being encrypted, rather than first saving it to
+ * a temporary file.
+ */
+
+public interface IStreamingRemoteProvider
+    extends IRemoteProvider
+{
+    /**
+     * Open a stream to a remote file. The caller reads the stream
+     * to its end and closes it. The target in the info parameter is
+     * not used, and may be null.
+     *
+     * @param info data about file to be downloaded
+     * @param mon if not null, update with download progress.
+     * @return a stream with the content of the remote file.
+     * @see IRemoteProvider#download(CDownloadInfo, IProgressMonitor)
+     */
+    public InputStream openDownload(CDownloadInfo info, IProgressMonitor mon)
+        throws IOException;
+
+    /**
+     * Upload content from a stream to cloud storage, and update the
+     * monitor as the upload proceeds. The stream should be read to
+     * its end, but not closed. The source file in the info parameter
+     * is not used, and may be null.
+     *
+     * @param info data about the upload, and a URL to upload or to
+     * update.
+     * @param in provides the content to be uploaded.
+     * @param length is the number of bytes in the stream, or -1 if
+     * this is not known in advance.
+     * @param mon if not null, update with upload progress.
+     * @return URL to the final location of content.
+     * @see IRemoteProvider#upload(CUploadInfo, IProgressMonitor)
+     */
+    public URL uploadStream
+        (CUploadInfo info, InputStream in, long length, IProgressMonitor mon)
+        throws IOException;
+}
@@ -0,0 +1,125 @@
+package org.thormor.vault;
+
+// An output stream that hands its bytes through a bounded pipe to a
+// task on the executor, which writes them to the target. This lets the
+// work done by the target (eg: encryption) overlap with the work
+// done by the writer.
+//
+// The executor must start the task without waiting for others to
+// finish (see CWorkers.stageExecutor().)
+//
+// close() waits for the task to finish and reports any failure,
+// but does not close the target. A writer that gives up must call
+// abort() instead, so the task is released.
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+final class CAsyncOutputStream
+    extends OutputStream
+{
+    CAsyncOutputStream(final OutputStream target, ExecutorService executor)
+    {
+        m_pipe = new CPipe(CHUNK_SIZE, CHUNK_COUNT);
+        m_out = m_pipe.getOutputStream();
+        m_task = executor.submit
+            (new Runnable() {
+                public void run()
+                {
+                    InputStream in = m_pipe.getInputStream();
+                    try {
+                        CUtils.copy(in, target);
+                        target.flush();
+                    }
+                    catch (Throwable th) {
+                        setFailure(th);
+                    }
+                    finally {
+                        // unblocks the writer if we stopped early.
+                        try { in.close(); } catch (IOException ign) {}
+                    }
+                }
+            });
+    }
+
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+        try { m_out.write(b); }
+        catch (IOException ioe) { throw check(ioe); }
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len)
+        throws IOException
+    {
+        try { m_out.write(buf, off, len); }
+        catch (IOException ioe) { throw check(ioe); }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (m_closed) { return; }
+        m_closed = true;
+        try { m_out.close(); }
+        catch (IOException ioe) { throw check(ioe); }
+        join();
+        Throwable failure = getFailure();
+        if (failure != null) {
+            throw CUtils.insert(new IOException("Async write failed"), failure);
+        }
+    }
+
+    void abort(Throwable cause)
+    {
+        if (m_closed) { return; }
+        m_closed = true;
+        m_pipe.fail(cause);
+        try { join(); }
+        catch (IOException ign) {}
+    }
+
+    private void join()
+        throws IOException
+    {
+        try { m_task.get(); }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException();
+        }
+        catch (ExecutionException ee) {
+            setFailure(ee.getCause());
+        }
+    }
+
+    // prefer the failure on the writing task, if any, as it is
+    // usually why the pipe was closed.
+    private IOException check(IOException ioe)
+    {
+        Throwable failure = getFailure();
+        if (failure == null) { return ioe; }
+        return CUtils.insert(new IOException("Async write failed"), failure);
+    }
+
+    private synchronized void setFailure(Throwable th)
+    { if (m_failure == null) { m_failure = th; } }
+
+    private synchronized Throwable getFailure()
+    { return m_failure; }
+
+    private final CPipe m_pipe;
+    private final OutputStream m_out;
+    private final Future<?> m_task;
+    private boolean m_closed = false;
+    private Throwable m_failure = null;
+
+    private final static int CHUNK_SIZE = 1<<16;
+    private final static int CHUNK_COUNT = 16;
+}
@@ -0,0 +1,53 @@
+package org.thormor.vault;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/**
+ * This class is used to report the outcome of an operation that
+ * was applied to several linked vaults at once. Every linked vault
+ * is either listed as completed, or is mapped to the exception
+ * that stopped the operation for that vault.
+ *
+ * @see CVault#fetchMessages(org.thormor.provider.IProgressMonitor, int)
+ * @see CVault#postMessage(List, org.json2012.JSONObject, org.thormor.provider.IProgressMonitor, int)
+ */
+
+public class CBatchResult
+{
+    /**
+     * @return the linked vaults for which the operation completed.
+     */
+    public synchronized List<CLinkedVault> getCompleted()
+    { return new ArrayList<CLinkedVault>(m_completed); }
+
+    /**
+     * @return the exceptions raised for each linked vault where the
+     * operation failed.
+     */
+    public synchronized Map<CLinkedVault,Exception> getFailures()
+    { return new LinkedHashMap<CLinkedVault,Exception>(m_failures); }
+
+    /**
+     * @return true if the operation failed for any linked vault.
+     */
+    public synchronized boolean hasFailures()
+    { return (m_failures.size() > 0); }
+
+    // package methods
+    CBatchResult()
+    {}
+
+    synchronized void addCompleted(CLinkedVault lv)
+    { m_completed.add(lv); }
+
+    synchronized void addFailure(CLinkedVault lv, Exception ex)
+    { m_failures.put(lv, ex); }
+
+    private final List<CLinkedVault> m_completed =
+        new ArrayList<CLinkedVault>();
+    private final Map<CLinkedVault,Exception> m_failures =
+        new LinkedHashMap<CLinkedVault,Exception>();
+}
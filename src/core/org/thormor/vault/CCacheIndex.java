@@ -0,0 +1,445 @@
+package org.thormor.vault;
+
+// Metadata for every url in the local download cache, kept in a
+// single append-only log of json lines under the cache root. Each
+// line records the latest etag, timestamp, size and access time of
+// one cached file, or that it was removed; later lines win. A torn
+// last line from a crash is ignored, and the log is rewritten to a
+// temporary file and renamed into place when it holds too many
+// stale lines.
+//
+// Cached files are fanned out into subdirectories named by the
+// first two hex digits of their key, so no directory grows too
+// large. Files kept elsewhere, such as attachments under an inbox,
+// may also be tracked with their path so they can be evicted.
+
+import org.json2012.JSONObject;
+import org.json2012.JSONException;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class CCacheIndex
+{
+    final static class Entry
+    {
+        String getEtag()
+        { return m_etag; }
+        long getTimestamp()
+        { return m_timestamp; }
+        long getSize()
+        { return m_size; }
+        long getLastAccess()
+        { return m_access; }
+        long getAccessCount()
+        { return m_count; }
+        // null for files in the download cache.
+        String getPath()
+        { return m_path; }
+
+        private Entry
+            (String etag, long timestamp, long size, long access,
+             long count, String path)
+        {
+            m_etag = etag;
+            m_timestamp = timestamp;
+            m_size = size;
+            m_access = access;
+            m_logged = access;
+            m_count = count;
+            m_path = path;
+        }
+
+        private Entry copy()
+        {
+            return new Entry
+                (m_etag, m_timestamp, m_size, m_access, m_count, m_path);
+        }
+
+        private final String m_etag;
+        private final long m_timestamp;
+        private final long m_size;
+        private final String m_path;
+        private long m_access;
+        private long m_logged;
+        private long m_count;
+    }
+
+    CCacheIndex(File root)
+    {
+        m_root = root;
+        m_log = new File(root, INDEX_NAME);
+    }
+
+    // Location of the cached file for this key.
+    File getFile(String key)
+    {
+        return CUtils.makeParents
+            (new File(new File(m_root, key.substring(0, 2)), key));
+    }
+
+    File getFile(String key, Entry entry)
+    {
+        if (entry.m_path != null) { return new File(entry.m_path); }
+        return getFile(key);
+    }
+
+    // Held while the file for a key is downloaded or evicted, so
+    // neither sees the other half done. Keys share a fixed set of
+    // locks.
+    ReentrantLock getLock(String key)
+    { return m_locks[(key.hashCode() & 0x7fffffff) % m_locks.length]; }
+
+    // Metadata for this key, or null. Also notes the access.
+    Entry get(String key)
+        throws IOException
+    {
+        m_index_lock.lock();
+        try {
+            Entry ret = getEntries().get(key);
+            if (ret == null) { return null; }
+            touch(key, ret);
+            return ret;
+        }
+        finally { m_index_lock.unlock(); }
+    }
+
+    // Note an access to a tracked file, returning false if it is
+    // not tracked.
+    boolean touch(String key)
+        throws IOException
+    {
+        m_index_lock.lock();
+        try {
+            Entry entry = getEntries().get(key);
+            if (entry == null) { return false; }
+            touch(key, entry);
+            return true;
+        }
+        finally { m_index_lock.unlock(); }
+    }
+
+    void put(String key, String etag, long timestamp, long size)
+        throws IOException
+    {
+        m_index_lock.lock();
+        try {
+            Entry prev = getEntries().get(key);
+            if ((prev != null) &&
+                (prev.m_timestamp == timestamp) &&
+                (prev.m_size == size) &&
+                ((etag == null)?
+                 (prev.m_etag == null):etag.equals(prev.m_etag))) {
+                return;
+            }
+            add(key, new Entry
+                (etag, timestamp, size, System.currentTimeMillis(),
+                 (prev == null)?1:prev.m_count, null));
+        }
+        finally { m_index_lock.unlock(); }
+    }
+
+    // Track a file outside the download cache.
+    void putFile(String key, File file)
+        throws IOException
+    {
+        m_index_lock.lock();
+        try {
+            Entry prev = getEntries().get(key);
+            add(key, new Entry
+                (null, -1, file.length(), System.currentTimeMillis(),
+                 (prev == null)?1:prev.m_count+1, file.getPath()));
+        }
+        finally { m_index_lock.unlock(); }
+    }
+
+    void remove(String key)
+        throws IOException
+    {
+        m_index_lock.lock();
+        try {
+            Entry prev = getEntries().remove(key);
+            if (prev == null) { return; }
+            m_total -= Math.max(0, prev.m_size);
+            append(key, null);
+        }
+        finally { m_index_lock.unlock(); }
+    }
+
+    // Remove an entry, unless it has been used or replaced since
+    // the snapshot was taken.
+    boolean removeIfUnused(String key, Entry snapshot)
+        throws IOException
+    {
+        m_index_lock.lock();
+        try {
+            Entry cur = getEntries().get(key);
+            if ((cur == null) ||
+                (cur.m_access != snapshot.m_access) ||
+                (cur.m_size != snapshot.m_size)) {
+                return false;
+            }
+            remove(key);
+            return true;
+        }
+        finally { m_index_lock.unlock(); }
+    }
+
+    // A copy of all current entries.
+    Map<String,Entry> snapshot()
+        throws IOException
+    {
+        m_index_lock.lock();
+        try {
+            Map<String,Entry> ret = new HashMap<String,Entry>();
+            for (Map.Entry<String,Entry> cur: getEntries().entrySet()) {
+                ret.put(cur.getKey(), cur.getValue().copy());
+            }
+            return ret;
+        }
+        finally { m_index_lock.unlock(); }
+    }
+
+    // Bytes held by all tracked files.
+    long getTotalSize()
+        throws IOException
+    {
+        m_index_lock.lock();
+        try {
+            getEntries();
+            return m_total;
+        }
+        finally { m_index_lock.unlock(); }
+    }
+
+    private void add(String key, Entry entry)
+        throws IOException
+    {
+        Entry prev = m_entries.put(key, entry);
+        if (prev != null) { m_total -= Math.max(0, prev.m_size); }
+        m_total += Math.max(0, entry.m_size);
+        append(key, entry);
+    }
+
+    // Access times and counts are only logged at a coarse
+    // granularity, so that reads rarely cost a write.
+    private void touch(String key, Entry entry)
+        throws IOException
+    {
+        long now = System.currentTimeMillis();
+        entry.m_access = now;
+        entry.m_count++;
+        if (now - entry.m_logged > ACCESS_GRANULARITY_MSEC) {
+            entry.m_logged = now;
+            append(key, entry);
+        }
+    }
+
+    private Map<String,Entry> getEntries()
+        throws IOException
+    {
+        if (m_entries != null) { return m_entries; }
+
+        m_entries = new HashMap<String,Entry>();
+        m_lines = 0;
+        m_total = 0;
+        if (m_log.canRead()) {
+            BufferedReader br = null;
+            try {
+                br = new BufferedReader(new FileReader(m_log));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    m_lines++;
+                    m_torn = !readLine(line);
+                }
+            }
+            finally {
+                if (br != null) { br.close(); }
+            }
+        }
+        else if (migrateMetaFiles()) {
+            compact();
+        }
+        for (Entry entry: m_entries.values()) {
+            m_total += Math.max(0, entry.m_size);
+        }
+        maybeCompact();
+        return m_entries;
+    }
+
+    // apply one line from the log, returning false if it could not
+    // be parsed.
+    private boolean readLine(String line)
+    {
+        JSONObject js;
+        try { js = new JSONObject(line); }
+        catch (JSONException jse) { return false; }
+
+        String key = js.optString("k", null);
+        if ((key == null) || (key.length() < 2)) { return false; }
+        if (js.has("d")) {
+            m_entries.remove(key);
+        }
+        else {
+            m_entries.put
+                (key, new Entry
+                 (js.optString("e", null), js.optLong("t", -1),
+                  js.optLong("s", -1), js.optLong("a", 0),
+                  js.optLong("n", 0), js.optString("p", null)));
+        }
+        return true;
+    }
+
+    private void append(String key, Entry entry)
+        throws IOException
+    {
+        BufferedWriter bw = null;
+        try {
+            CUtils.makeParents(m_log);
+            bw = new BufferedWriter(new FileWriter(m_log, true));
+            if (m_torn) {
+                // start afresh after a partially written line.
+                bw.write('\n');
+                m_torn = false;
+            }
+            bw.write(toLine(key, entry));
+            bw.write('\n');
+        }
+        finally {
+            if (bw != null) { bw.close(); }
+        }
+        m_lines++;
+        maybeCompact();
+    }
+
+    private void maybeCompact()
+        throws IOException
+    {
+        if (m_lines > 2*m_entries.size() + COMPACT_SLACK) { compact(); }
+    }
+
+    private void compact()
+        throws IOException
+    {
+        File tmp = new File(m_root, INDEX_NAME+".tmp");
+        BufferedWriter bw = null;
+        try {
+            CUtils.makeParents(tmp);
+            bw = new BufferedWriter(new FileWriter(tmp));
+            for (Map.Entry<String,Entry> cur: m_entries.entrySet()) {
+                bw.write(toLine(cur.getKey(), cur.getValue()));
+                bw.write('\n');
+            }
+            bw.close();
+            bw = null;
+            if (!tmp.renameTo(m_log)) {
+                m_log.delete();
+                if (!tmp.renameTo(m_log)) {
+                    throw new IOException("Unable to replace "+m_log);
+                }
+            }
+        }
+        finally {
+            if (bw != null) {
+                try { bw.close(); } catch (IOException ign) {}
+            }
+            tmp.delete();
+        }
+        m_lines = m_entries.size();
+        m_torn = false;
+    }
+
+    // Earlier versions kept a flat directory of cached files, each
+    // with a .meta file holding its etag and timestamp. Move them
+    // over, returning true if any were found.
+    //
+    // A flat file with a missing or unreadable .meta is dropped
+    // rather than migrated: without an etag or timestamp it can't be
+    // revalidated, so it would be downloaded again anyway.
+    private boolean migrateMetaFiles()
+    {
+        File[] children = m_root.listFiles();
+        if (children == null) { return false; }
+        for (File meta: children) {
+            String name = meta.getName();
+            if (!name.endsWith(".meta")) { continue; }
+            String key = name.substring(0, name.length()-5);
+            File old = new File(m_root, key);
+            try {
+                if ((key.length() >= 2) && old.canRead()) {
+                    JSONObject metajs = CUtils.readJSON(meta);
+                    File file = getFile(key);
+                    if (old.renameTo(file)) {
+                        m_entries.put
+                            (key, new Entry
+                             (metajs.optString("etag", null),
+                              metajs.optLong("timestamp", -1),
+                              file.length(), System.currentTimeMillis(),
+                              0, null));
+                    }
+                }
+            }
+            catch (IOException ign) {}
+            meta.delete();
+            old.delete();
+        }
+        for (File old: children) {
+            if (old.isFile() && FLAT_NAME.matcher(old.getName()).matches()) {
+                old.delete();
+            }
+        }
+        return (m_entries.size() > 0);
+    }
+
+    private static String toLine(String key, Entry entry)
+    {
+        JSONObject js = new JSONObject();
+        CUtils.put(js, "k", key);
+        if (entry == null) {
+            CUtils.put(js, "d", 1);
+        }
+        else {
+            if (entry.m_etag != null) { CUtils.put(js, "e", entry.m_etag); }
+            CUtils.put(js, "t", entry.m_timestamp);
+            CUtils.put(js, "s", entry.m_size);
+            CUtils.put(js, "a", entry.m_access);
+            CUtils.put(js, "n", entry.m_count);
+            if (entry.m_path != null) { CUtils.put(js, "p", entry.m_path); }
+        }
+        return js.toString();
+    }
+
+    private static ReentrantLock[] newLocks(int n)
+    {
+        ReentrantLock[] ret = new ReentrantLock[n];
+        for (int i=0; i<n; i++) { ret[i] = new ReentrantLock(); }
+        return ret;
+    }
+
+    private final File m_root;
+    private final File m_log;
+    private final ReentrantLock[] m_locks = newLocks(LOCK_STRIPES);
+    // Guards the entries and the log. It is held while the log is
+    // read or written, so it is not a monitor; a virtual thread
+    // waiting on a monitor would pin its carrier thread.
+    private final ReentrantLock m_index_lock = new ReentrantLock();
+    private Map<String,Entry> m_entries = null;
+    private int m_lines = 0;
+    private long m_total = 0;
+    private boolean m_torn = false;
+
+    private final static String INDEX_NAME = "index.log";
+    // names of cached files in the flat directory.
+    private final static Pattern FLAT_NAME = Pattern.compile("[0-9a-f]+");
+    private final static int COMPACT_SLACK = 64;
+    private final static int LOCK_STRIPES = 64;
+    private final static long ACCESS_GRANULARITY_MSEC = 60*60*1000;
+}
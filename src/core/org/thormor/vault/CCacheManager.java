@@ -0,0 +1,262 @@
+package org.thormor.vault;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps locally cached files within a byte budget. It
+ * tracks files downloaded into the cache area of the local provider,
+ * as well as content saved under the inbox of a linked vault with
+ * {@link CVault#fetchContent}. When the tracked files exceed the
+ * budget, the least recently or least frequently used files are
+ * deleted in the background until they fit again. Deleted files are
+ * downloaded again when they are next needed.
+ *
+ * By default the budget is unlimited, and nothing is evicted.
+ *
+ * @see CVault#getCacheManager()
+ */
+
+public class CCacheManager
+{
+    /**
+     * How to pick files to evict.
+     */
+    public enum Policy {
+        /** Evict the least recently used files first. */
+        LRU,
+        /** Evict the least frequently used files first. */
+        LFU
+    };
+
+    /**
+     * Set the number of bytes that cached files may use. Eviction
+     * starts right away if the cache is already over the budget.
+     *
+     * @param bytes is the budget, or zero for no limit.
+     */
+    public void setBudget(long bytes)
+    {
+        synchronized (this) { m_budget = Math.max(0, bytes); }
+        maybeEvict();
+    }
+
+    /**
+     * @return the budget in bytes, or zero if there is no limit.
+     */
+    public synchronized long getBudget()
+    { return m_budget; }
+
+    public synchronized void setPolicy(Policy policy)
+    { m_policy = policy; }
+
+    public synchronized Policy getPolicy()
+    { return m_policy; }
+
+    /**
+     * @return the bytes used by all tracked files.
+     */
+    public long getSize()
+        throws IOException
+    { return m_index.getTotalSize(); }
+
+    /**
+     * @return the number of times a cached file could be used
+     * without downloading it again.
+     */
+    public long getHits()
+    { return m_hits.get(); }
+
+    /**
+     * @return the number of times a file had to be downloaded.
+     */
+    public long getMisses()
+    { return m_misses.get(); }
+
+    /**
+     * @return the number of files evicted so far.
+     */
+    public long getEvictions()
+    { return m_evictions.get(); }
+
+    /**
+     * @return the number of bytes freed by eviction so far.
+     */
+    public long getEvictedBytes()
+    { return m_evicted_bytes.get(); }
+
+    /**
+     * Note that the application used a file saved with
+     * fetchContent, so it is less likely to be evicted.
+     *
+     * @param file is the file that was used.
+     * @return false if the file is not tracked.
+     */
+    public boolean noteAccess(File file)
+        throws IOException
+    { return m_index.touch(keyFor(file)); }
+
+    /**
+     * Evict files until the cache fits its budget, on the calling
+     * thread.
+     */
+    public void evict()
+        throws IOException
+    {
+        long budget;
+        Policy policy;
+        synchronized (this) {
+            budget = m_budget;
+            policy = m_policy;
+        }
+        if ((budget == 0) || (m_index.getTotalSize() <= budget)) { return; }
+
+        // Pick victims from a snapshot, so fetches are not held up
+        // while we sort and delete.
+        Map<String,CCacheIndex.Entry> snapshot = m_index.snapshot();
+        List<Map.Entry<String,CCacheIndex.Entry>> victims =
+            new ArrayList<Map.Entry<String,CCacheIndex.Entry>>
+            (snapshot.entrySet());
+        Collections.sort
+            (victims, (policy == Policy.LFU)?s_by_count:s_by_access);
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String,CCacheIndex.Entry> victim: victims) {
+            if (m_index.getTotalSize() <= budget) { break; }
+            CCacheIndex.Entry entry = victim.getValue();
+
+            // Leave alone files that may still be in use.
+            if (now - entry.getLastAccess() < m_min_age) { continue; }
+
+            // Don't delete a file while it is being fetched again.
+            ReentrantLock lock = m_index.getLock(victim.getKey());
+            lock.lock();
+            try {
+                if (m_index.removeIfUnused(victim.getKey(), entry)) {
+                    m_index.getFile(victim.getKey(), entry).delete();
+                    m_evictions.incrementAndGet();
+                    m_evicted_bytes.addAndGet(Math.max(0, entry.getSize()));
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // package methods
+    CCacheManager(CCacheIndex index)
+    { m_index = index; }
+
+    void setMinAge(long msec)
+    { m_min_age = msec; }
+
+    void recordHit()
+    { m_hits.incrementAndGet(); }
+
+    void recordMiss()
+    { m_misses.incrementAndGet(); }
+
+    // Start tracking a file saved outside the download cache.
+    void track(File file)
+        throws IOException
+    {
+        m_index.putFile(keyFor(file), file);
+        maybeEvict();
+    }
+
+    // Evict in the background if we are over budget. Requests made
+    // while an eviction is pending are folded into it.
+    void maybeEvict()
+    {
+        long budget;
+        synchronized (this) {
+            if ((m_budget == 0) || m_evict_pending) { return; }
+            budget = m_budget;
+        }
+        // The size may load the index from disk, so it is read
+        // outside the monitor.
+        try {
+            if (m_index.getTotalSize() <= budget) { return; }
+        }
+        catch (IOException ioe) {
+            return;
+        }
+        synchronized (this) {
+            if (m_evict_pending) { return; }
+            m_evict_pending = true;
+            if (m_evictor == null) {
+                m_evictor = Executors.newSingleThreadExecutor
+                    (CWorkers.newThreadFactory("evict"));
+            }
+        }
+        m_evictor.execute(new Runnable() {
+                public void run()
+                {
+                    synchronized (CCacheManager.this) {
+                        m_evict_pending = false;
+                    }
+                    try { evict(); }
+                    catch (IOException ioe) {
+                        s_logger.log(Level.WARNING, "Unable to evict", ioe);
+                    }
+                }
+            });
+    }
+
+    private static String keyFor(File file)
+        throws IOException
+    { return CUtils.shasum("file:"+file.getCanonicalPath()); }
+
+    private final CCacheIndex m_index;
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_evictions = new AtomicLong();
+    private final AtomicLong m_evicted_bytes = new AtomicLong();
+    private long m_budget = 0;
+    private Policy m_policy = Policy.LRU;
+    private boolean m_evict_pending = false;
+    private ExecutorService m_evictor = null;
+
+    // files used this recently are never evicted.
+    private volatile long m_min_age = 60*1000;
+
+    private final static Comparator<Map.Entry<String,CCacheIndex.Entry>>
+        s_by_access = new Comparator<Map.Entry<String,CCacheIndex.Entry>>() {
+        public int compare
+            (Map.Entry<String,CCacheIndex.Entry> a,
+             Map.Entry<String,CCacheIndex.Entry> b)
+        {
+            long x = a.getValue().getLastAccess();
+            long y = b.getValue().getLastAccess();
+            return (x < y)?-1:((x == y)?0:1);
+        }
+    };
+
+    private final static Comparator<Map.Entry<String,CCacheIndex.Entry>>
+        s_by_count = new Comparator<Map.Entry<String,CCacheIndex.Entry>>() {
+        public int compare
+            (Map.Entry<String,CCacheIndex.Entry> a,
+             Map.Entry<String,CCacheIndex.Entry> b)
+        {
+            long x = a.getValue().getAccessCount();
+            long y = b.getValue().getAccessCount();
+            if (x != y) { return (x < y)?-1:1; }
+            return s_by_access.compare(a, b);
+        }
+    };
+
+    private final static Logger s_logger =
+        Logger.getLogger(CCacheManager.class.getName());
+}
@@ -0,0 +1,416 @@
+package org.thormor.vault;
+
+import org.bouncyrattle.bcpg.BCPGOutputStream;
+import org.bouncyrattle.bcpg.CompressionAlgorithmTags;
+import org.bouncyrattle.bcpg.PacketTags;
+import org.bouncyrattle.openpgp.PGPCompressedDataGenerator;
+import org.bouncyrattle.openpgp.PGPException;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * This class decides how content is compressed before it is
+ * encrypted or signed.
+ *
+ * In the default ADAPTIVE mode, the start of the content is
+ * sampled, and the content is only compressed if the sample shrinks
+ * enough. Content that is already compressed, like images, video
+ * or archives, is then stored as is, which saves the cpu that would
+ * otherwise be spent on deflating it for no gain. Stored content can
+ * be read by every version of the library.
+ *
+ * Large content compressed with ZIP can be deflated on several
+ * threads at once, while it is also being encrypted on another; see
+ * {@link #setThreads(int)}.
+ *
+ * The policy also keeps a running count of the bytes it has seen,
+ * and the bytes they were compressed to.
+ *
+ * @see CVault#setCompressionPolicy(CCompressionPolicy)
+ */
+
+public class CCompressionPolicy
+{
+    /**
+     * When to compress.
+     */
+    public enum Mode {
+        /** Compress only if a sample of the content shrinks. */
+        ADAPTIVE,
+        /** Always compress. */
+        ALWAYS,
+        /** Never compress. */
+        NEVER
+    };
+
+    /**
+     * The compression algorithms that can be used.
+     */
+    public enum Algorithm {
+        ZIP(CompressionAlgorithmTags.ZIP),
+        ZLIB(CompressionAlgorithmTags.ZLIB),
+        BZIP2(CompressionAlgorithmTags.BZIP2);
+
+        private Algorithm(int tag)
+        { m_tag = tag; }
+        private final int m_tag;
+    };
+
+    public synchronized CCompressionPolicy setMode(Mode mode)
+    {
+        m_mode = mode;
+        return this;
+    }
+
+    public synchronized Mode getMode()
+    { return m_mode; }
+
+    /**
+     * Set the algorithm used when compressing. The default is ZIP.
+     */
+    public synchronized CCompressionPolicy setAlgorithm(Algorithm algorithm)
+    {
+        m_algorithm = algorithm;
+        return this;
+    }
+
+    public synchronized Algorithm getAlgorithm()
+    { return m_algorithm; }
+
+    /**
+     * Set the deflate level used with ZIP and ZLIB.
+     *
+     * @param level is from 1 (fastest) to 9 (smallest), or -1 for
+     * the default.
+     */
+    public synchronized CCompressionPolicy setLevel(int level)
+    {
+        if ((level != Deflater.DEFAULT_COMPRESSION) &&
+            ((level < 1) || (level > 9))) {
+            throw new IllegalArgumentException("Bad level: "+level);
+        }
+        m_level = level;
+        return this;
+    }
+
+    public synchronized int getLevel()
+    { return m_level; }
+
+    /**
+     * Set how the ADAPTIVE mode decides.
+     *
+     * @param bytes is the size of the sample taken from the start of
+     * the content. The default is 64K.
+     * @param savings is the fraction by which the sample must
+     * shrink for the content to be compressed. The default is 0.1.
+     */
+    public synchronized CCompressionPolicy setSample(int bytes, double savings)
+    {
+        if ((bytes < 1) || (savings < 0) || (savings >= 1)) {
+            throw new IllegalArgumentException
+                ("Bad sample: "+bytes+", "+savings);
+        }
+        m_sample_size = bytes;
+        m_min_savings = savings;
+        return this;
+    }
+
+    /**
+     * Set the number of threads used to deflate large content with
+     * ZIP. The default is 1, which deflates on the calling thread
+     * only.
+     *
+     * @throws UnsupportedOperationException if threads is more than
+     * 1, and the runtime cannot deflate in parallel.
+     * @see #isParallelAvailable()
+     */
+    public synchronized CCompressionPolicy setThreads(int threads)
+    {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Bad threads: "+threads);
+        }
+        if ((threads > 1) && !s_parallel_available) {
+            throw new UnsupportedOperationException
+                ("This runtime cannot deflate on several threads");
+        }
+        m_threads = threads;
+        return this;
+    }
+
+    /**
+     * @return true if the java runtime can deflate content on
+     * several threads. This needs the sync flush that Deflater has
+     * from java 7 onwards.
+     */
+    public static boolean isParallelAvailable()
+    { return s_parallel_available; }
+
+    public synchronized int getThreads()
+    { return m_threads; }
+
+    /**
+     * @return the number of times content was compressed.
+     */
+    public long getCompressedCount()
+    { return m_compressed.get(); }
+
+    /**
+     * @return the number of times content was stored as is.
+     */
+    public long getStoredCount()
+    { return m_stored.get(); }
+
+    /**
+     * @return the total bytes of content seen.
+     */
+    public long getBytesIn()
+    { return m_bytes_in.get(); }
+
+    /**
+     * @return the total bytes the content was written as, before
+     * encryption.
+     */
+    public long getBytesOut()
+    { return m_bytes_out.get(); }
+
+    /**
+     * @return the bytes written for every byte of content, or 1 if
+     * nothing has been written yet.
+     */
+    public double getRatio()
+    {
+        long in = m_bytes_in.get();
+        return (in == 0)?1.0:((double) m_bytes_out.get())/in;
+    }
+
+    // package methods
+
+    // How to write one piece of content of inlen bytes, or -1 if
+    // unknown. A null policy always compresses with ZIP on a single
+    // thread, as earlier versions did.
+    static Plan plan(CCompressionPolicy policy, InputStream in, long inlen)
+        throws IOException
+    {
+        if (policy == null) {
+            return new Plan(null, CompressionAlgorithmTags.ZIP,
+                            Deflater.DEFAULT_COMPRESSION, 1, in);
+        }
+        return policy.plan(in, inlen);
+    }
+
+    final static class Plan
+    {
+        // The content to write, which must be used in place of the
+        // original stream.
+        InputStream getInput()
+        { return m_in; }
+
+        boolean isCompressed()
+        { return (m_tag != CompressionAlgorithmTags.UNCOMPRESSED); }
+
+        // True if the content will be deflated on several threads.
+        boolean isParallel()
+        { return (m_threads > 1); }
+
+        // Start writing packets to out, returning the stream to use.
+        OutputStream open(OutputStream out, byte[] buf)
+            throws IOException, PGPException
+        {
+            m_counter = new CountingOutputStream(out);
+            if (!isCompressed()) { return m_counter; }
+            if (isParallel()) {
+                // Write the compressed packet ourselves, as the
+                // generator only deflates on one thread.
+                m_packet = new BCPGOutputStream
+                    (m_counter, PacketTags.COMPRESSED_DATA,
+                     (buf == null)?new byte[1<<16]:buf);
+                m_packet.write(m_tag);
+                m_out = new CParallelDeflater(m_packet, m_level, m_threads);
+                return m_out;
+            }
+            m_gen = new PGPCompressedDataGenerator(m_tag, m_level);
+            m_out = (buf == null)?
+                m_gen.open(m_counter):m_gen.open(m_counter, buf);
+            return m_out;
+        }
+
+        // Finish writing, without closing the stream passed to
+        // open(). payload is the size of the content written.
+        void close(long payload)
+            throws IOException
+        {
+            if (m_gen != null) {
+                m_out.close();
+                m_gen.close();
+            }
+            if (m_packet != null) {
+                m_out.close();
+                m_packet.finish();
+            }
+            m_counter.flush();
+            if (m_policy != null) {
+                m_policy.record(isCompressed(), payload, m_counter.m_count);
+            }
+        }
+
+        private Plan
+            (CCompressionPolicy policy, int tag, int level, int threads,
+             InputStream in)
+        {
+            m_policy = policy;
+            m_tag = tag;
+            m_level = level;
+            m_threads = threads;
+            m_in = in;
+        }
+
+        private final CCompressionPolicy m_policy;
+        private final int m_tag;
+        private final int m_level;
+        private final int m_threads;
+        private final InputStream m_in;
+        private CountingOutputStream m_counter = null;
+        private PGPCompressedDataGenerator m_gen = null;
+        private BCPGOutputStream m_packet = null;
+        private OutputStream m_out = null;
+    }
+
+    // private helpers
+    private Plan plan(InputStream in, long inlen)
+        throws IOException
+    {
+        Mode mode;
+        int tag, level, threads, sample_size;
+        double min_savings;
+        synchronized (this) {
+            mode = m_mode;
+            tag = m_algorithm.m_tag;
+            level = m_level;
+            threads = m_threads;
+            sample_size = m_sample_size;
+            min_savings = m_min_savings;
+        }
+
+        if (mode == Mode.NEVER) {
+            tag = CompressionAlgorithmTags.UNCOMPRESSED;
+        }
+        else if (mode == Mode.ADAPTIVE) {
+            byte[] sample = new byte[sample_size];
+            int n = readFully(in, sample);
+            in = new SequenceInputStream
+                (new ByteArrayInputStream(sample, 0, n), in);
+            if (deflatedSize(sample, n) > n*(1-min_savings)) {
+                tag = CompressionAlgorithmTags.UNCOMPRESSED;
+            }
+        }
+        // Small content isn't worth the threads.
+        if ((tag != CompressionAlgorithmTags.ZIP) ||
+            ((inlen >= 0) && (inlen < PARALLEL_MIN_SIZE))) {
+            threads = 1;
+        }
+        return new Plan(this, tag, level, threads, in);
+    }
+
+    private void record(boolean compressed, long in, long out)
+    {
+        if (compressed) { m_compressed.incrementAndGet(); }
+        else { m_stored.incrementAndGet(); }
+        m_bytes_in.addAndGet(in);
+        m_bytes_out.addAndGet(out);
+    }
+
+    private static int readFully(InputStream in, byte[] buf)
+        throws IOException
+    {
+        int n = 0;
+        int nread;
+        while ((n < buf.length) &&
+               ((nread = in.read(buf, n, buf.length - n)) > 0)) {
+            n += nread;
+        }
+        return n;
+    }
+
+    // A quick estimate of how well the sample compresses.
+    private static long deflatedSize(byte[] buf, int len)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(buf, 0, len);
+            deflater.finish();
+            byte[] out = new byte[8192];
+            while (!deflater.finished()) { deflater.deflate(out); }
+            return deflater.getTotalOut();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private final static class CountingOutputStream
+        extends FilterOutputStream
+    {
+        private CountingOutputStream(OutputStream out)
+        { super(out); }
+
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            out.write(b);
+            m_count++;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len)
+            throws IOException
+        {
+            out.write(buf, off, len);
+            m_count += len;
+        }
+
+        // The underlying stream is closed by its owner.
+        @Override
+        public void close()
+            throws IOException
+        { flush(); }
+
+        private long m_count = 0;
+    }
+
+    private Mode m_mode = Mode.ADAPTIVE;
+    private Algorithm m_algorithm = Algorithm.ZIP;
+    private int m_level = Deflater.DEFAULT_COMPRESSION;
+    private int m_sample_size = 64*1024;
+    private double m_min_savings = 0.1;
+    private int m_threads = 1;
+    private final AtomicLong m_compressed = new AtomicLong();
+    private final AtomicLong m_stored = new AtomicLong();
+    private final AtomicLong m_bytes_in = new AtomicLong();
+    private final AtomicLong m_bytes_out = new AtomicLong();
+
+    private final static long PARALLEL_MIN_SIZE = 1024*1024;
+
+    // The library builds for older runtimes, so look for
+    // Deflater.deflate(byte[], int, int, int) reflectively.
+    private static boolean checkParallel()
+    {
+        try {
+            Deflater.class.getMethod
+                ("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        }
+        catch (NoSuchMethodException nsme) {
+            return false;
+        }
+    }
+
+    private final static boolean s_parallel_available = checkParallel();
+}
@@ -0,0 +1,255 @@
+package org.thormor.vault;
+
+import org.bouncyrattle.bcpg.RSAPublicBCPGKey;
+import org.bouncyrattle.openpgp.PGPException;
+import org.bouncyrattle.openpgp.PGPPrivateKey;
+import org.bouncyrattle.openpgp.PGPPublicKey;
+import org.bouncyrattle.openpgp.operator.PGPContentSignerBuilder;
+import org.bouncyrattle.openpgp.operator.PGPContentVerifier;
+import org.bouncyrattle.openpgp.operator.PGPContentVerifierBuilder;
+import org.bouncyrattle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.bouncyrattle.openpgp.operator.PGPDataEncryptorBuilder;
+import org.bouncyrattle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.bouncyrattle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncyrattle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
+import org.bouncyrattle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncyrattle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.bouncyrattle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncyrattle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncyrattle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncyrattle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.security.Signature;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class selects the code that performs the bulk cryptography
+ * for content, messages and signatures.
+ *
+ * The JCE engine uses the ciphers, digests and signatures supplied
+ * by the java runtime, which are usually much faster on large
+ * content as the runtime can use the processor's AES and SHA
+ * instructions. The BC engine uses the portable BouncyCastle
+ * implementations. Both produce the same format.
+ *
+ * By default (AUTO), the JCE engine is used if the runtime supports
+ * AES-256, and BC otherwise. The choice applies to every vault in
+ * the application.
+ *
+ * Processor-bound work that is split up, such as deflating large
+ * content, runs on a shared pool of platform threads.
+ */
+
+public final class CCryptoEngine
+{
+    public enum Engine {
+        /** Use JCE if the runtime supports it, else BC. */
+        AUTO,
+        /** Use the ciphers supplied by the java runtime. */
+        JCE,
+        /** Use the BouncyCastle lightweight implementations. */
+        BC
+    };
+
+    /**
+     * Select the engine to use for all subsequent operations.
+     *
+     * @throws IllegalStateException if JCE is requested but the
+     * runtime cannot support it.
+     */
+    public static void setEngine(Engine engine)
+    {
+        if ((engine == Engine.JCE) && !isJCEAvailable()) {
+            throw new IllegalStateException
+                ("This runtime does not support AES-256 through JCE");
+        }
+        s_engine = engine;
+    }
+
+    public static Engine getEngine()
+    { return s_engine; }
+
+    /**
+     * Set the executor used for processor-bound work, such as
+     * deflating blocks of large content. It should have about as
+     * many threads as there are processors. Pass null to use the
+     * default pool, which is sized that way.
+     *
+     * @see CExecutors#newPlatformPool(int, String)
+     */
+    public static void setExecutor(ExecutorService executor)
+    { s_executor = executor; }
+
+    /**
+     * @return the executor set with setExecutor(), or null if the
+     * default pool is in use.
+     */
+    public static ExecutorService getExecutor()
+    { return s_executor; }
+
+    /**
+     * @return true if the java runtime supports everything the JCE
+     * engine needs.
+     */
+    public static boolean isJCEAvailable()
+    { return s_jce_available; }
+
+    /**
+     * @return true if the JCE engine is currently in use.
+     */
+    public static boolean isUsingJCE()
+    {
+        Engine engine = s_engine;
+        return
+            (engine == Engine.JCE) ||
+            ((engine == Engine.AUTO) && s_jce_available);
+    }
+
+    // package methods
+
+    static ExecutorService executor()
+    {
+        ExecutorService ret = s_executor;
+        if (ret != null) { return ret; }
+        synchronized (CCryptoEngine.class) {
+            if (s_default_executor == null) {
+                s_default_executor = Executors.newFixedThreadPool
+                    (Runtime.getRuntime().availableProcessors(),
+                     CWorkers.newThreadFactory("crypto"));
+            }
+            return s_default_executor;
+        }
+    }
+
+    static PGPDataEncryptorBuilder dataEncryptor(int algorithm)
+    {
+        if (isUsingJCE()) {
+            return new JcePGPDataEncryptorBuilder(algorithm)
+                .setWithIntegrityPacket(true);
+        }
+        return new BcPGPDataEncryptorBuilder(algorithm)
+            .setWithIntegrityPacket(true);
+    }
+
+    static PublicKeyDataDecryptorFactory dataDecryptor(PGPPrivateKey privkey)
+    {
+        if (isUsingJCE()) {
+            return new JcePublicKeyDataDecryptorFactoryBuilder()
+                .build(privkey);
+        }
+        return new BcPublicKeyDataDecryptorFactory(privkey);
+    }
+
+    static PGPContentSignerBuilder contentSigner(int keyalg, int hashalg)
+    {
+        if (isUsingJCE()) {
+            return new JcaPGPContentSignerBuilder(keyalg, hashalg);
+        }
+        return new BcPGPContentSignerBuilder(keyalg, hashalg);
+    }
+
+    static PGPContentVerifierBuilderProvider contentVerifier()
+    {
+        if (isUsingJCE()) {
+            return new PaddedRSAVerifierProvider
+                (new JcaPGPContentVerifierBuilderProvider());
+        }
+        return new BcPGPContentVerifierBuilderProvider();
+    }
+
+    // An RSA signature is stored as a number, so it loses any
+    // leading zero bytes -- about one in 256 of them. The JCE
+    // verifiers reject these for being short, so put the zeros
+    // back first.
+    private final static class PaddedRSAVerifierProvider
+        implements PGPContentVerifierBuilderProvider
+    {
+        private PaddedRSAVerifierProvider
+            (PGPContentVerifierBuilderProvider base)
+        { m_base = base; }
+
+        public PGPContentVerifierBuilder get
+            (final int keyalg, final int hashalg)
+            throws PGPException
+        {
+            final PGPContentVerifierBuilder builder =
+                m_base.get(keyalg, hashalg);
+            return new PGPContentVerifierBuilder() {
+                public PGPContentVerifier build(PGPPublicKey key)
+                    throws PGPException
+                {
+                    final PGPContentVerifier verifier = builder.build(key);
+                    Object pk = key.getPublicKeyPacket().getKey();
+                    if (!(pk instanceof RSAPublicBCPGKey)) {
+                        return verifier;
+                    }
+                    final int len =
+                        (((RSAPublicBCPGKey) pk).getModulus().bitLength()+7)/8;
+                    return new PGPContentVerifier() {
+                        public OutputStream getOutputStream()
+                        { return verifier.getOutputStream(); }
+                        public int getHashAlgorithm()
+                        { return verifier.getHashAlgorithm(); }
+                        public int getKeyAlgorithm()
+                        { return verifier.getKeyAlgorithm(); }
+                        public long getKeyID()
+                        { return verifier.getKeyID(); }
+                        public boolean verify(byte[] sig)
+                        {
+                            if (sig.length < len) {
+                                byte[] padded = new byte[len];
+                                System.arraycopy
+                                    (sig, 0, padded, len-sig.length,
+                                     sig.length);
+                                sig = padded;
+                            }
+                            return verifier.verify(sig);
+                        }
+                    };
+                }
+            };
+        }
+
+        private final PGPContentVerifierBuilderProvider m_base;
+    }
+
+    // Check that the runtime has everything we'll ask of it,
+    // including a key size that older export policies forbid.
+    private static boolean checkJCE()
+    {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE,
+                        new SecretKeySpec(new byte[32], "AES"),
+                        new IvParameterSpec(new byte[16]));
+            cipher.doFinal(new byte[16]);
+            Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            MessageDigest.getInstance("SHA-1");
+            Signature.getInstance("SHA1withRSA");
+            return true;
+        }
+        catch (Exception ex) {
+            s_logger.log(Level.INFO, "JCE crypto not available", ex);
+            return false;
+        }
+    }
+
+    private CCryptoEngine()
+    {}
+
+    private final static Logger s_logger =
+        Logger.getLogger(CCryptoEngine.class.getName());
+    private final static boolean s_jce_available = checkJCE();
+    private static volatile Engine s_engine = Engine.AUTO;
+    private static volatile ExecutorService s_executor = null;
+    private static ExecutorService s_default_executor = null;
+}
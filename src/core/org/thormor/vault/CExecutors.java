@@ -0,0 +1,115 @@
+package org.thormor.vault;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class creates executors suited to the two kinds of work the
+ * library does.
+ *
+ * Fetches, outbox polls and content downloads spend most of their
+ * time waiting on the network or the disk. They fan out well onto a
+ * virtual thread per task, on runtimes that have them; see
+ * {@link CVault#setIOExecutor(ExecutorService)}.
+ *
+ * Compression and encryption keep a processor busy, and are best
+ * run on a fixed pool of platform threads about the size of the
+ * number of processors; see
+ * {@link CCryptoEngine#setExecutor(ExecutorService)}.
+ *
+ * Threads created here are daemon threads, so an executor that is
+ * never shut down does not keep the application alive.
+ */
+
+public final class CExecutors
+{
+    /**
+     * @return true if the java runtime supports virtual threads.
+     */
+    public static boolean isVirtualThreadAvailable()
+    { return s_virtual_available; }
+
+    /**
+     * Create an executor that starts a new virtual thread for each
+     * task.
+     *
+     * @param name is used to name the threads.
+     * @throws UnsupportedOperationException if the runtime does not
+     * support virtual threads.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String name)
+    {
+        if (!s_virtual_available) {
+            throw new UnsupportedOperationException
+                ("This runtime does not support virtual threads");
+        }
+        try {
+            Object builder = s_virtual_builder.invoke(null);
+            builder = s_builder_name.invoke(builder, "thormor-"+name+"-", 1L);
+            ThreadFactory factory =
+                (ThreadFactory) s_builder_factory.invoke(builder);
+            return (ExecutorService) s_per_task.invoke(null, factory);
+        }
+        catch (Exception ex) {
+            throw new UnsupportedOperationException
+                ("Unable to create virtual threads", ex);
+        }
+    }
+
+    /**
+     * Create a fixed pool of platform threads.
+     *
+     * @param nthreads is the number of threads in the pool.
+     * @param name is used to name the threads.
+     */
+    public static ExecutorService newPlatformPool(int nthreads, String name)
+    {
+        if (nthreads < 1) {
+            throw new IllegalArgumentException
+                ("Need atleast one thread, not "+nthreads);
+        }
+        return Executors.newFixedThreadPool
+            (nthreads, CWorkers.newThreadFactory(name));
+    }
+
+    // Virtual threads appeared in java 21, and the library builds
+    // for older runtimes; so find the methods reflectively.
+    private static Method findMethod
+        (String cname, String mname, Class<?>... args)
+    {
+        try { return Class.forName(cname).getMethod(mname, args); }
+        catch (Exception ex) { return null; }
+    }
+
+    // Older runtimes may have the methods, but only as a preview
+    // that refuses to run unless enabled.
+    private static boolean checkVirtual()
+    {
+        if (s_virtual_builder == null) { return false; }
+        try {
+            s_virtual_builder.invoke(null);
+            return true;
+        }
+        catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private CExecutors()
+    {}
+
+    private final static Method s_builder_name =
+        findMethod("java.lang.Thread$Builder", "name", String.class, long.class);
+    private final static Method s_builder_factory =
+        findMethod("java.lang.Thread$Builder", "factory");
+    private final static Method s_per_task =
+        findMethod("java.util.concurrent.Executors",
+                   "newThreadPerTaskExecutor", ThreadFactory.class);
+    private final static Method s_virtual_builder =
+        ((s_builder_name != null) && (s_builder_factory != null) &&
+         (s_per_task != null))?
+        findMethod("java.lang.Thread", "ofVirtual"):null;
+    private final static boolean s_virtual_available = checkVirtual();
+}
@@ -14,6 +14,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A linked vault represents a thormor vault which the
@@ -95,12 +100,13 @@ public class CLinkedVault
     public JSONObject readLocalInbox()
         throws IOException
     {
-        File inboxf = new File(getInboxRoot(), "inbox.json");
-        if (inboxf.canRead()) {
-            return CUtils.readJSON(inboxf);
-        }
-        else {
-            return null;
+        synchronized (this) {
+            if (m_inbox == null) {
+                File inboxf = new File(getInboxRoot(), "inbox.json");
+                if (!inboxf.canRead()) { return null; }
+                m_inbox = CUtils.readJSON(inboxf);
+            }
+            return CUtils.copyJSON(m_inbox);
         }
     }
 
@@ -142,6 +148,12 @@ public class CLinkedVault
     String getInboxJSONPath()
     { return getInboxRootPath()+"/inbox.json"; }
 
+    String getSegmentPath(String key)
+    { return getInboxRootPath()+"/segments/"+key+".json"; }
+
+    String getMessageKey()
+    { return m_msg_key; }
+
     // take the provided message and merge it into the current
     // outbox message store. Return back the merged message outbox
     // if there were changes, or null.
@@ -149,27 +161,288 @@ public class CLinkedVault
     JSONObject mergeLocalOutbox(JSONObject msg)
         throws IOException
     {
-        // 1. load the outbox from file.
+        // 1. Check the index to see if we have already posted this
+        // message, before loading the outbox.
+        String id = msg.optString("id");
+        CMessageIndex index = getMessageIndex();
+        synchronized (this) {
+            if (m_unindexed.contains(id)) { return null; }
+        }
+        if (index.contains(id)) { return null; }
+
+        // 2. load the outbox from file.
         JSONObject outbox = readLocalOutbox();
 
-        // 2. Check the entries array (by id) to see if we
-        // have already seen this message.
+        // 3. The head may also have messages that were saved but not
+        // yet indexed.
         JSONArray entries = outbox.optJSONArray("entries");
         int len = entries.length();
         for (int i=0; i<len; i++) {
             JSONObject entry = entries.optJSONObject(i);
-            if (msg.optString("id").equals(entry.optString("id"))) {
+            if (id.equals(entry.optString("id"))) {
                 // already present, flag no changes.
                 return null;
             }
         }
-        // splice message into head of our entries.
-        entries.put(msg, 0);
+        // splice a copy of the message into head of our entries, as
+        // the outbox outlives the caller's json.
+        entries.put(CUtils.copyJSON(msg), 0);
         return outbox;
     }
 
+    // Note that a message was delivered. It is added to the index
+    // once the outbox holding it has been flushed to disk.
+    synchronized void markPosted(JSONObject msg)
+    { m_unindexed.add(msg.optString("id")); }
+
+    // Held while a message is merged into the outbox, uploaded and
+    // saved, so concurrent posts to this vault don't upload
+    // manifests that each miss the other's message.
+    ReentrantLock getPostLock()
+    { return m_post_lock; }
+
+    // Load the index of posted messages, and recreate it from the
+    // outbox if it is missing.
+    private CMessageIndex getMessageIndex()
+        throws IOException
+    {
+        m_index_lock.lock();
+        try { return getMessageIndexLocked(); }
+        finally { m_index_lock.unlock(); }
+    }
+
+    private CMessageIndex getMessageIndexLocked()
+        throws IOException
+    {
+        if (m_index != null) { return m_index; }
+
+        CMessageIndex index = new CMessageIndex
+            (m_root.getLocalProvider().getFileFor
+             (makeLocalOutboxPath(m_msg_key)+".ids"), m_msg_key);
+        if (!index.exists()) {
+            // Messages in the head are still available, and each
+            // sealed segment keeps the ids of its messages.
+            JSONObject outbox = readLocalOutbox();
+            List<String> ids = new ArrayList<String>();
+            JSONArray entries = outbox.optJSONArray("entries");
+            for (int i=0; i<entries.length(); i++) {
+                JSONObject entry = entries.optJSONObject(i);
+                if (entry != null) { ids.add(entry.optString("id")); }
+            }
+            JSONArray segments = outbox.optJSONArray("segments");
+            for (int i=0; i<segments.length(); i++) {
+                JSONObject info = segments.optJSONObject(i);
+                JSONArray sealed =
+                    (info == null)?null:info.optJSONArray("ids");
+                if (sealed == null) { continue; }
+                for (int j=0; j<sealed.length(); j++) {
+                    ids.add(sealed.optString(j));
+                }
+            }
+            index.rebuild(ids);
+        }
+        m_index = index;
+        return m_index;
+    }
+
+    // If the head of the outbox has grown past a segment, remove
+    // the oldest entries from it and return them (newest first) so
+    // they can be sealed into a segment; otherwise return null.
+    static JSONArray takeOutboxSegment(JSONObject outbox)
+    {
+        JSONArray entries = outbox.optJSONArray("entries");
+        if (entries.length() <= SEGMENT_SIZE) { return null; }
+
+        JSONArray ret = new JSONArray();
+        int start = entries.length() - SEGMENT_SIZE;
+        for (int i=start; i<entries.length(); i++) {
+            ret.put(entries.opt(i));
+        }
+        for (int i=entries.length()-1; i>=start; i--) {
+            entries.remove(i);
+        }
+        return ret;
+    }
+
+    // Record a sealed segment in the outbox. Segments are listed
+    // newest first, just like entries. The segment is encrypted
+    // only for the recipient, so the ids of its messages are also
+    // kept here, for rebuilding the message index; they are not
+    // published.
+    static void addOutboxSegment
+        (JSONObject outbox, URL url, JSONArray segment)
+    {
+        JSONArray ids = new JSONArray();
+        for (int i=0; i<segment.length(); i++) {
+            JSONObject entry = segment.optJSONObject(i);
+            if (entry != null) { ids.put(entry.optString("id")); }
+        }
+        JSONArray segments = outbox.optJSONArray("segments");
+        JSONObject info = new JSONObject();
+        CUtils.put(info, "url", url.toString());
+        CUtils.put(info, "count", segment.length());
+        CUtils.put(info, "ids", ids);
+        segments.put(info, 0);
+    }
+
+    // A vault may publish several outboxes for us, eg: one from each
+    // of its devices. Messages in the older inbox that are not in the
+    // newly decrypted outbox came from another one, so they are kept
+    // after the new messages.
+    static JSONObject mergeInbox(JSONObject older, JSONObject newer)
+    {
+        if (older == null) { return newer; }
+        JSONArray old_entries = older.optJSONArray("entries");
+        if (old_entries == null) { return newer; }
+        JSONArray entries = newer.optJSONArray("entries");
+        if (entries == null) {
+            entries = new JSONArray();
+            CUtils.put(newer, "entries", entries);
+        }
+        Set<String> ids = new HashSet<String>();
+        for (int i=0; i<entries.length(); i++) {
+            JSONObject entry = entries.optJSONObject(i);
+            if (entry != null) { ids.add(entry.optString("id")); }
+        }
+        for (int i=0; i<old_entries.length(); i++) {
+            JSONObject entry = old_entries.optJSONObject(i);
+            if ((entry != null) && ids.add(entry.optString("id"))) {
+                entries.put(entry);
+            }
+        }
+        return newer;
+    }
+
+    // The manifest that is published for the linked vault -- the
+    // local outbox, less the bookkeeping we keep for ourselves. An
+    // outbox without segments is published just as older versions
+    // wrote it.
+    static JSONObject toPublishedOutbox(JSONObject outbox)
+    {
+        JSONArray segments = new JSONArray();
+        JSONArray local = outbox.optJSONArray("segments");
+        for (int i=0; i<local.length(); i++) {
+            JSONObject info = local.optJSONObject(i);
+            if (info == null) { continue; }
+            JSONObject published = new JSONObject();
+            CUtils.put(published, "url", info.optString("url"));
+            CUtils.put(published, "count", info.optInt("count"));
+            segments.put(published);
+        }
+        JSONObject ret = new JSONObject();
+        CUtils.put(ret, "entries", outbox.optJSONArray("entries"));
+        if (segments.length() == 0) {
+            CUtils.put(ret, "version", 1);
+            return ret;
+        }
+        CUtils.put(ret, "version", OUTBOX_VERSION);
+        CUtils.put(ret, "segments", segments);
+        return ret;
+    }
+
+    // The decrypted outbox is kept in memory while the vault is
+    // unlocked. Callers get their own copy to modify, and hand it
+    // back with writeLocalOutbox.
     JSONObject readLocalOutbox()
         throws IOException
+    {
+        synchronized (this) {
+            if (m_outbox == null) { m_outbox = loadLocalOutbox(); }
+            return CUtils.copyJSON(m_outbox);
+        }
+    }
+
+    // Replace the outbox; it is saved to disk a little later, or
+    // when the vault is flushed. The caller must not modify the json
+    // after this call.
+    JSONObject writeLocalOutbox(JSONObject json)
+    {
+        synchronized (this) {
+            m_outbox = json;
+            m_outbox_dirty = true;
+        }
+        m_root.scheduleFlush(this);
+        return json;
+    }
+
+    // Replace the inbox, with the same write-behind as for outboxes.
+    void writeLocalInbox(JSONObject json)
+    {
+        synchronized (this) {
+            m_inbox = json;
+            m_inbox_dirty = true;
+        }
+        m_root.scheduleFlush(this);
+    }
+
+    // Save any changes to the inbox or outbox. Flushes are
+    // serialized, so an older snapshot never overwrites a newer one.
+    void flush()
+        throws IOException
+    {
+        m_flush_lock.lock();
+        try {
+            JSONObject outbox = null;
+            JSONObject inbox = null;
+            List<String> posted = null;
+            synchronized (this) {
+                if (m_outbox_dirty) {
+                    outbox = m_outbox;
+                    posted = new ArrayList<String>(m_unindexed);
+                }
+                if (m_inbox_dirty) { inbox = m_inbox; }
+                m_outbox_dirty = false;
+                m_inbox_dirty = false;
+            }
+
+            boolean ok = false;
+            try {
+                if (outbox != null) {
+                    writeLocalOutboxStatic(m_root, m_msg_key, outbox);
+                    CMessageIndex index = getMessageIndex();
+                    for (String id: posted) { index.add(id); }
+                    synchronized (this) { m_unindexed.removeAll(posted); }
+                }
+                if (inbox != null) {
+                    CUtils.writeJSON
+                        (m_root.getLocalProvider().getFileFor
+                         (getInboxJSONPath()), inbox);
+                }
+                ok = true;
+            }
+            finally {
+                if (!ok) {
+                    // try again later, unless replaced meanwhile.
+                    synchronized (this) {
+                        if ((outbox != null) && (outbox == m_outbox)) {
+                            m_outbox_dirty = true;
+                        }
+                        if ((inbox != null) && (inbox == m_inbox)) {
+                            m_inbox_dirty = true;
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            m_flush_lock.unlock();
+        }
+    }
+
+    // Forget the decrypted inbox and outbox when the vault is
+    // locked. Any changes must already have been flushed.
+    void discardCache()
+    {
+        synchronized (this) {
+            m_outbox = null;
+            m_inbox = null;
+            m_outbox_dirty = false;
+            m_inbox_dirty = false;
+        }
+    }
+
+    private JSONObject loadLocalOutbox()
+        throws IOException
     {
         InputStream inp = m_root.readFileSecurely
             (makeLocalOutboxPath(m_msg_key));
@@ -178,7 +451,16 @@ public class CLinkedVault
             JSONTokener tok  =
                 new JSONTokener
                 (new InputStreamReader(inp));
-            return new JSONObject(tok);
+            JSONObject ret = new JSONObject(tok);
+
+            // Older outboxes keep every message in the entries
+            // array; they are sealed into segments on the next post,
+            // if the vault segments outboxes.
+            if (ret.optJSONArray("segments") == null) {
+                CUtils.put(ret, "segments", new JSONArray());
+            }
+            CUtils.put(ret, "version", OUTBOX_VERSION);
+            return ret;
         }
         catch (JSONException jse) {
             throw CUtils.insert(new IOException(), jse);
@@ -188,11 +470,6 @@ public class CLinkedVault
         }
     }
 
-
-    JSONObject writeLocalOutbox(JSONObject json)
-        throws IOException
-    { return writeLocalOutboxStatic(m_root, m_msg_key, json); }
-
     // package protected static
     static File createLocalOutboxFor(CVault root, URL vaultid)
         throws IOException
@@ -204,8 +481,9 @@ public class CLinkedVault
         if (!local_outbox.exists()) {
             // 1. Create an empty one
             JSONObject empty = new JSONObject();
-            CUtils.put(empty, "version", 1);
+            CUtils.put(empty, "version", OUTBOX_VERSION);
             CUtils.put(empty, "entries", new JSONArray());
+            CUtils.put(empty, "segments", new JSONArray());
             writeLocalOutboxStatic(root, msg_key, empty);
         }
         return local_outbox;
@@ -237,4 +515,23 @@ public class CLinkedVault
     private final PGPPublicKey m_enckey;
     private final PGPPublicKey m_signkey;
     private String m_alias;
+    private CMessageIndex m_index = null;
+    private JSONObject m_outbox = null;
+    private JSONObject m_inbox = null;
+    private boolean m_outbox_dirty = false;
+    private boolean m_inbox_dirty = false;
+    // These are held while reading or writing files, so they are not
+    // monitors; a virtual thread waiting on a monitor would pin its
+    // carrier thread.
+    private final ReentrantLock m_flush_lock = new ReentrantLock();
+    private final ReentrantLock m_index_lock = new ReentrantLock();
+    private final ReentrantLock m_post_lock = new ReentrantLock();
+    private final Set<String> m_unindexed = new HashSet<String>();
+
+    // Outboxes hold the most recent messages in the "entries" array,
+    // and list older messages in immutable, separately uploaded
+    // "segments" of SEGMENT_SIZE messages each. Readers of version 1
+    // only know about entries.
+    final static int OUTBOX_VERSION = 2;
+    final static int SEGMENT_SIZE = 50;
 }
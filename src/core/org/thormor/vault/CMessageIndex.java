@@ -0,0 +1,154 @@
+package org.thormor.vault;
+
+// A persistent set of message ids that have been posted to a linked
+// vault, so duplicates can be detected without decrypting and
+// scanning the outbox. The file holds one hashed id per line, and is
+// only ever appended to; a partially written last line is ignored.
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class CMessageIndex
+{
+    CMessageIndex(File file, String salt)
+    {
+        m_file = file;
+        m_salt = salt;
+    }
+
+    boolean exists()
+    { return m_file.canRead(); }
+
+    boolean contains(String id)
+        throws IOException
+    {
+        m_lock.lock();
+        try { return getIds().contains(hash(id)); }
+        finally { m_lock.unlock(); }
+    }
+
+    void add(String id)
+        throws IOException
+    {
+        m_lock.lock();
+        try {
+            String h = hash(id);
+            if (getIds().contains(h)) { return; }
+            append(h);
+            m_ids.add(h);
+        }
+        finally { m_lock.unlock(); }
+    }
+
+    // Replace the index with exactly these ids.
+    void rebuild(Collection<String> ids)
+        throws IOException
+    {
+        m_lock.lock();
+        try { rebuildLocked(ids); }
+        finally { m_lock.unlock(); }
+    }
+
+    private void rebuildLocked(Collection<String> ids)
+        throws IOException
+    {
+        Set<String> hashes = new HashSet<String>();
+        for (String id: ids) { hashes.add(hash(id)); }
+
+        File tmp = new File(m_file.getParent(), m_file.getName()+".tmp");
+        BufferedWriter bw = null;
+        try {
+            CUtils.makeParents(tmp);
+            bw = new BufferedWriter(new FileWriter(tmp));
+            for (String h: hashes) {
+                bw.write(h);
+                bw.write('\n');
+            }
+            bw.close();
+            bw = null;
+            if (!tmp.renameTo(m_file)) {
+                m_file.delete();
+                if (!tmp.renameTo(m_file)) {
+                    throw new IOException("Unable to replace "+m_file);
+                }
+            }
+        }
+        finally {
+            if (bw != null) {
+                try { bw.close(); } catch (IOException ign) {}
+            }
+            tmp.delete();
+        }
+        m_ids = hashes;
+        m_torn = false;
+    }
+
+    private Set<String> getIds()
+        throws IOException
+    {
+        if (m_ids != null) { return m_ids; }
+
+        Set<String> ids = new HashSet<String>();
+        if (m_file.canRead()) {
+            BufferedReader br = null;
+            try {
+                br = new BufferedReader(new FileReader(m_file));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() == HASH_LENGTH) { ids.add(line); }
+                    m_torn = (line.length() != HASH_LENGTH);
+                }
+            }
+            finally {
+                if (br != null) { br.close(); }
+            }
+        }
+        m_ids = ids;
+        return m_ids;
+    }
+
+    private void append(String h)
+        throws IOException
+    {
+        BufferedWriter bw = null;
+        try {
+            CUtils.makeParents(m_file);
+            bw = new BufferedWriter(new FileWriter(m_file, true));
+            if (m_torn) {
+                // start afresh after a partially written line.
+                bw.write('\n');
+                m_torn = false;
+            }
+            bw.write(h);
+            bw.write('\n');
+        }
+        finally {
+            if (bw != null) { bw.close(); }
+        }
+    }
+
+    // Ids are hashed so the index does not reveal them, and salted
+    // by the linked vault.
+    private String hash(String id)
+    { return CUtils.shasum(m_salt+":"+id); }
+
+    private final File m_file;
+    private final String m_salt;
+    private Set<String> m_ids = null;
+    private boolean m_torn = false;
+    // Held while the file is read or written, so it is not a
+    // monitor; a virtual thread waiting on a monitor would pin its
+    // carrier thread.
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    // length of a hex sha-1
+    private final static int HASH_LENGTH = 40;
+}
@@ -1,6 +1,7 @@
 package org.thormor.vault;
 
 import org.thormor.vault.CAnonymousPublicKeyKeyEncryptionMethodGenerator;
+import org.thormor.metrics.CMetrics;
 import org.bouncyrattle.jce.provider.BouncyCastleProvider;
 
 import org.bouncyrattle.openpgp.PGPPublicKeyRing;
@@ -24,7 +25,6 @@ import org.bouncyrattle.openpgp.PGPEncryptedDataList;
 import org.bouncyrattle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncyrattle.openpgp.PGPPublicKeyEncryptedData;
 import org.bouncyrattle.openpgp.PGPCompressedData;
-import org.bouncyrattle.openpgp.PGPCompressedDataGenerator;
 import org.bouncyrattle.openpgp.PGPLiteralData;
 import org.bouncyrattle.openpgp.PGPLiteralDataGenerator;
 import org.bouncyrattle.openpgp.PGPOnePassSignatureList;
@@ -33,10 +33,7 @@ import org.bouncyrattle.openpgp.operator.PGPDigestCalculator;
 import org.bouncyrattle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
 import org.bouncyrattle.openpgp.operator.bc.BcPGPContentSignerBuilder;
 import org.bouncyrattle.openpgp.operator.bc.BcPBESecretKeyEncryptorBuilder;
-import org.bouncyrattle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
 import org.bouncyrattle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
-import org.bouncyrattle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
-import org.bouncyrattle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
 import org.bouncyrattle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncyrattle.bcpg.HashAlgorithmTags;
 import org.bouncyrattle.bcpg.sig.Features;
@@ -50,7 +47,10 @@ import java.security.KeyPairGenerator;
 import java.util.Iterator;
 import java.util.Date;
 import java.util.List;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.io.*;
 
 import java.util.logging.Logger;
@@ -65,15 +65,24 @@ class CPGPUtils
         (InputStream inp, StreamFactory sfac, PGPPublicKey from_pubkey)
         throws IOException
     {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PGP_VERIFY);
         try {
             verifySignedContent
-                (inp,(from_pubkey!=null)?Arrays.asList(from_pubkey):null,sfac);
+                (inp,(from_pubkey!=null)?Arrays.asList(from_pubkey):null,sfac,
+                 null);
+            timer.stop();
         }
         catch (PGPException pgpe) {
-            throw CUtils.insert(new IOException(), pgpe);
+            throw CUtils.insert(new IOException(), timer.failed(pgpe));
         }
         catch (SignatureException sige) {
-            throw CUtils.insert(new IOException(), sige);
+            throw CUtils.insert(new IOException(), timer.failed(sige));
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
         }
     }
 
@@ -85,10 +94,29 @@ class CPGPUtils
         (InputStream inp, StreamFactory sfac,
          PGPPrivateKey privkey, PGPPublicKey from_pubkey)
         throws IOException
+    { return decrypt(inp, sfac, privkey, from_pubkey, null); }
+
+    // As above, trying first the session that any hints suggest.
+    final static PGPPublicKey decrypt
+        (InputStream inp, StreamFactory sfac,
+         PGPPrivateKey privkey, PGPPublicKey from_pubkey, CSlotHints hints)
+        throws IOException
+    { return decrypt(inp, sfac, privkey, from_pubkey, hints, null); }
+
+    // As above. If there are stages, decryption and writing the
+    // output each run as a task on them, beside decompression on
+    // this thread; suited to large content. The output is then written before the signature and
+    // integrity checks are done, so the caller must discard it if
+    // this fails.
+    final static PGPPublicKey decrypt
+        (InputStream inp, StreamFactory sfac,
+         PGPPrivateKey privkey, PGPPublicKey from_pubkey, CSlotHints hints,
+         ExecutorService stages)
+        throws IOException
     {
         return decrypt
             (inp, sfac, privkey, (from_pubkey != null) ?
-             Arrays.asList(from_pubkey):null);
+             Arrays.asList(from_pubkey):null, hints, stages);
     }
 
     // Decrypt contents with the provided private key, and
@@ -100,7 +128,22 @@ class CPGPUtils
         (InputStream inp, StreamFactory sfac,
          PGPPrivateKey privkey, List<PGPPublicKey> allowed_signers)
         throws IOException
+    { return decrypt(inp, sfac, privkey, allowed_signers, null); }
+
+    final static PGPPublicKey decrypt
+        (InputStream inp, StreamFactory sfac,
+         PGPPrivateKey privkey, List<PGPPublicKey> allowed_signers,
+         CSlotHints hints)
+        throws IOException
+    { return decrypt(inp, sfac, privkey, allowed_signers, hints, null); }
+
+    final static PGPPublicKey decrypt
+        (InputStream inp, StreamFactory sfac,
+         PGPPrivateKey privkey, List<PGPPublicKey> allowed_signers,
+         CSlotHints hints, ExecutorService stages)
+        throws IOException
     {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PGP_DECRYPT);
         boolean ok = false;
         try {
             PGPObjectFactory pgpf =
@@ -109,30 +152,51 @@ class CPGPUtils
 
             Object x = pgpf.nextObject();
             if (x == null) {
-                throw new IOException("No encrypted content found");
+                throw new UnreadableException("No encrypted content found");
             }
-            PGPEncryptedDataList enclist;
-            if (x instanceof PGPEncryptedDataList) {
-                enclist = (PGPEncryptedDataList)x;
+            if (!(x instanceof PGPEncryptedDataList)) {
+                x = pgpf.nextObject();
             }
-            else {
-                enclist = (PGPEncryptedDataList)(pgpf.nextObject());
+            if (!(x instanceof PGPEncryptedDataList)) {
+                throw new UnreadableException("No encrypted content found");
             }
+            PGPEncryptedDataList enclist = (PGPEncryptedDataList)x;
             Iterator<PGPPublicKeyEncryptedData> pkedi =
                 (Iterator<PGPPublicKeyEncryptedData>)
                 (enclist.getEncryptedDataObjects());
             if (pkedi == null) {
-                throw new IOException("no encrypted data found!");
+                throw new UnreadableException("no encrypted data found!");
             }
+            List<PGPPublicKeyEncryptedData> sessions =
+                new ArrayList<PGPPublicKeyEncryptedData>();
+            while (pkedi.hasNext()) { sessions.add(pkedi.next()); }
+
+            // Sessions don't say who they are for, so start with
+            // the one that worked for this sender before.
+            long sender =
+                ((allowed_signers != null) && (allowed_signers.size() == 1))?
+                allowed_signers.get(0).getKeyID():0;
+            int hint = (hints == null)?-1:hints.get(sender, sessions.size());
+
             PGPPublicKey ret = null;
-            while (pkedi.hasNext()) {
-                PGPPublicKeyEncryptedData pked = pkedi.next();
+            for (int slot: CSlotHints.probeOrder(sessions.size(), hint)) {
+                PGPPublicKeyEncryptedData pked = sessions.get(slot);
                 // We may have other recipients, of whom we know nothing.
                 // This results in a PGPException, ignore them.
+                CMetrics.count(CMetrics.RSA_DECRYPT, 1);
                 try {
                     ret = decryptSignedContent
-                        (pked, privkey, allowed_signers, sfac);
+                        (pked, privkey, allowed_signers, sfac, stages);
                     ok = true;
+                    if (hints != null) {
+                        if (slot != hint) {
+                            hints.put(sender, sessions.size(), slot);
+                        }
+                        // Also remember it for the sender we now know.
+                        if ((sender == 0) && (ret != null)) {
+                            hints.put(ret.getKeyID(), sessions.size(), slot);
+                        }
+                    }
                     break;
                 }
                 catch (PGPException pge) {
@@ -143,39 +207,109 @@ class CPGPUtils
                 }
             }
             if (!ok) {
-                throw new IOException("No data encrypted for us!");
+                throw new UnreadableException("No data encrypted for us!");
             }
+            timer.stop();
             return ret;
         }
         catch (SignatureException sige) {
-            throw CUtils.insert(new IOException(), sige);
+            throw CUtils.insert(new UnreadableException(), timer.failed(sige));
         }
-        finally {
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
         }
     }
 
     private final static PGPPublicKey decryptSignedContent
         (PGPPublicKeyEncryptedData pked, PGPPrivateKey privkey,
-         List<PGPPublicKey> allowed_signers, StreamFactory sfac)
+         List<PGPPublicKey> allowed_signers, StreamFactory sfac,
+         ExecutorService stages)
         throws IOException, PGPException, SignatureException
     {
         InputStream clear = pked.getDataStream
-            (new BcPublicKeyDataDecryptorFactory(privkey));
+            (CCryptoEngine.dataDecryptor(privkey));
+
+        if (stages != null) {
+            return decryptPipelined
+                (pked, clear, allowed_signers, sfac, stages);
+        }
 
-        PGPPublicKey ret = verifySignedContent(clear, allowed_signers, sfac);
+        PGPPublicKey ret =
+            verifySignedContent(clear, allowed_signers, sfac, null);
         // Also check the message integrity
         if (!pked.isIntegrityProtected()) {
-            throw new IOException("Sorry -- don't read messages without integrity checks");
+            throw new UnreadableException("Sorry -- don't read messages without integrity checks");
         }
         if (!pked.verify()) {
-            throw new IOException("Integrity check failed");
+            throw new UnreadableException("Integrity check failed");
         }
         return ret;
     }
 
+    // Decrypt as a task on the stages, which passes cleartext to this
+    // thread through a bounded pipe; and finally checks the message
+    // integrity, failing the pipe if it doesn't match.
+    private final static PGPPublicKey decryptPipelined
+        (final PGPPublicKeyEncryptedData pked, final InputStream clear,
+         List<PGPPublicKey> allowed_signers, StreamFactory sfac,
+         ExecutorService stages)
+        throws IOException, PGPException, SignatureException
+    {
+        if (!pked.isIntegrityProtected()) {
+            throw new UnreadableException("Sorry -- don't read messages without integrity checks");
+        }
+        final CPipe pipe = new CPipe(PIPE_CHUNK_SIZE, PIPE_CHUNK_COUNT);
+        Future<?> decryptor = stages.submit
+            (new Runnable() {
+                public void run()
+                {
+                    OutputStream out = pipe.getOutputStream();
+                    try {
+                        CUtils.copy(clear, out);
+                        if (!pked.verify()) {
+                            throw new UnreadableException("Integrity check failed");
+                        }
+                        out.close();
+                    }
+                    catch (Throwable th) {
+                        pipe.fail(th);
+                    }
+                }
+            });
+
+        InputStream pin = pipe.getInputStream();
+        try {
+            PGPPublicKey ret =
+                verifySignedContent(pin, allowed_signers, sfac, stages);
+            // read to the end, so the integrity check is seen.
+            byte buf[] = new byte[8192];
+            while (pin.read(buf) >= 0) {}
+            return ret;
+        }
+        catch (IOException ioe) {
+            // report the decryption failure, if that was the cause.
+            Throwable failure = pipe.getFailure();
+            if (failure instanceof UnreadableException) {
+                throw CUtils.insert(new UnreadableException(), failure);
+            }
+            if (failure != null) {
+                throw CUtils.insert(new IOException(), failure);
+            }
+            throw ioe;
+        }
+        finally {
+            pin.close();
+            CWorkers.awaitStage(decryptor);
+        }
+    }
+
+    // If there are stages, the output is written by a task on them.
     private final static PGPPublicKey verifySignedContent
         (InputStream inp, List<PGPPublicKey> allowed_signers,
-         StreamFactory sfac)
+         StreamFactory sfac, ExecutorService stages)
         throws IOException, PGPException, SignatureException
     {
         PGPObjectFactory plainFact = new PGPObjectFactory(inp);
@@ -188,7 +322,7 @@ class CPGPUtils
             msg = plainFact.nextObject();
         }
         if (!(msg instanceof PGPOnePassSignatureList)) {
-            throw new IOException
+            throw new UnreadableException
                 ("Sorry, only accept signed messages ("+
                  msg.getClass().getName()+")");
         }
@@ -203,31 +337,47 @@ class CPGPUtils
                 }
             }
             if (ret == null) {
-                throw new IOException
+                throw new UnreadableException
                     ("None of your linked vaults have signed this message");
             }
-            onepass_sig.init
-                (new BcPGPContentVerifierBuilderProvider(), ret);
+            onepass_sig.init(CCryptoEngine.contentVerifier(), ret);
         }
         PGPLiteralData ldata = (PGPLiteralData)plainFact.nextObject();
         OutputStream out =
             sfac.createOutputStream
             (ldata.getFileName(), ldata.getModificationTime());
         InputStream lin = ldata.getInputStream();
-        byte buf[] = new byte[8192];
-        int nread;
-        while ((nread = lin.read(buf)) > 0) {
-            out.write(buf, 0, nread);
-            if (ret != null) {
-                onepass_sig.update(buf, 0, nread);
+        CAsyncOutputStream async = null;
+        try {
+            OutputStream dest = out;
+            if (stages != null) {
+                dest = async = new CAsyncOutputStream(out, stages);
+            }
+            byte buf[] = new byte[1<<16];
+            int nread;
+            while ((nread = lin.read(buf)) > 0) {
+                dest.write(buf, 0, nread);
+                if (ret != null) {
+                    onepass_sig.update(buf, 0, nread);
+                }
+            }
+            if (async != null) {
+                async.close();
+                async = null;
+            }
+        }
+        finally {
+            if (async != null) {
+                async.abort(new IOException("Decryption abandoned"));
             }
         }
         out.close();
 
         if (ret != null) {
             PGPSignatureList sig_list = (PGPSignatureList)plainFact.nextObject();
+            CMetrics.count(CMetrics.RSA_VERIFY, 1);
             if (!onepass_sig.verify(sig_list.get(0))) {
-                throw new IOException("This message is not signed by the sender we expected!");
+                throw new UnreadableException("This message is not signed by the sender we expected!");
             }
         }
         return ret;
@@ -239,19 +389,30 @@ class CPGPUtils
          PGPPublicKey sign_pubkey, PGPPrivateKey sign_privkey,
          String srcname, Date modtime)
         throws IOException
+    { sign(inp, inlen, out, sign_pubkey, sign_privkey, srcname, modtime, null); }
+
+    // As above, compressing as the policy decides.
+    final static void sign
+        (InputStream inp, long inlen, OutputStream out,
+         PGPPublicKey sign_pubkey, PGPPrivateKey sign_privkey,
+         String srcname, Date modtime, CCompressionPolicy policy)
+        throws IOException
     {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PGP_SIGN);
         try {
+            CCompressionPolicy.Plan plan =
+                CCompressionPolicy.plan(policy, inp, inlen);
+            inp = plan.getInput();
+
             PGPSignatureGenerator sGen =
                 new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder
+                (CCryptoEngine.contentSigner
                  (sign_pubkey.getAlgorithm(), HashAlgorithmTags.SHA1));
             sGen.init(PGPSignature.BINARY_DOCUMENT, sign_privkey);
 
             // Set up stream chain
-            // compress -> output
-            PGPCompressedDataGenerator comGen =
-                new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream comOut = comGen.open(out, new byte[1<<16]);
+            // compress (if needed) -> output
+            OutputStream comOut = plan.open(out, new byte[1<<16]);
 
             // Data now gets stuffed into compressed out.
             // 1) signature header
@@ -266,8 +427,10 @@ class CPGPUtils
 
             byte buf[] = new byte[1<<16];
             int nread;
+            long total = 0;
             while ((nread = inp.read(buf)) > 0) {
                 ldOut.write(buf, 0, nread);
+                total += nread;
 
                 // update signature at the same time.
                 sGen.update(buf, 0, nread);
@@ -276,17 +439,24 @@ class CPGPUtils
             ldGen.close();
 
             // dump signature.
+            CMetrics.count(CMetrics.RSA_SIGN, 1);
             sGen.generate().encode(comOut);
 
             // close everything internal.
-            comOut.close();
-            comGen.close();
+            plan.close(total);
+            timer.stop();
         }
         catch (PGPException pge) {
-            throw CUtils.insert(new IOException(), pge);
+            throw CUtils.insert(new IOException(), timer.failed(pge));
         }
         catch (SignatureException sge) {
-            throw CUtils.insert(new IOException(), sge);
+            throw CUtils.insert(new IOException(), timer.failed(sge));
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
         }
     }
 
@@ -299,31 +469,67 @@ class CPGPUtils
          String srcname, Date modtime)
         throws IOException
     {
+        encrypt(inp, inlen, out, recipients, sign_pubkey, sign_privkey,
+                srcname, modtime, null);
+    }
+
+    // As above, compressing as the policy decides.
+    final static void encrypt
+        (InputStream inp, long inlen, OutputStream out,
+         List<PGPPublicKey> recipients,
+         PGPPublicKey sign_pubkey, PGPPrivateKey sign_privkey,
+         String srcname, Date modtime, CCompressionPolicy policy)
+        throws IOException
+    {
+        encrypt(inp, inlen, out, recipients, sign_pubkey, sign_privkey,
+                srcname, modtime, policy, CWorkers.stageExecutor());
+    }
+
+    // As above, encrypting as a task on the stages when the policy
+    // deflates in parallel.
+    final static void encrypt
+        (InputStream inp, long inlen, OutputStream out,
+         List<PGPPublicKey> recipients,
+         PGPPublicKey sign_pubkey, PGPPrivateKey sign_privkey,
+         String srcname, Date modtime, CCompressionPolicy policy,
+         ExecutorService stages)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PGP_ENCRYPT);
+        CAsyncOutputStream async = null;
         try {
+            CCompressionPolicy.Plan plan =
+                CCompressionPolicy.plan(policy, inp, inlen);
+            inp = plan.getInput();
+
             PGPSignatureGenerator sGen =
                 new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder
+                (CCryptoEngine.contentSigner
                  (sign_pubkey.getAlgorithm(), HashAlgorithmTags.SHA1));
             sGen.init(PGPSignature.BINARY_DOCUMENT, sign_privkey);
 
             // Set up stream chain
-            // compress -> encrypt -> output
+            // compress (if needed) -> encrypt -> output
             PGPEncryptedDataGenerator encGen =
                 new PGPEncryptedDataGenerator
-                (new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_256)
-                 .setWithIntegrityPacket(true));
+                (CCryptoEngine.dataEncryptor(PGPEncryptedData.AES_256));
             for (PGPPublicKey recp_key: recipients) {
                 encGen.addMethod
                     (new CAnonymousPublicKeyKeyEncryptionMethodGenerator
                      (recp_key));
             }
+            CMetrics.count(CMetrics.RSA_ENCRYPT, recipients.size());
             OutputStream encOut = encGen.open(out, new byte[1<<16]);
 
-            // enclose with a compressed stream.
+            // When deflating on several threads, also encrypt on
+            // another so neither waits on the other.
+            if (plan.isParallel()) {
+                async = new CAsyncOutputStream(encOut, stages);
+            }
 
-            PGPCompressedDataGenerator comGen =
-                new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream comOut = comGen.open(encOut);
+            // enclose with a compressed stream.
+            OutputStream comOut =
+                plan.open((async == null)?encOut:async, null);
 
             // Data now gets stuffed into compressed out.
             // 1) signature header
@@ -338,8 +544,10 @@ class CPGPUtils
 
             byte buf[] = new byte[1<<16];
             int nread;
+            long total = 0;
             while ((nread = inp.read(buf)) > 0) {
                 ldOut.write(buf, 0, nread);
+                total += nread;
 
                 // update signature at the same time.
                 sGen.update(buf, 0, nread);
@@ -348,20 +556,36 @@ class CPGPUtils
             ldGen.close();
 
             // dump signature.
+            CMetrics.count(CMetrics.RSA_SIGN, 1);
             sGen.generate().encode(comOut);
 
             // close everything internal.
-            comOut.close();
-            comGen.close();
+            plan.close(total);
+            if (async != null) {
+                async.close();
+                async = null;
+            }
             
             encOut.close();
             encGen.close();
+            timer.stop();
         }
         catch (PGPException pge) {
-            throw CUtils.insert(new IOException(), pge);
+            throw CUtils.insert(new IOException(), timer.failed(pge));
         }
         catch (SignatureException sge) {
-            throw CUtils.insert(new IOException(), sge);
+            throw CUtils.insert(new IOException(), timer.failed(sge));
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
+        }
+        finally {
+            if (async != null) {
+                async.abort(new IOException("Encryption abandoned"));
+            }
         }
     }
 
@@ -589,6 +813,19 @@ class CPGPUtils
         }
     }
 
+    // Content that can never be read with the keys given: it isn't
+    // encrypted for us, isn't signed by a sender we allow, or fails
+    // its integrity check. Unlike other IOExceptions, trying again
+    // won't help.
+    final static class UnreadableException extends IOException
+    {
+        UnreadableException()
+        { super(); }
+        UnreadableException(String msg)
+        { super(msg); }
+        private final static long serialVersionUID = 1L;
+    }
+
     interface StreamFactory
     {
         public OutputStream createOutputStream
@@ -603,4 +840,6 @@ class CPGPUtils
     }
     private final static Logger s_logger =
         Logger.getLogger(CPGPUtils.class.getName());
+    private final static int PIPE_CHUNK_SIZE = 1<<16;
+    private final static int PIPE_CHUNK_COUNT = 16;
 }
@@ -0,0 +1,159 @@
+package org.thormor.vault;
+
+// Deflates a stream on several threads, in the manner of pigz. The
+// input is cut into blocks that are compressed independently, each
+// primed with the last 32K of the block before it so little ratio is
+// lost. Every block but the last ends with a sync flush, which
+// leaves the output byte aligned; so the compressed blocks simply
+// concatenate into one valid raw deflate stream.
+//
+// Blocks are written out in order on the calling thread, and only a
+// bounded number are in flight at once. The blocks are deflated on
+// the crypto executor; they never wait on each other, so streams
+// sharing it cannot starve one another for long.
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+final class CParallelDeflater
+    extends OutputStream
+{
+    // The output stream is not closed when this stream is.
+    CParallelDeflater(OutputStream out, int level, int nthreads)
+    {
+        m_out = out;
+        m_level = level;
+        m_max_pending = 2*Math.max(1, nthreads);
+    }
+
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+        m_one[0] = (byte) b;
+        write(m_one, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len)
+        throws IOException
+    {
+        if (m_closed) { throw new IOException("Deflater already closed"); }
+        while (len > 0) {
+            if (m_cur == null) { m_cur = new byte[BLOCK_SIZE]; }
+            int n = Math.min(len, m_cur.length - m_curlen);
+            System.arraycopy(buf, off, m_cur, m_curlen, n);
+            m_curlen += n;
+            off += n;
+            len -= n;
+            if (m_curlen == m_cur.length) { submit(false); }
+        }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (m_closed) { return; }
+        m_closed = true;
+        submit(true);
+        while (!m_pending.isEmpty()) { writeNext(); }
+        m_out.flush();
+    }
+
+    private void submit(final boolean last)
+        throws IOException
+    {
+        final byte[] prev = m_prev;
+        final int prevlen = m_prevlen;
+        final byte[] cur = (m_cur == null)?new byte[0]:m_cur;
+        final int curlen = m_curlen;
+
+        m_pending.add(CCryptoEngine.executor().submit
+                      (new Callable<byte[]>() {
+                          public byte[] call()
+                          { return deflate(prev, prevlen, cur, curlen, last); }
+                      }));
+        m_prev = cur;
+        m_prevlen = curlen;
+        m_cur = null;
+        m_curlen = 0;
+
+        // keep memory bounded by writing out the oldest block.
+        while (m_pending.size() > m_max_pending) { writeNext(); }
+    }
+
+    private void writeNext()
+        throws IOException
+    {
+        Future<byte[]> next = m_pending.removeFirst();
+        try {
+            m_out.write(next.get());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException ee) {
+            throw CUtils.insert
+                (new IOException("Unable to compress"), ee.getCause());
+        }
+    }
+
+    private byte[] deflate
+        (byte[] prev, int prevlen, byte[] cur, int curlen, boolean last)
+    {
+        Deflater deflater = new Deflater(m_level, true);
+        try {
+            if (prev != null) {
+                int dictlen = Math.min(prevlen, DICT_SIZE);
+                deflater.setDictionary(prev, prevlen - dictlen, dictlen);
+            }
+            deflater.setInput(cur, 0, curlen);
+            ByteArrayOutputStream bout =
+                new ByteArrayOutputStream(curlen/2 + 64);
+            byte[] buf = new byte[1<<14];
+            int n;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    n = deflater.deflate(buf);
+                    bout.write(buf, 0, n);
+                }
+            }
+            else {
+                do {
+                    n = deflater.deflate
+                        (buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    bout.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            return bout.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private final OutputStream m_out;
+    private final int m_level;
+    private final int m_max_pending;
+    private final LinkedList<Future<byte[]>> m_pending =
+        new LinkedList<Future<byte[]>>();
+    private final byte[] m_one = new byte[1];
+    private byte[] m_cur = null;
+    private int m_curlen = 0;
+    private byte[] m_prev = null;
+    private int m_prevlen = 0;
+    private boolean m_closed = false;
+
+    private final static int BLOCK_SIZE = 128*1024;
+    private final static int DICT_SIZE = 32*1024;
+}
@@ -0,0 +1,189 @@
+package org.thormor.vault;
+
+// A bounded, in-memory pipe that hands chunks of bytes from one
+// thread to another. Unlike java.io.PipedInputStream, the buffer is
+// sized in chunks, a failure on the writing side is reported to the
+// reader, and closing the reader unblocks a waiting writer.
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+final class CPipe
+{
+    CPipe(int chunksize, int maxchunks)
+    {
+        m_chunksize = chunksize;
+        m_queue = new ArrayBlockingQueue<byte[]>(maxchunks);
+    }
+
+    OutputStream getOutputStream()
+    { return m_out; }
+
+    InputStream getInputStream()
+    { return m_in; }
+
+    // Called by the writing side if it cannot complete; the reader
+    // sees an IOException with this cause.
+    void fail(Throwable cause)
+    {
+        synchronized (this) {
+            if (m_failure == null) { m_failure = cause; }
+        }
+        m_queue.clear();
+        m_queue.offer(EOF);
+    }
+
+    synchronized Throwable getFailure()
+    { return m_failure; }
+
+    private synchronized boolean isReaderClosed()
+    { return m_reader_closed; }
+
+    private synchronized void closeReader()
+    { m_reader_closed = true; }
+
+    private void put(byte[] chunk)
+        throws IOException
+    {
+        try {
+            while (!m_queue.offer(chunk, POLL_MSEC, TimeUnit.MILLISECONDS)) {
+                if (isReaderClosed()) {
+                    throw new IOException("Pipe closed by reader");
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private byte[] take()
+        throws IOException
+    {
+        try { return m_queue.take(); }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private final class PipeOutputStream
+        extends OutputStream
+    {
+        public void write(int b)
+            throws IOException
+        {
+            m_one[0] = (byte) b;
+            write(m_one, 0, 1);
+        }
+
+        public void write(byte[] buf, int off, int len)
+            throws IOException
+        {
+            if (m_closed) { throw new IOException("Pipe already closed"); }
+            if (isReaderClosed()) {
+                throw new IOException("Pipe closed by reader");
+            }
+            while (len > 0) {
+                if (m_cur == null) { m_cur = new byte[m_chunksize]; }
+                int n = Math.min(len, m_cur.length - m_curlen);
+                System.arraycopy(buf, off, m_cur, m_curlen, n);
+                m_curlen += n;
+                off += n;
+                len -= n;
+                if (m_curlen == m_cur.length) {
+                    put(m_cur);
+                    m_cur = null;
+                    m_curlen = 0;
+                }
+            }
+        }
+
+        public void flush()
+            throws IOException
+        {
+            if (m_curlen > 0) {
+                byte[] chunk = new byte[m_curlen];
+                System.arraycopy(m_cur, 0, chunk, 0, m_curlen);
+                put(chunk);
+                m_curlen = 0;
+            }
+        }
+
+        public void close()
+            throws IOException
+        {
+            if (m_closed) { return; }
+            flush();
+            m_closed = true;
+            put(EOF);
+        }
+
+        private final byte[] m_one = new byte[1];
+        private byte[] m_cur = null;
+        private int m_curlen = 0;
+        private boolean m_closed = false;
+    }
+
+    private final class PipeInputStream
+        extends InputStream
+    {
+        public int read()
+            throws IOException
+        {
+            int n = read(m_one, 0, 1);
+            if (n < 0) { return -1; }
+            return (0xff & m_one[0]);
+        }
+
+        public int read(byte[] buf, int off, int len)
+            throws IOException
+        {
+            if (len == 0) { return 0; }
+            while ((m_cur == null) || (m_curpos == m_cur.length)) {
+                if (m_eof) { return -1; }
+                m_cur = take();
+                m_curpos = 0;
+                if (m_cur == EOF) {
+                    m_eof = true;
+                    Throwable failure = getFailure();
+                    if (failure != null) {
+                        throw CUtils.insert
+                            (new IOException("Pipe writer failed"), failure);
+                    }
+                }
+            }
+            int n = Math.min(len, m_cur.length - m_curpos);
+            System.arraycopy(m_cur, m_curpos, buf, off, n);
+            m_curpos += n;
+            return n;
+        }
+
+        public void close()
+        {
+            closeReader();
+            m_queue.clear();
+        }
+
+        private final byte[] m_one = new byte[1];
+        private byte[] m_cur = null;
+        private int m_curpos = 0;
+        private boolean m_eof = false;
+    }
+
+    private final int m_chunksize;
+    private final BlockingQueue<byte[]> m_queue;
+    private final OutputStream m_out = new PipeOutputStream();
+    private final InputStream m_in = new PipeInputStream();
+    private Throwable m_failure = null;
+    private boolean m_reader_closed = false;
+
+    private final static byte[] EOF = new byte[0];
+    private final static long POLL_MSEC = 100;
+}
@@ -31,10 +31,10 @@ import java.util.Iterator;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.Date;
 
 import java.net.URL;
@@ -168,15 +168,11 @@ class CSettings
     void removeLinkedVault(CLinkedVault lv)
     {
         // first remove from m_outboxinfo
-        synchronized (m_outboxinfo) {
-            Iterator<OutboxInfo> it = m_outboxinfo.iterator();
-            while (it.hasNext()) {
-                OutboxInfo cur = it.next();
-                CLinkedVault curlv = cur.getLinkedVault();
-                if (curlv == null) { continue; }
-                if (lv.getId().equals(curlv.getId())) {
-                    it.remove();
-                }
+        for (OutboxInfo cur: m_outboxinfo) {
+            CLinkedVault curlv = cur.getLinkedVault();
+            if (curlv == null) { continue; }
+            if (lv.getId().equals(curlv.getId())) {
+                m_outboxinfo.remove(cur);
             }
         }
 
@@ -220,12 +216,10 @@ class CSettings
         JSONArray outbox_list = new JSONArray();
         CUtils.put(js, "outbox_list", outbox_list);
 
-        synchronized (m_outboxinfo) {
-            for (OutboxInfo oi: m_outboxinfo) {
-                JSONObject outbox = new JSONObject();
-                CUtils.put(outbox, "outbox", oi.getURLKey());
-                outbox_list.put(outbox);
-            }
+        for (OutboxInfo oi: m_outboxinfo) {
+            JSONObject outbox = new JSONObject();
+            CUtils.put(outbox, "outbox", oi.getURLKey());
+            outbox_list.put(outbox);
         }
 
         return js;
@@ -281,6 +275,16 @@ class CSettings
     boolean isLocked()
     { return (m_signkey == null) || (m_enckey == null); }
 
+    // Forget private keys and everything loaded with them; unlock
+    // reloads them.
+    void lock()
+    {
+        m_signkey = null;
+        m_enckey = null;
+        m_linked.clear();
+        m_outboxinfo.clear();
+    }
+
     // private helper methods
 
     private void loadVaultSettings()
@@ -432,10 +436,13 @@ class CSettings
     private URL m_outbox_list_url = null;
     private URL m_public_key_url = null;
     private String m_guid = null;
-    private Map<URL, CLinkedVault> m_linked =
-        Collections.synchronizedMap(new HashMap<URL, CLinkedVault>());
-    private List<OutboxInfo> m_outboxinfo =
-        Collections.synchronizedList(new ArrayList<OutboxInfo>());
+    // Lock-free, so readers never block, and nothing here holds a
+    // monitor that a virtual thread could pin its carrier on.
+    // Iterating over either is safe while it changes.
+    private final Map<URL, CLinkedVault> m_linked =
+        new ConcurrentHashMap<URL, CLinkedVault>();
+    private final List<OutboxInfo> m_outboxinfo =
+        new CopyOnWriteArrayList<OutboxInfo>();
 
     private final static String SETTINGS_PFX = "my/";
     private final static String PUBKEY_PATH=SETTINGS_PFX+"vault.pkr";
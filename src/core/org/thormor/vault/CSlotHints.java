@@ -0,0 +1,69 @@
+package org.thormor.vault;
+
+// Remembers which session packet decrypted for us in earlier
+// content from each sender. Session packets carry no key ids, so
+// otherwise every packet ahead of ours costs a wasted private key
+// operation. Senders tend to list recipients in the same order, so
+// the slot that worked last time is usually the right one.
+//
+// Hints are keyed by the sender's signing key and the number of
+// sessions, since a sender posting to different groups puts us in
+// different slots. When the sender isn't known until the content is
+// verified, the hint is keyed on the number of sessions alone, and
+// is shared by all such senders; the slot that worked is then also
+// recorded under the sender that was found. Hints are only kept in
+// memory, and never change what is accepted; a stale hint just means
+// trying other slots.
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class CSlotHints
+{
+    // The slot to try first, or -1 if we have no idea. The sender
+    // is 0 if it isn't known before decrypting, which shares one
+    // hint for each number of sessions.
+    synchronized int get(long sender, int nslots)
+    {
+        Integer ret = m_hints.get(key(sender, nslots));
+        return (ret == null)?-1:ret.intValue();
+    }
+
+    synchronized void put(long sender, int nslots, int slot)
+    { m_hints.put(key(sender, nslots), slot); }
+
+    synchronized void clear()
+    { m_hints.clear(); }
+
+    // The order in which to try slots: the hint first, then those
+    // nearest it, since recipient lists usually change by a few
+    // entries at a time.
+    static int[] probeOrder(int nslots, int hint)
+    {
+        int[] ret = new int[nslots];
+        if ((hint < 0) || (hint >= nslots)) {
+            for (int i=0; i<nslots; i++) { ret[i] = i; }
+            return ret;
+        }
+        int n = 0;
+        ret[n++] = hint;
+        for (int d=1; n < nslots; d++) {
+            if (hint+d < nslots) { ret[n++] = hint+d; }
+            if (hint-d >= 0) { ret[n++] = hint-d; }
+        }
+        return ret;
+    }
+
+    private static String key(long sender, int nslots)
+    { return Long.toHexString(sender)+"/"+nslots; }
+
+    private final Map<String,Integer> m_hints =
+        new LinkedHashMap<String,Integer>(16, 0.75f, true) {
+            static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Integer> e)
+            { return size() > MAX_HINTS; }
+        };
+
+    private final static int MAX_HINTS = 1024;
+}
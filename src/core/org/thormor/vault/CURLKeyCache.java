@@ -0,0 +1,163 @@
+package org.thormor.vault;
+
+// Remembers what each urlkey in a linked vault's outbox_list
+// decrypted to, so only new keys cost a private key operation. Keys
+// that were not meant for us are remembered as an empty string. The
+// cache is kept in a secure file, as it reveals our outbox urls.
+//
+// The file holds {vault_id: {sha(urlkey): url or ""}}.
+
+import org.json2012.JSONObject;
+import org.json2012.JSONTokener;
+import org.json2012.JSONException;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class CURLKeyCache
+{
+    CURLKeyCache(CVault root)
+    { m_root = root; }
+
+    // The decrypted url for this urlkey digest, "" if the key was
+    // not for us, or null if we haven't seen the key before.
+    String get(URL vaultid, String digest)
+        throws IOException
+    {
+        m_lock.lock();
+        try {
+            Map<String,String> keys = getLoaded().get(vaultid.toString());
+            if (keys == null) { return null; }
+            return keys.get(digest);
+        }
+        finally { m_lock.unlock(); }
+    }
+
+    void put(URL vaultid, String digest, String value)
+        throws IOException
+    {
+        m_lock.lock();
+        try {
+            Map<String,String> keys = getKeysFor(vaultid);
+            String prev = keys.put(digest, value);
+            if (!value.equals(prev)) { m_dirty = true; }
+        }
+        finally { m_lock.unlock(); }
+    }
+
+    // Forget keys that the vault no longer lists.
+    void retain(URL vaultid, Set<String> digests)
+        throws IOException
+    {
+        m_lock.lock();
+        try {
+            Map<String,String> keys = getLoaded().get(vaultid.toString());
+            if (keys == null) { return; }
+            if (keys.keySet().retainAll(digests)) { m_dirty = true; }
+        }
+        finally { m_lock.unlock(); }
+    }
+
+    // Save any changes, dropping vaults that are no longer linked.
+    void save(Collection<CLinkedVault> linked)
+        throws IOException
+    {
+        m_lock.lock();
+        try { saveLocked(linked); }
+        finally { m_lock.unlock(); }
+    }
+
+    private void saveLocked(Collection<CLinkedVault> linked)
+        throws IOException
+    {
+        if (m_cache == null) { return; }
+
+        Set<String> ids = new HashSet<String>();
+        for (CLinkedVault lv: linked) { ids.add(lv.getId().toString()); }
+        if (m_cache.keySet().retainAll(ids)) { m_dirty = true; }
+        if (!m_dirty) { return; }
+
+        JSONObject js = new JSONObject();
+        for (Map.Entry<String,Map<String,String>> entry: m_cache.entrySet()) {
+            JSONObject keys = new JSONObject();
+            for (Map.Entry<String,String> key: entry.getValue().entrySet()) {
+                CUtils.put(keys, key.getKey(), key.getValue());
+            }
+            CUtils.put(js, entry.getKey(), keys);
+        }
+        m_root.writeFileSecurely(URLKEYS_PATH, CUtils.getBytes(js.toString()));
+        m_dirty = false;
+    }
+
+    private Map<String,String> getKeysFor(URL vaultid)
+        throws IOException
+    {
+        Map<String,Map<String,String>> cache = getLoaded();
+        Map<String,String> ret = cache.get(vaultid.toString());
+        if (ret == null) {
+            ret = new HashMap<String,String>();
+            cache.put(vaultid.toString(), ret);
+        }
+        return ret;
+    }
+
+    private Map<String,Map<String,String>> getLoaded()
+        throws IOException
+    {
+        if (m_cache != null) { return m_cache; }
+
+        Map<String,Map<String,String>> cache =
+            new HashMap<String,Map<String,String>>();
+        InputStream inp = m_root.readFileSecurely(URLKEYS_PATH);
+        if (inp != null) {
+            try {
+                JSONObject js = new JSONObject
+                    (new JSONTokener(new InputStreamReader(inp)));
+                String[] vaults = JSONObject.getNames(js);
+                if (vaults != null) {
+                    for (String vault: vaults) {
+                        JSONObject keysjs = js.optJSONObject(vault);
+                        if (keysjs == null) { continue; }
+                        Map<String,String> keys =
+                            new HashMap<String,String>();
+                        String[] digests = JSONObject.getNames(keysjs);
+                        if (digests != null) {
+                            for (String digest: digests) {
+                                keys.put(digest, keysjs.optString(digest));
+                            }
+                        }
+                        cache.put(vault, keys);
+                    }
+                }
+            }
+            catch (JSONException jse) {
+                // just a cache, so start afresh.
+                cache.clear();
+                m_dirty = true;
+            }
+            finally {
+                inp.close();
+            }
+        }
+        m_cache = cache;
+        return m_cache;
+    }
+
+    private final CVault m_root;
+    private Map<String,Map<String,String>> m_cache = null;
+    private boolean m_dirty = false;
+    // Held while the secure file is read or written, so it is not
+    // a monitor; a virtual thread waiting on a monitor would pin its
+    // carrier thread.
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    private final static String URLKEYS_PATH = "my/urlkeys.json";
+}
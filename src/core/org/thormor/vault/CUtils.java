@@ -90,6 +90,16 @@ class CUtils
         }
     }
 
+    // Deep copy of a json object.
+    final static JSONObject copyJSON(JSONObject js)
+        throws IOException
+    {
+        try { return new JSONObject(js.toString()); }
+        catch (JSONException jse) {
+            throw insert(new IOException(), jse);
+        }
+    }
+
     final static void writeJSON(File f, JSONObject js)
         throws IOException
     {
@@ -1,7 +1,12 @@
 package org.thormor.vault;
 
 
+import org.thormor.metrics.CMetrics;
+import org.thormor.provider.CAsyncProviders;
+import org.thormor.provider.CFuture;
+import org.thormor.provider.IAsyncRemoteProvider;
 import org.thormor.provider.IRemoteProvider;
+import org.thormor.provider.IStreamingRemoteProvider;
 import org.thormor.provider.ILocalProvider;
 import org.thormor.provider.IProgressMonitor;
 import org.thormor.provider.CUploadInfo;
@@ -19,6 +24,7 @@ import org.json2012.JSONException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ByteArrayInputStream;
@@ -28,8 +34,27 @@ import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Date;
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.UUID;
 
@@ -69,6 +94,16 @@ public class CVault
         m_settings = CSettings.maybeLoad(this);
     }
 
+    /**
+     * Create a vault that stores its data with an asynchronous
+     * provider.
+     *
+     * @see CAsyncProviders#blocking(IAsyncRemoteProvider)
+     */
+    public CVault(IAsyncRemoteProvider rp, ILocalProvider lp)
+        throws CVaultException
+    { this(CAsyncProviders.blocking(rp), lp); }
+
     public State getState()
     {
         if (m_settings == null) {
@@ -189,6 +224,154 @@ public class CVault
         return ret;
     }
 
+    /**
+     * Return the manager for locally cached files, which can be used
+     * to limit the space they take up.
+     */
+    public CCacheManager getCacheManager()
+    {
+        getCacheIndex();
+        synchronized (this) { return m_cache_manager; }
+    }
+
+    /**
+     * Set how content is compressed before it is encrypted or
+     * signed. By default, content is only compressed when a sample
+     * of it shrinks; see {@link CCompressionPolicy}.
+     */
+    public void setCompressionPolicy(CCompressionPolicy policy)
+    {
+        if (policy == null) {
+            throw new IllegalArgumentException("Missing policy");
+        }
+        m_compression = policy;
+    }
+
+    /**
+     * Return the compression policy, which also counts how well
+     * content has compressed.
+     */
+    public CCompressionPolicy getCompressionPolicy()
+    { return m_compression; }
+
+    /**
+     * By default, postMessage() saves the outboxes it changed before
+     * it returns. If deferred, they are saved with the next
+     * background flush instead, so several posts in quick succession
+     * are saved together. Call {@link #flush()} before the
+     * application exits; a message that was uploaded but not saved
+     * is left out of the next upload of that outbox.
+     */
+    public void setDeferOutboxSaves(boolean defer)
+    { m_defer_saves = defer; }
+
+    /**
+     * @return true if outboxes are saved in the background after a
+     * post.
+     * @see #setDeferOutboxSaves(boolean)
+     */
+    public boolean getDeferOutboxSaves()
+    { return m_defer_saves; }
+
+    /**
+     * By default, an outbox lists every message posted to the linked
+     * vault, and all of it is uploaded with each post. If segmented,
+     * older messages are sealed into separately uploaded segments, so
+     * each post only uploads the newest ones.
+     *
+     * Vaults using an older version of this library read only the
+     * newest messages of a segmented outbox, and miss the rest
+     * without notice. Turn this on only once every linked vault has
+     * upgraded. Turning it off again does not unseal messages that
+     * are already in segments.
+     */
+    public void setSegmentedOutboxes(boolean segmented)
+    { m_segmented = segmented; }
+
+    /**
+     * @return true if older messages in outboxes are sealed into
+     * segments.
+     * @see #setSegmentedOutboxes(boolean)
+     */
+    public boolean getSegmentedOutboxes()
+    { return m_segmented; }
+
+    /**
+     * Set the executor for work that mostly waits on the network or
+     * the disk: the asynchronous methods, fetches and posts that fan
+     * out over linked vaults, and outbox polls. A virtual thread per
+     * task suits this well. Tasks on this executor wait for others
+     * submitted to it, so it must start every task at once; a
+     * cached thread pool also works.
+     *
+     * Pass null to use the default pools. The vault never shuts the
+     * executor down.
+     *
+     * @throws IllegalArgumentException if the executor is a thread
+     * pool that queues tasks once a fixed number of threads are busy.
+     * @see CExecutors#newVirtualThreadPerTaskExecutor(String)
+     */
+    public void setIOExecutor(ExecutorService executor)
+    {
+        if ((executor != null) && CWorkers.isBounded(executor)) {
+            throw new IllegalArgumentException
+                ("Nested tasks could deadlock on a bounded pool");
+        }
+        m_io_executor = executor;
+    }
+
+    /**
+     * @return the executor set with setIOExecutor(), or null if the
+     * default pools are in use.
+     */
+    public ExecutorService getIOExecutor()
+    { return m_io_executor; }
+
+    /**
+     * Write any pending changes to local inboxes and outboxes to
+     * disk. Changes are normally saved a couple of seconds after
+     * they are made; call this before exiting the application.
+     *
+     * @throws IOException if any changes could not be saved. They
+     * are kept, and saved on the next flush.
+     */
+    public void flush()
+        throws IOException
+    {
+        check(State.UNLOCKED);
+        flushDirty();
+    }
+
+    /**
+     * Save any pending changes, and then lock the vault. Private keys
+     * and decrypted data held in memory are discarded, including that
+     * of any CLinkedVault still held by the caller, and the vault
+     * must be unlocked again before it can be used.
+     *
+     * @throws IOException if pending changes could not be saved, in
+     * which case the vault remains unlocked.
+     */
+    public void lock()
+        throws IOException
+    {
+        // hold off background flushes while the keys go away.
+        m_flush_lock.lock();
+        try {
+            check(State.UNLOCKED);
+            flushDirty();
+            saveURLKeys();
+            synchronized (this) { m_urlkeys = null; }
+            m_slot_hints.clear();
+            for (CLinkedVault lv: m_settings.getLinkedVaults()) {
+                lv.discardCache();
+            }
+            m_settings.lock();
+        }
+        finally {
+            m_flush_lock.unlock();
+        }
+    }
+
     /**
      * Subscribe to a thormor vault located at the provided URL,
      * and save its data locally.
@@ -337,6 +520,10 @@ public class CVault
      * @param monitor to monitor the status of the request.
      * @throws IllegalArgumentException if the json object is missing any
      * of the required fields.
+     * @throws IOException if the message could not be uploaded, or
+     * the outbox of a recipient could not be saved locally after it
+     * was uploaded.
+     * @see #setDeferOutboxSaves(boolean)
      */
     public void postMessage
         (List<CLinkedVault> recipients,  JSONObject message,
@@ -346,53 +533,49 @@ public class CVault
         checkRequiredFields(recipients, message);
 
         for (CLinkedVault recipient: recipients) {
-            // 1. Splice message into recipient outbox.
-            JSONObject outbox = recipient.mergeLocalOutbox(message);
-
-            // 2. If there were updates
-            if (outbox != null) {
-                byte[] buf = CUtils.getBytes(outbox.toString());
-                ByteArrayInputStream bin = new ByteArrayInputStream(buf);
-                long inlen = buf.length;
-                buf = null;
-
-                File tmp = m_lprovider.createTempFile("thormor", "pgp");
-                BufferedOutputStream bout = null;
-                boolean ok = false;
-                try {
-                    // 1. Encrypt new outbox to temp file
-                    List<PGPPublicKey> key = new ArrayList<PGPPublicKey>();
-                    key.add(recipient.getEncryptionKey());
-                    bout = new BufferedOutputStream
-                        (new FileOutputStream(tmp));
-                    CPGPUtils.encrypt
-                        (bin, inlen, bout, key,
-                         m_settings.getPublicSigningKey(),
-                         m_settings.getPrivateSigningKey(),
-                         "outbox.json", new Date());
-                    bout.close();
-                    bout = null;
-
-                    // 2. Upload encrypted outbox to target.
-                    m_rprovider.upload
-                        (new CUploadInfo
-                         (tmp, true, null, recipient.getPublishOutboxURL()),
-                         monitor);
-                    ok = true;
-                }
-                finally {
-                    if (bout != null) {
-                        try { bout.close(); } 
-                        catch (IOException ioe) {}
-                    }
-                    tmp.delete();
-                    if (ok) {
-                        // persist changes.
-                        recipient.writeLocalOutbox(outbox);
-                    }
-                }
-            }
+            postMessageTo(recipient, message, monitor);
         }
+        saveOutboxes(recipients);
+    }
+
+    /**
+     * Post a json message to a list of linked vaults concurrently.
+     * Each recipient has its own outbox, which is rebuilt, encrypted
+     * and uploaded by a single worker. A failure for one recipient
+     * does not stop the message from reaching the others, and the
+     * message is recorded only in the outboxes that were delivered.
+     *
+     * @param recipients is the list of linked vaults who can read the message
+     * @param message is an generic json, with the same restrictions as
+     * for {@link #postMessage(List, JSONObject, IProgressMonitor)}
+     * @param monitor to monitor the status of the request; it may be
+     * called from several threads, but never concurrently.
+     * @param nthreads is the maximum number of recipients updated at
+     * the same time.
+     * @return a report listing the recipients that were updated, and
+     * the exceptions for those that failed.
+     * @throws IllegalArgumentException if the json object is missing any
+     * of the required fields.
+     */
+    public CBatchResult postMessage
+        (List<CLinkedVault> recipients, final JSONObject message,
+         IProgressMonitor monitor, int nthreads)
+        throws IOException
+    {
+        checkRequiredFields(recipients, message);
+
+        // Each outbox must only be updated by one worker.
+        List<CLinkedVault> unique = new ArrayList<CLinkedVault>
+            (new LinkedHashSet<CLinkedVault>(recipients));
+        final IProgressMonitor smon = CWorkers.synchronizedMonitor(monitor);
+        CBatchResult ret = CWorkers.runAll
+            (unique, nthreads, "post", new CWorkers.VaultTask() {
+                    public void run(CLinkedVault lv)
+                        throws IOException
+                    { postMessageTo(lv, message, smon); }
+                }, m_io_executor);
+        saveOutboxes(ret.getCompleted());
+        return ret;
     }
 
     /**
@@ -431,7 +614,7 @@ public class CVault
             PGPPublicKey signer =
                 CPGPUtils.decrypt
                 (bin, ssf, m_settings.getPrivateEncryptionKey(),
-                 getSigningKeys(getLinkedVaults()));
+                 getSigningKeys(getLinkedVaults()), m_slot_hints);
             if (ssf.hasFailed()) {
                 throw new IOException("Unable to decrypt "+url);
             }
@@ -479,8 +662,81 @@ public class CVault
     public void fetchMessages(IProgressMonitor monitor)
         throws IOException
     {
-        for (CLinkedVault lv: m_settings.getLinkedVaults()) {
-            fetchMessagesFrom(lv, monitor);
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.VAULT_POLL);
+        try {
+            for (CLinkedVault lv: m_settings.getLinkedVaults()) {
+                fetchOutboxes(lv, monitor);
+            }
+            timer.stop();
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
+        }
+        finally {
+            saveURLKeys();
+        }
+    }
+
+    /**
+     * Fetch messages from all vaults concurrently, and update the
+     * local cache with any new content.
+     *
+     * @param monitor to track the progress; it may be called from
+     * several threads, but never concurrently.
+     * @param nthreads is the maximum number of vaults fetched at
+     * the same time.
+     * @return a report listing the vaults that were fetched, and
+     * the exceptions from those that failed.
+     * @see #fetchMessagesFrom(List, IProgressMonitor, int)
+     */
+    public CBatchResult fetchMessages(IProgressMonitor monitor, int nthreads)
+        throws IOException
+    { return fetchMessagesFrom(m_settings.getLinkedVaults(), monitor, nthreads); }
+
+    /**
+     * Fetch messages from a list of linked vaults concurrently, and
+     * update the local cache with any new content. Each vault is
+     * fetched start to finish by a single worker, so updates from a
+     * given vault are applied in order. A slow or failing vault does
+     * not stop the others from being fetched.
+     *
+     * @param vaults is the list of linked vaults to fetch.
+     * @param monitor to track the progress; it may be called from
+     * several threads, but never concurrently.
+     * @param nthreads is the maximum number of vaults fetched at
+     * the same time.
+     * @return a report listing the vaults that were fetched, and
+     * the exceptions from those that failed.
+     */
+    public CBatchResult fetchMessagesFrom
+        (List<CLinkedVault> vaults, IProgressMonitor monitor, int nthreads)
+        throws IOException
+    {
+        check(State.UNLOCKED);
+
+        final IProgressMonitor smon = CWorkers.synchronizedMonitor(monitor);
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.VAULT_POLL);
+        try {
+            CBatchResult ret = CWorkers.runAll
+                (vaults, nthreads, "fetch", new CWorkers.VaultTask() {
+                        public void run(CLinkedVault lv)
+                            throws IOException
+                        { fetchOutboxes(lv, smon); }
+                    }, m_io_executor);
+            timer.stop();
+            return ret;
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
+        }
+        finally {
+            saveURLKeys();
         }
     }
 
@@ -520,6 +776,33 @@ public class CVault
      */
     public void fetchMessagesFrom(CLinkedVault lv, IProgressMonitor monitor)
         throws IOException
+    {
+        try { fetchOutboxes(lv, monitor); }
+        finally {
+            saveURLKeys();
+        }
+    }
+
+    // Fetch messages from a linked vault, leaving any new urlkeys
+    // for the caller to save.
+    private void fetchOutboxes(CLinkedVault lv, IProgressMonitor monitor)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.VAULT_FETCH);
+        try {
+            doFetchOutboxes(lv, monitor);
+            timer.stop();
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
+        }
+    }
+
+    private void doFetchOutboxes(CLinkedVault lv, IProgressMonitor monitor)
+        throws IOException
     {
         // 1. Poll vault for any changes in the outbox_list
         File f = updateCache(lv.getOutboxListURL(), monitor, true);
@@ -532,6 +815,8 @@ public class CVault
         JSONArray outbox_array = outbox_json.optJSONArray("outbox_list");
         if (outbox_array == null) { return; }
 
+        CURLKeyCache urlkeys = getURLKeys();
+        Set<String> seen = new HashSet<String>();
         List<URL> outboxes = new ArrayList<URL>();
         for (int i=0; i<outbox_array.length(); i++) {
             JSONObject outbox = outbox_array.optJSONObject(i);
@@ -539,29 +824,56 @@ public class CVault
             String urlkey = outbox.optString("outbox");
             if (urlkey == null) { continue; }
 
+            // Only decrypt keys we haven't seen before; most belong
+            // to other recipients, and we remember those too.
+            String digest = CUtils.shasum(urlkey);
+            seen.add(digest);
+            String decoded = urlkeys.get(lv.getId(), digest);
+            if (decoded == null) {
+                // Remember keys we can never read as "", but try
+                // again on the next poll after any other failure.
+                try { decoded = decryptString(urlkey, lv.getSigningKey()); }
+                catch (CPGPUtils.UnreadableException ue) {}
+                catch (IOException ioe) {
+                    s_logger.log(Level.WARNING, "Skip outbox key", ioe);
+                    continue;
+                }
+                catch (RuntimeException rte) {
+                    s_logger.log(Level.WARNING, "Skip outbox key", rte);
+                    continue;
+                }
+                if (decoded == null) { decoded = ""; }
+                urlkeys.put(lv.getId(), digest, decoded);
+            }
+            if (decoded.length() == 0) { continue; }
+
             // Attempt to decode content as a URL if possible.
             URL url = null;
-            try { url = new URL(decryptString(urlkey, lv.getSigningKey())); }
-            catch (Throwable ign) {}
+            try { url = new URL(decoded); }
+            catch (MalformedURLException ign) {}
             if (url != null) { outboxes.add(url); }
         }
+        urlkeys.retain(lv.getId(), seen);
 
         // 2. For each outbox, poll for any changes.
-        for (URL outbox_url: outboxes) {
+        if (outboxes.size() == 0) { return; }
+        if (outboxes.size() == 1) {
+            URL outbox_url = outboxes.get(0);
             f = updateCache(outbox_url, monitor, false);
-            if (f == null) {
-                // no changes, skip.
-                continue;
+            if (f != null) {
+                // 3. Decrypt and store outbox contents
+                decryptOutbox(outbox_url, f, lv, monitor);
             }
-            // 3. Decrypt and store outbox contents
-            decryptOutbox(f, lv);
+            return;
         }
+        pollOutboxes(outboxes, lv, monitor);
     }
 
     /**
      * Fetch an arbitrary URL that was supposed to be created by
      * the given linked vault. The contents are fetched, decrypted,
-     * and its signature verified.
+     * and its signature verified. The stages run on separate threads,
+     * and the target is only replaced once all the checks pass.
      *
      * @param source URL to fetch the content
      * @param creator is the linked vault expected to have created the
@@ -574,34 +886,60 @@ public class CVault
          IProgressMonitor monitor)
         throws IOException
     {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.VAULT_FETCH_CONTENT);
         boolean ok = false;
-        File tmp = m_lprovider.createTempFile("thormor", "pgp");
+        File tmp = null;
+        File part = new File(target.getPath()+".part");
         BufferedOutputStream bout = null;
         BufferedInputStream bin = null;
         try {
-            // 1. Download data to temporary file.
-            m_rprovider.download
-                (new CDownloadInfo(source, tmp, true, -1, null),
-                 monitor);
+            if (m_rprovider instanceof IStreamingRemoteProvider) {
+                // 1. Read ciphertext straight off the wire.
+                bin = new BufferedInputStream
+                    (((IStreamingRemoteProvider) m_rprovider).openDownload
+                     (new CDownloadInfo(source, null, true, -1, null),
+                      monitor));
+            }
+            else {
+                // 1. Download data to temporary file.
+                tmp = m_lprovider.createTempFile("thormor", "pgp");
+                m_rprovider.download
+                    (new CDownloadInfo(source, tmp, true, -1, null),
+                     monitor);
+                bin = new BufferedInputStream
+                    (new FileInputStream(tmp));
+            }
 
-            // 2. Decrypt, verify and dump to target file.
-            bin = new BufferedInputStream
-                (new FileInputStream(tmp));
+            // 2. Decrypt, verify and dump to a partial file.
             bout = new BufferedOutputStream
-                (new FileOutputStream(CUtils.makeParents(target)));
+                (new FileOutputStream(CUtils.makeParents(part)));
             SingleStreamFactory ssf = new SingleStreamFactory(bout);
             CPGPUtils.decrypt(bin, ssf, 
                               m_settings.getPrivateEncryptionKey(),
-                              creator.getSigningKey());
+                              creator.getSigningKey(), m_slot_hints,
+                              stageExecutor());
             bout = null;
             if (ssf.hasFailed()) {
                 throw new IOException("Unable to decrypt "+source);
             }
 
+            // 3. Everything checks out, so put it in place.
+            if (!part.renameTo(target)) {
+                target.delete();
+                if (!part.renameTo(target)) {
+                    throw new IOException("Unable to create "+target);
+                }
+            }
             ok = true;
         }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
+        }
         finally {
-            tmp.delete();
+            if (tmp != null) { tmp.delete(); }
             if (bout != null) {
                 try { bout.close(); } 
                 catch (IOException ign) {}
@@ -610,8 +948,17 @@ public class CVault
                 try { bin.close(); }
                 catch (IOException ioe) {}
             }
-            if (!ok) { target.delete(); }
+            if (!ok) { part.delete(); }
+        }
+
+        // 4. Content kept in the inbox can be evicted when space
+        // runs low.
+        CCacheManager manager = getCacheManager();
+        manager.recordMiss();
+        if (isUnder(target, creator.getInboxRoot())) {
+            manager.track(target);
         }
+        timer.stop();
     }
 
     /**
@@ -722,7 +1069,7 @@ public class CVault
                 (bin, buf.length, out, me,
                  m_settings.getPublicSigningKey(),
                  m_settings.getPrivateSigningKey(),
-                 path, new Date());
+                 path, new Date(), m_compression, stageExecutor());
             out.close();
             out = null;
         }
@@ -735,11 +1082,128 @@ public class CVault
         }
     }
 
+    /**
+     * As {@link #linkVault(URL, String, IProgressMonitor)}, but
+     * returns at once. The work is done on the IO executor if one
+     * is set, or else on a small shared pool, as are the other
+     * asynchronous methods; so many operations can be in flight
+     * without the caller tying up a thread for each.
+     */
+    public CFuture<CLinkedVault> linkVaultAsync
+        (final URL vaultid, final String alias,
+         final IProgressMonitor monitor)
+    {
+        return CFuture.submit
+            (ioExecutor(), new Callable<CLinkedVault>() {
+                public CLinkedVault call()
+                    throws IOException
+                { return linkVault(vaultid, alias, monitor); }
+            });
+    }
+
+    /**
+     * As {@link #postMessage(List, JSONObject, IProgressMonitor)},
+     * but returns at once.
+     */
+    public CFuture<Void> postMessageAsync
+        (final List<CLinkedVault> recipients, final JSONObject message,
+         final IProgressMonitor monitor)
+    {
+        return CFuture.submit
+            (ioExecutor(), new Callable<Void>() {
+                public Void call()
+                    throws IOException
+                {
+                    postMessage(recipients, message, monitor);
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * As {@link #postContent(List, File, IProgressMonitor)}, but
+     * returns at once.
+     */
+    public CFuture<URL> postContentAsync
+        (final List<CLinkedVault> recipients, final File source,
+         final IProgressMonitor monitor)
+    {
+        return CFuture.submit
+            (ioExecutor(), new Callable<URL>() {
+                public URL call()
+                    throws IOException
+                { return postContent(recipients, source, monitor); }
+            });
+    }
+
+    /**
+     * As {@link #fetchContent(URL, CLinkedVault, File,
+     * IProgressMonitor)}, but returns at once.
+     *
+     * @return a future for the target file.
+     */
+    public CFuture<File> fetchContentAsync
+        (final URL source, final CLinkedVault creator, final File target,
+         final IProgressMonitor monitor)
+    {
+        return CFuture.submit
+            (ioExecutor(), new Callable<File>() {
+                public File call()
+                    throws IOException
+                {
+                    fetchContent(source, creator, target, monitor);
+                    return target;
+                }
+            });
+    }
+
+    /**
+     * As {@link #fetchMessagesFrom(CLinkedVault, IProgressMonitor)},
+     * but returns at once.
+     */
+    public CFuture<Void> fetchMessagesFromAsync
+        (final CLinkedVault lv, final IProgressMonitor monitor)
+    {
+        return CFuture.submit
+            (ioExecutor(), new Callable<Void>() {
+                public Void call()
+                    throws IOException
+                {
+                    fetchMessagesFrom(lv, monitor);
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * As {@link #fetchMessagesFrom(List, IProgressMonitor, int)},
+     * but returns at once.
+     */
+    public CFuture<CBatchResult> fetchMessagesFromAsync
+        (final List<CLinkedVault> vaults, final IProgressMonitor monitor,
+         final int nthreads)
+    {
+        return CFuture.submit
+            (ioExecutor(), new Callable<CBatchResult>() {
+                public CBatchResult call()
+                    throws IOException
+                { return fetchMessagesFrom(vaults, monitor, nthreads); }
+            });
+    }
+
     public ILocalProvider getLocalProvider()
     { return m_lprovider; }
     public IRemoteProvider getRemoteProvider()
     { return m_rprovider; }
 
+    /**
+     * @return an asynchronous view of the remote provider. Requests
+     * made through a blocking provider run where the asynchronous
+     * methods do.
+     */
+    public IAsyncRemoteProvider getAsyncRemoteProvider()
+    { return CAsyncProviders.async(m_rprovider, ioExecutor()); }
+
     // package protected
     CSettings getSettings()
     { return m_settings; }
@@ -753,6 +1217,73 @@ public class CVault
         }
     }
 
+    // Note that a linked vault has unsaved changes, and arrange for
+    // them to be saved shortly. Changes made in quick succession are
+    // saved together.
+    void scheduleFlush(CLinkedVault lv)
+    {
+        synchronized (m_dirty) {
+            m_dirty.add(lv);
+            if (m_flush_pending) { return; }
+            m_flush_pending = true;
+        }
+        getFlusher().schedule(new Runnable() {
+                public void run()
+                {
+                    try { flushDirty(); }
+                    catch (IOException ioe) {
+                        s_logger.log
+                            (Level.WARNING, "Unable to save changes", ioe);
+                    }
+                }
+            }, FLUSH_DELAY_MSEC, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushDirty()
+        throws IOException
+    {
+        m_flush_lock.lock();
+        try {
+            if (getState() != State.UNLOCKED) { return; }
+            flushDirtyLocked();
+        }
+        finally {
+            m_flush_lock.unlock();
+        }
+    }
+
+    private void flushDirtyLocked()
+        throws IOException
+    {
+        List<CLinkedVault> dirty;
+        synchronized (m_dirty) {
+            dirty = new ArrayList<CLinkedVault>(m_dirty);
+            m_dirty.clear();
+            m_flush_pending = false;
+        }
+        IOException first = null;
+        for (CLinkedVault lv: dirty) {
+            try { lv.flush(); }
+            catch (IOException ioe) {
+                if (first == null) { first = ioe; }
+                // retry with the next flush.
+                synchronized (m_dirty) { m_dirty.add(lv); }
+            }
+        }
+        if (first != null) { throw first; }
+    }
+
+    private ScheduledExecutorService getFlusher()
+    {
+        synchronized (m_dirty) {
+            if (m_flusher == null) {
+                m_flusher = Executors.newSingleThreadScheduledExecutor
+                    (CWorkers.newThreadFactory("flush"));
+            }
+            return m_flusher;
+        }
+    }
+
     // gather encryption keys from recipients.
     private List<PGPPublicKey> getEncryptionKeys(List<CLinkedVault> targets)
     {
@@ -773,14 +1304,22 @@ public class CVault
         return ret;
     }
 
-    // Create a unique file from a URL. etags and timestamps
-    // are potentially recorded in a file with the same name,
-    // but with a ".meta" extension.
-    private File getCacheFileFor(URL url)
+    // The index of everything in the download cache.
+    private synchronized CCacheIndex getCacheIndex()
+    {
+        if (m_cache_index == null) {
+            m_cache_index = new CCacheIndex
+                (m_lprovider.getCacheFileFor(CACHE_ROOT));
+            m_cache_manager = new CCacheManager(m_cache_index);
+        }
+        return m_cache_index;
+    }
+
+    private static boolean isUnder(File file, File dir)
+        throws IOException
     {
-        return CUtils.makeParents
-            (m_lprovider.getCacheFileFor
-             ("my/cached/"+CUtils.shasum(url.toString())));
+        String root = dir.getCanonicalPath()+File.separator;
+        return file.getCanonicalPath().startsWith(root);
     }
 
     // cache response from this url locally if possible, and return
@@ -790,17 +1329,36 @@ public class CVault
                              boolean always_return_file)
         throws IOException
     {
-        File file = getCacheFileFor(url);
+        CCacheIndex index = getCacheIndex();
+        String key = CUtils.shasum(url.toString());
+
+        // hold off eviction of this file until it is up to date.
+        ReentrantLock lock = index.getLock(key);
+        lock.lock();
+        try {
+            return updateCacheLocked
+                (index, key, url, monitor, always_return_file);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private File updateCacheLocked
+        (CCacheIndex index, String key, URL url, IProgressMonitor monitor,
+         boolean always_return_file)
+        throws IOException
+    {
+        File file = index.getFile(key);
 
         String etag = null;
         long timestamp = -1;
 
         // Check if we have any metadata for this file.
-        File meta = new File(file.getParent(), file.getName()+".meta");
-        if (file.canRead() && meta.canRead()) {
-            JSONObject metajs = CUtils.readJSON(meta);
-            etag = metajs.optString("etag");
-            timestamp = metajs.optLong("timestamp", -1);
+        CCacheIndex.Entry entry = index.get(key);
+        if ((entry != null) && file.canRead()) {
+            etag = entry.getEtag();
+            timestamp = entry.getTimestamp();
         }
 
         // Now download the file
@@ -808,16 +1366,17 @@ public class CVault
         IRemoteProvider.DownloadStatus status =
             m_rprovider.download(di, monitor);
 
-        // Update etag and timestamp if appropriate.
-        if ((timestamp != di.getTimestamp()) ||
-            ((etag == null) && (di.getEtag() != null)) ||
-            ((etag != null) && !etag.equals(di.getEtag()))) {
-            JSONObject metajs = new JSONObject();
-            CUtils.put(metajs, "timestamp", di.getTimestamp());
-            if (di.getEtag() != null) {
-                CUtils.put(metajs, "etag", di.getEtag());
-            }
-            CUtils.writeJSON(meta, metajs);
+        // Update etag, timestamp and size if appropriate.
+        index.put(key, di.getEtag(), di.getTimestamp(), file.length());
+        CCacheManager manager = getCacheManager();
+        if (status == IRemoteProvider.DownloadStatus.FULL_DOWNLOAD) {
+            CMetrics.count(CMetrics.VAULT_CACHE_DOWNLOADED, 1);
+            manager.recordMiss();
+            manager.maybeEvict();
+        }
+        else {
+            CMetrics.count(CMetrics.VAULT_CACHE_NOT_MODIFIED, 1);
+            manager.recordHit();
         }
 
         if (always_return_file ||
@@ -827,6 +1386,12 @@ public class CVault
         return null;
     }
 
+    // Drop cached metadata for this url, so the next update
+    // downloads it again.
+    private void forgetCache(URL url)
+        throws IOException
+    { getCacheIndex().remove(CUtils.shasum(url.toString())); }
+
     // attempt to decrypt signed string
     private String decryptString(String src, PGPPublicKey from_pubkey)
         throws IOException
@@ -836,7 +1401,7 @@ public class CVault
         ByteArrayInputStream bin =
             new ByteArrayInputStream(CUtils.getBytes(src));
         CPGPUtils.decrypt(bin, ssf, m_settings.getPrivateEncryptionKey(),
-                          from_pubkey);
+                          from_pubkey, m_slot_hints);
         bin.close(); bin = null;
         if (ssf.hasFailed()) { return null; }
         return new String(bout.toByteArray(), "utf-8");
@@ -895,7 +1460,7 @@ public class CVault
         CPGPUtils.sign(bin, jsbuf.length, bout,
                        settings.getPublicSigningKey(),
                        settings.getPrivateSigningKey(),
-                       name, new Date());
+                       name, new Date(), m_compression);
         bout.close();
 
         if (monitor != null) {
@@ -911,9 +1476,225 @@ public class CVault
         }
     }
 
+    // Splice message into the outbox for this recipient, and upload
+    // it. Once the head of the outbox grows past a segment, its older
+    // entries are sealed into a separate immutable upload, so only
+    // the new segment and a small manifest are ever uploaded. The
+    // local outbox is updated only after the uploads succeed. Posts
+    // to the same recipient run one at a time.
+    private void postMessageTo
+        (CLinkedVault recipient, JSONObject message, IProgressMonitor monitor)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.VAULT_POST_MESSAGE);
+        recipient.getPostLock().lock();
+        try {
+            doPostMessageTo(recipient, message, monitor);
+            timer.stop();
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
+        }
+        finally {
+            recipient.getPostLock().unlock();
+        }
+    }
+
+    private void doPostMessageTo
+        (CLinkedVault recipient, JSONObject message, IProgressMonitor monitor)
+        throws IOException
+    {
+        // 1. Splice message into recipient outbox.
+        JSONObject outbox = recipient.mergeLocalOutbox(message);
+
+        // 2. If there were updates
+        if (outbox == null) { return; }
+
+        // 3. Seal and upload any overflowing segments, unless older
+        // readers must still find every message in the entries.
+        JSONArray segment;
+        while (m_segmented &&
+               ((segment = CLinkedVault.takeOutboxSegment(outbox)) != null)) {
+            JSONObject segjs = new JSONObject();
+            CUtils.put(segjs, "version", CLinkedVault.OUTBOX_VERSION);
+            CUtils.put(segjs, "entries", segment);
+            URL segurl = encryptAndUploadFor
+                (recipient, segjs, "segment.json",
+                 "outbox/"+m_settings.getGUID()+"/"+
+                 recipient.getMessageKey()+"-"+
+                 CUtils.shasum(UUID.randomUUID().toString()),
+                 null, monitor);
+            CLinkedVault.addOutboxSegment(outbox, segurl, segment);
+        }
+
+        // 4. Upload the manifest to its usual location.
+        encryptAndUploadFor
+            (recipient, CLinkedVault.toPublishedOutbox(outbox),
+             "outbox.json", null, recipient.getPublishOutboxURL(), monitor);
+
+        // 5. persist changes. The caller saves the outbox once all
+        // recipients are done, or leaves it to the next flush.
+        recipient.writeLocalOutbox(outbox);
+        recipient.markPosted(message);
+    }
+
+    // Save outboxes changed by a post before it returns, so the
+    // message is not forgotten if the application exits right
+    // away; unless saves are deferred.
+    private void saveOutboxes(Collection<CLinkedVault> recipients)
+        throws IOException
+    {
+        if (m_defer_saves) { return; }
+        for (CLinkedVault lv: recipients) { lv.flush(); }
+    }
+
+    // Encrypt json for a single recipient to a temporary file, and
+    // upload it either as a new file or over an existing url.
+    private URL encryptAndUploadFor
+        (CLinkedVault recipient, JSONObject json, String inname,
+         String name, URL update, IProgressMonitor monitor)
+        throws IOException
+    {
+        byte[] buf = CUtils.getBytes(json.toString());
+        ByteArrayInputStream bin = new ByteArrayInputStream(buf);
+        long inlen = buf.length;
+        buf = null;
+
+        File tmp = m_lprovider.createTempFile("thormor", "pgp");
+        BufferedOutputStream bout = null;
+        try {
+            // 1. Encrypt json to temp file
+            List<PGPPublicKey> key = new ArrayList<PGPPublicKey>();
+            key.add(recipient.getEncryptionKey());
+            bout = new BufferedOutputStream
+                (new FileOutputStream(tmp));
+            CPGPUtils.encrypt
+                (bin, inlen, bout, key,
+                 m_settings.getPublicSigningKey(),
+                 m_settings.getPrivateSigningKey(),
+                 inname, new Date(), m_compression, stageExecutor());
+            bout.close();
+            bout = null;
+
+            // 2. Upload encrypted json to target.
+            return m_rprovider.upload
+                (new CUploadInfo(tmp, true, name, update), monitor);
+        }
+        finally {
+            if (bout != null) {
+                try { bout.close(); } 
+                catch (IOException ioe) {}
+            }
+            tmp.delete();
+        }
+    }
+
+    private synchronized CURLKeyCache getURLKeys()
+    {
+        if (m_urlkeys == null) { m_urlkeys = new CURLKeyCache(this); }
+        return m_urlkeys;
+    }
+
+    // The urlkey cache can always be rebuilt, so failing to save it
+    // should not fail a fetch.
+    private void saveURLKeys()
+    {
+        CURLKeyCache urlkeys;
+        synchronized (this) { urlkeys = m_urlkeys; }
+        if (urlkeys == null) { return; }
+        try { urlkeys.save(m_settings.getLinkedVaults()); }
+        catch (IOException ioe) {
+            s_logger.log(Level.WARNING, "Unable to save urlkeys", ioe);
+        }
+    }
+
+    // Poll several outboxes at once on the IO executor, which never
+    // queues them behind this fetch, or else on the shared poll
+    // pool; and decrypt each one on this thread as soon as its
+    // download finishes. Outboxes that fail to download don't hold up the
+    // rest; the first such failure is thrown at the end.
+    private void pollOutboxes
+        (List<URL> outboxes, CLinkedVault lv, IProgressMonitor monitor)
+        throws IOException
+    {
+        final IProgressMonitor smon = CWorkers.synchronizedMonitor(monitor);
+        CompletionService<File> polls =
+            new ExecutorCompletionService<File>
+            ((m_io_executor != null)?m_io_executor:getPollPool());
+        Map<Future<File>,URL> pending = new HashMap<Future<File>,URL>();
+        for (final URL outbox_url: outboxes) {
+            pending.put(polls.submit(new Callable<File>() {
+                    public File call()
+                        throws IOException
+                    { return updateCache(outbox_url, smon, false); }
+                }), outbox_url);
+        }
+
+        IOException first = null;
+        try {
+            while (pending.size() > 0) {
+                Future<File> done = polls.take();
+                URL outbox_url = pending.remove(done);
+                File f;
+                try { f = done.get(); }
+                catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof IOException) {
+                        if (first == null) { first = (IOException) cause; }
+                        continue;
+                    }
+                    if (cause instanceof Error) { throw (Error) cause; }
+                    throw new RuntimeException(cause);
+                }
+                if (f != null) {
+                    // 3. Decrypt and store outbox contents
+                    decryptOutbox(outbox_url, f, lv, smon);
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while polling");
+        }
+        finally {
+            for (Future<File> rest: pending.keySet()) { rest.cancel(true); }
+        }
+        if (first != null) { throw first; }
+    }
+
+    // Where the asynchronous methods run.
+    private ExecutorService ioExecutor()
+    {
+        ExecutorService ret = m_io_executor;
+        return (ret != null)?ret:CWorkers.asyncExecutor();
+    }
+
+    // Where the stages of streamed uploads and pipelined decrypts
+    // run. The IO executor starts every task at once, so it serves.
+    private ExecutorService stageExecutor()
+    {
+        ExecutorService ret = m_io_executor;
+        return (ret != null)?ret:CWorkers.stageExecutor();
+    }
+
+    // Shared by all fetches, and kept separate from the pools that
+    // fan out over linked vaults so the two never wait on each other.
+    private synchronized ExecutorService getPollPool()
+    {
+        if (m_poll_pool == null) {
+            m_poll_pool = Executors.newFixedThreadPool
+                (POLL_THREADS, CWorkers.newThreadFactory("poll"));
+        }
+        return m_poll_pool;
+    }
+
     // Given an encrypted outbox file, decrypt and save it in our
     // message store.
-    private void decryptOutbox(File f, CLinkedVault lv)
+    private void decryptOutbox(URL outbox_url, File f, CLinkedVault lv,
+                               IProgressMonitor monitor)
         throws IOException
     {
         // 1. Attempt to decrypt the file into memory
@@ -921,10 +1702,32 @@ public class CVault
         try {
             inbox = decryptJSON
                 ("outbox from "+lv.getId(), f, lv.getSigningKey());
+
+            // 2. Add messages from sealed segments.
+            JSONArray segments = inbox.optJSONArray("segments");
+            if (segments != null) {
+                JSONArray entries = inbox.optJSONArray("entries");
+                if (entries == null) {
+                    entries = new JSONArray();
+                    CUtils.put(inbox, "entries", entries);
+                }
+                for (int i=0; i<segments.length(); i++) {
+                    JSONObject seginfo = segments.optJSONObject(i);
+                    if (seginfo == null) { continue; }
+                    JSONArray segment = readSegment
+                        (new URL(seginfo.optString("url")), lv, monitor);
+                    for (int j=0; j<segment.length(); j++) {
+                        entries.put(segment.opt(j));
+                    }
+                }
+                inbox.remove("segments");
+            }
         }
         catch (IOException ioe) {
             // Ignore errors here -- the vault may be unreachable, or
-            // not fully initialized.
+            // not fully initialized. Forget the cached outbox so we
+            // try again on the next fetch.
+            forgetCache(outbox_url);
             System.out.println
                 ("Messages from "+((lv.getAlias()!=null)?
                                  lv.getAlias():lv.getId())+
@@ -932,9 +1735,41 @@ public class CVault
             return;
         }
 
-        // 2. Save it under our message store under the key for this vault.
-        File inboxf = m_lprovider.getFileFor(lv.getInboxJSONPath());
-        CUtils.writeJSON(inboxf, inbox);
+        // 3. Save it under our message store under the key for this
+        // vault, keeping messages that came through its other outboxes.
+        lv.writeLocalInbox
+            (CLinkedVault.mergeInbox(lv.readLocalInbox(), inbox));
+    }
+
+    // Segments never change once uploaded, so each one is only
+    // downloaded and decrypted once, and kept in the inbox for
+    // this vault.
+    private JSONArray readSegment
+        (URL url, CLinkedVault lv, IProgressMonitor monitor)
+        throws IOException
+    {
+        File segf = m_lprovider.getFileFor
+            (lv.getSegmentPath(CUtils.shasum(url.toString())));
+        if (segf.canRead()) {
+            return CUtils.readJSON(segf).optJSONArray("entries");
+        }
+
+        File tmp = m_lprovider.createTempFile("thormor", "pgp");
+        try {
+            m_rprovider.download
+                (new CDownloadInfo(url, tmp, true, -1, null), monitor);
+            JSONObject segjs = decryptJSON
+                ("segment from "+lv.getId(), tmp, lv.getSigningKey());
+            JSONArray ret = segjs.optJSONArray("entries");
+            if (ret == null) {
+                throw new IOException("Missing entries in segment "+url);
+            }
+            CUtils.writeJSON(segf, segjs);
+            return ret;
+        }
+        finally {
+            tmp.delete();
+        }
     }
 
     // Decrypt as memory stream
@@ -953,7 +1788,8 @@ public class CVault
             inp =
                 new BufferedInputStream(new FileInputStream(inf));
             CPGPUtils.decrypt
-                (inp, memfact,m_settings.getPrivateEncryptionKey(),from_pubkey);
+                (inp, memfact, m_settings.getPrivateEncryptionKey(),
+                 from_pubkey, m_slot_hints);
         }
         finally {
             if (inp != null) { inp.close(); }
@@ -973,7 +1809,31 @@ public class CVault
          String inname, IProgressMonitor monitor)
         throws IOException
     {
-            // 1. Encrypt to temporary file
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.VAULT_POST_CONTENT);
+        try {
+            URL ret = doEncryptAndUpload
+                (recipients, in, inlen, inname, monitor);
+            timer.stop();
+            return ret;
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+        catch (RuntimeException rte) {
+            throw timer.failed(rte);
+        }
+    }
+
+    private final URL doEncryptAndUpload
+        (List<CLinkedVault> recipients, InputStream in, long inlen,
+         String inname, IProgressMonitor monitor)
+        throws IOException
+    {
+        if (m_rprovider instanceof IStreamingRemoteProvider) {
+            return encryptAndStream(recipients, in, inlen, inname, monitor);
+        }
+
+        // 1. Encrypt to temporary file
         List<PGPPublicKey> keys = getEncryptionKeys(recipients);
         File tmp = m_lprovider.createTempFile("thormor", "pgp");
         DigestOutputStream dout = null;
@@ -987,7 +1847,7 @@ public class CVault
                 (in, inlen, dout, keys,
                  m_settings.getPublicSigningKey(),
                  m_settings.getPrivateSigningKey(),
-                 inname, new Date());
+                 inname, new Date(), m_compression, stageExecutor());
             dout.close();
             sha_out = CUtils.toHex
                 (dout.getMessageDigest().digest());
@@ -1014,6 +1874,64 @@ public class CVault
         }
     }
 
+    // encrypt and sign as a separate stage, while the provider
+    // uploads the ciphertext as it is produced. The two sides are
+    // joined by a bounded pipe, so memory use stays flat.
+    private final URL encryptAndStream
+        (List<CLinkedVault> recipients, final InputStream in,
+         final long inlen, final String inname, IProgressMonitor monitor)
+        throws IOException
+    {
+        final List<PGPPublicKey> keys = getEncryptionKeys(recipients);
+        final CPipe pipe = new CPipe(PIPE_CHUNK_SIZE, PIPE_CHUNK_COUNT);
+        Future<?> encryptor = stageExecutor().submit
+            (new Runnable() {
+                public void run()
+                {
+                    OutputStream out = pipe.getOutputStream();
+                    try {
+                        CPGPUtils.encrypt
+                            (in, inlen, out, keys,
+                             m_settings.getPublicSigningKey(),
+                             m_settings.getPrivateSigningKey(),
+                             inname, new Date(), m_compression, stageExecutor());
+                        out.close();
+                    }
+                    catch (Throwable th) {
+                        pipe.fail(th);
+                    }
+                    finally {
+                        try { in.close(); } catch (IOException ign){};
+                    }
+                }
+            });
+
+        // The ciphertext hash is only known once the upload is
+        // over, and the ciphertext is unique anyway -- so use a
+        // random name rather than a content hash.
+        InputStream pin = pipe.getInputStream();
+        try {
+            return ((IStreamingRemoteProvider) m_rprovider).uploadStream
+                (new CUploadInfo
+                 (null, true, "content/"+
+                  CUtils.shasum(UUID.randomUUID().toString())+".pgp"),
+                 pin, -1, monitor);
+        }
+        catch (IOException ioe) {
+            // report the encryption failure, if that was the cause.
+            Throwable failure = pipe.getFailure();
+            if (failure != null) {
+                throw CUtils.insert
+                    (new IOException("Unable to encrypt "+inname), failure);
+            }
+            throw ioe;
+        }
+        finally {
+            pin.close();
+            CWorkers.awaitStage(encryptor);
+        }
+    }
+
     // check required fields in json message.
     private final static void checkRequiredFields
         (List<CLinkedVault> recipients, JSONObject message)
@@ -1038,6 +1956,44 @@ public class CVault
     private final ILocalProvider m_lprovider;
     private CSettings m_settings;
 
+    // linked vaults with changes yet to be saved.
+    private final Set<CLinkedVault> m_dirty =
+        new LinkedHashSet<CLinkedVault>();
+    private boolean m_flush_pending = false;
+    // not a monitor, as it is held while saving files; this keeps
+    // virtual threads from pinning their carrier while they wait.
+    private final ReentrantLock m_flush_lock = new ReentrantLock();
+    private ScheduledExecutorService m_flusher = null;
+    private final static long FLUSH_DELAY_MSEC = 2000;
+    private volatile boolean m_defer_saves = false;
+    private volatile boolean m_segmented = false;
+
+    // polls outboxes for fetches.
+    private ExecutorService m_poll_pool = null;
+    private volatile ExecutorService m_io_executor = null;
+    private final static int POLL_THREADS = 4;
+
+    // metadata for downloaded files.
+    private CCacheIndex m_cache_index = null;
+    private CCacheManager m_cache_manager = null;
+    private final static String CACHE_ROOT = "my/cached";
+
+    // decoded urlkeys from outbox lists.
+    private CURLKeyCache m_urlkeys = null;
+
+    // how content is compressed.
+    private volatile CCompressionPolicy m_compression =
+        new CCompressionPolicy();
+
+    // which session decrypted for us in earlier content.
+    private final CSlotHints m_slot_hints = new CSlotHints();
+    private final static Logger s_logger =
+        Logger.getLogger(CVault.class.getName());
+
+    // buffering between the encryptor and streaming uploads.
+    private final static int PIPE_CHUNK_SIZE = 1<<16;
+    private final static int PIPE_CHUNK_COUNT = 16;
+
     // helper classes
     private final static class SingleStreamFactory
         implements CPGPUtils.StreamFactory
@@ -0,0 +1,194 @@
+package org.thormor.vault;
+
+// Helpers to run vault operations on a small pool of worker threads.
+
+import org.thormor.provider.IProgressMonitor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class CWorkers
+{
+    // Work to be applied to a single linked vault.
+    interface VaultTask
+    {
+        public void run(CLinkedVault lv)
+            throws IOException;
+    }
+
+    // Run the task over every target, using no more than nthreads
+    // threads at a time. Each linked vault is handled start to
+    // finish by a single task, so work within a vault stays in
+    // order. Failures are collected rather than thrown, so one bad
+    // vault does not stop the rest.
+    //
+    // The tasks run on the executor if there is one, else on a pool
+    // made for the purpose.
+    static CBatchResult runAll
+        (List<CLinkedVault> targets, int nthreads, String name,
+         final VaultTask task, ExecutorService executor)
+        throws IOException
+    {
+        if (nthreads < 1) {
+            throw new IllegalArgumentException
+                ("Need atleast one thread, not "+nthreads);
+        }
+        CBatchResult ret = new CBatchResult();
+        if (targets.size() == 0) { return ret; }
+
+        int npool = Math.min(nthreads, targets.size());
+        ExecutorService pool = executor;
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(npool, newThreadFactory(name));
+        }
+        // bounds the tasks in flight on a shared executor.
+        final Semaphore slots = new Semaphore(npool);
+        List<Future<Void>> pending = new ArrayList<Future<Void>>();
+        try {
+            for (final CLinkedVault lv: targets) {
+                slots.acquire();
+                boolean submitted = false;
+                try {
+                    pending.add(pool.submit(new Callable<Void>() {
+                            public Void call()
+                                throws IOException
+                            {
+                                try { task.run(lv); }
+                                finally { slots.release(); }
+                                return null;
+                            }
+                        }));
+                    submitted = true;
+                }
+                finally {
+                    if (!submitted) { slots.release(); }
+                }
+            }
+            for (int i=0; i<targets.size(); i++) {
+                CLinkedVault lv = targets.get(i);
+                try {
+                    pending.get(i).get();
+                    ret.addCompleted(lv);
+                }
+                catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof Exception) {
+                        ret.addFailure(lv, (Exception) cause);
+                    }
+                    else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    else {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+            return ret;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during "+name);
+        }
+        finally {
+            if (executor == null) { pool.shutdownNow(); }
+            else {
+                for (Future<Void> f: pending) { f.cancel(true); }
+            }
+        }
+    }
+
+    // The pool that runs the vault's asynchronous operations. It is
+    // bounded, so a burst of requests queues up rather than
+    // starting a thread for each.
+    static synchronized ExecutorService asyncExecutor()
+    {
+        if (s_async == null) {
+            s_async = Executors.newFixedThreadPool
+                (Math.max(4, 2*Runtime.getRuntime().availableProcessors()),
+                 newThreadFactory("async"));
+        }
+        return s_async;
+    }
+
+    // The pool that runs the stages of a streaming pipeline, eg: the
+    // decryptor feeding a reader through a pipe. Stages wait on each
+    // other, so each must get a thread at once; the pool is
+    // unbounded, and reuses threads between streams.
+    static synchronized ExecutorService stageExecutor()
+    {
+        if (s_stage == null) {
+            s_stage = Executors.newCachedThreadPool(newThreadFactory("stage"));
+        }
+        return s_stage;
+    }
+
+    // Wait for a pipeline stage to finish. Stages report failures
+    // through their pipe, so only an interrupt is passed on.
+    static void awaitStage(Future<?> stage)
+    {
+        try { stage.get(); }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ign) {}
+    }
+
+    // True for a thread pool that queues tasks once a fixed number
+    // of threads are busy. A task that waits for another queued
+    // behind it on such a pool can wait forever.
+    static boolean isBounded(ExecutorService executor)
+    {
+        if (!(executor instanceof ThreadPoolExecutor)) { return false; }
+        ThreadPoolExecutor tpe = (ThreadPoolExecutor) executor;
+        if (tpe.getCorePoolSize() == Integer.MAX_VALUE) { return false; }
+        return
+            (tpe.getMaximumPoolSize() < Integer.MAX_VALUE) ||
+            (tpe.getQueue().remainingCapacity() > 0);
+    }
+
+    // Daemon threads, so an abandoned pool never keeps the
+    // application alive.
+    static ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread
+                    (r, "thormor-"+name+"-"+m_count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+            private final AtomicInteger m_count = new AtomicInteger();
+        };
+    }
+
+    // Progress monitors are not expected to be thread-safe, so
+    // serialize calls into them from worker threads.
+    static IProgressMonitor synchronizedMonitor(final IProgressMonitor mon)
+    {
+        if (mon == null) { return null; }
+        return new IProgressMonitor() {
+            public synchronized void status(String message)
+            { mon.status(message); }
+            public synchronized void update(long completed, long total)
+            { mon.update(completed, total); }
+        };
+    }
+
+    private CWorkers()
+    {}
+
+    private static ExecutorService s_async = null;
+    private static ExecutorService s_stage = null;
+}
@@ -11,7 +11,10 @@ package org.thormor.provider.remote.googlesites;
  * application.
  */
 
+import org.thormor.metrics.CMetrics;
 import org.thormor.provider.IRemoteProvider;
+import org.thormor.provider.IStreamingRemoteProvider;
+import org.thormor.provider.CRetryableException;
 import org.thormor.provider.IProgressMonitor;
 import org.thormor.provider.CDownloadInfo;
 import org.thormor.provider.CUploadInfo;
@@ -23,6 +26,8 @@ import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 
 import java.util.Properties;
 import java.util.Map;
@@ -40,7 +45,7 @@ import org.json2012.JSONException;
 import org.w3c.dom.Element;
 
 public class CGoogleSitesProvider
-    implements IRemoteProvider
+    implements IStreamingRemoteProvider
 {
     /**
      * Create an unauthenticated provider. The provider will
@@ -216,6 +221,9 @@ public class CGoogleSitesProvider
     public void postUnlockHook(CVault vault)
         throws IOException
     {
+        // Pick up edit links saved from earlier sessions.
+        loadEditURLs(vault.getLocalProvider().getCacheFileFor(EDITURLS_PATH));
+
         // We use this hook to either save credentials, or try
         // to read saved credentials.
         if (hasCredentials()) {
@@ -259,6 +267,149 @@ public class CGoogleSitesProvider
 
     public URL upload(CUploadInfo info, IProgressMonitor mon)
         throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_UPLOAD);
+        try {
+            URL ret = uploadFile(info, mon);
+            CMetrics.count
+                (CMetrics.PROVIDER_UPLOAD_BYTES, info.getSource().length());
+            timer.stop();
+            return ret;
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    public URL uploadStream
+        (CUploadInfo info, InputStream in, long length, IProgressMonitor mon)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_UPLOAD);
+        try {
+            URL ret = uploadFromStream
+                (info, CMetrics.meter(in, CMetrics.PROVIDER_UPLOAD_BYTES),
+                 length, mon);
+            timer.stop();
+            return ret;
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    public void delete(URL url, IProgressMonitor mon)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_DELETE);
+        try {
+            deleteContent(url, mon);
+            timer.stop();
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    public DownloadStatus download(CDownloadInfo info, IProgressMonitor mon)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_DOWNLOAD);
+        try {
+            HttpURLConnection con = openGet(info, mon);
+            if (con == null) {
+                timer.stop();
+                return DownloadStatus.NO_UPDATES;
+            }
+            InputStream inp = U.getResponse(con);
+            try { U.copy(inp, info.getTarget()); }
+            finally {
+                try { inp.close(); } catch (IOException ign) {}
+            }
+            CMetrics.count
+                (CMetrics.PROVIDER_DOWNLOAD_BYTES, info.getTarget().length());
+            timer.stop();
+            return DownloadStatus.FULL_DOWNLOAD;
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    public InputStream openDownload(CDownloadInfo info, IProgressMonitor mon)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_DOWNLOAD);
+        try {
+            // Never send conditional headers, the caller always
+            // wants the content.
+            CDownloadInfo uncond = new CDownloadInfo
+                (info.getSource(), null, info.isPublic(), -1, null);
+            HttpURLConnection con = openGet(uncond, mon);
+            info.setTimestamp(uncond.getTimestamp());
+            info.setEtag(uncond.getEtag());
+            return timer.stopWhenDone
+                (CMetrics.meter
+                 (U.getResponse(con), CMetrics.PROVIDER_DOWNLOAD_BYTES));
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    /**
+     * @return true if the provider has obtained user credentials and
+     * has selected a domain for the vault.
+     */
+    public boolean hasCredentials()
+    {
+        return ((m_access_token != null) &&
+                (m_refresh_token != null) &&
+                (m_site_id != null) &&
+                (m_vault_id != null));
+    }
+
+    // private helpers
+    private final static String getProperty(Properties p, String k)
+    {
+        String ret = p.getProperty(k);
+        if (ret == null) {
+            throw new IllegalStateException
+                ("Missing property '"+k+"' in "+PROPS_PATH);
+        }
+        return ret;
+    }
+
+    private synchronized final void maybeRefreshTokens(IProgressMonitor mon)
+        throws IOException
+    {
+        if (m_refresh_token == null) {
+            throw new CredentialsException
+                ("Please authenticate with Google Sites");
+        }
+        if ((m_access_token != null) &&
+            (System.currentTimeMillis() < m_valid_until)) {
+            return;
+        }
+
+        // attempt to fetch a new access token.
+        Map<String,String> params = new HashMap<String,String>();
+        params.put("refresh_token", m_refresh_token);
+        params.put("client_id", m_clientid);
+        params.put("client_secret", m_clientsecret);
+        params.put("grant_type", "refresh_token");
+        JSONObject resp = U.getJSON(U.post(new URL(REFRESH_URL), params, mon));
+        m_access_token = resp.optString("access_token");
+        int delta = resp.optInt("expires_in", 3600);
+        if (m_access_token == null) {
+            throw new IOException("Unable to refresh token");
+        }
+        if (delta > 600) { delta -= 300; }
+        m_valid_until = System.currentTimeMillis()+delta*1000;
+    }
+
+    private URL uploadFile(CUploadInfo info, IProgressMonitor mon)
+        throws IOException
     {
         maybeRefreshTokens(mon);
         if (!hasCredentials()) {
@@ -267,7 +418,18 @@ public class CGoogleSitesProvider
 
         URL prior = info.getUpdateURL();
         if (prior != null) {
-            URL editurl = new URL(findEditURL(prior, "edit-media", mon));
+            String cached = getCachedEditURL(prior, "edit-media");
+            if (cached != null) {
+                try {
+                    update(new URL(cached), info.getSource(), mon);
+                    return prior;
+                }
+                catch (FileNotFoundException fnfe) {
+                    // stale link, look it up again.
+                    forgetEditURL(prior);
+                }
+            }
+            URL editurl = new URL(scanEditURL(prior, "edit-media", mon));
             update(editurl, info.getSource(), mon);
             return prior;
         }
@@ -276,7 +438,8 @@ public class CGoogleSitesProvider
         }
     }
 
-    public void delete(URL url, IProgressMonitor mon)
+    private URL uploadFromStream
+        (CUploadInfo info, InputStream in, long length, IProgressMonitor mon)
         throws IOException
     {
         maybeRefreshTokens(mon);
@@ -284,11 +447,60 @@ public class CGoogleSitesProvider
             throw new IllegalStateException("missing vault info");
         }
 
-        URL editurl = new URL(findEditURL(url, "edit", mon));
+        URL prior = info.getUpdateURL();
+        if (prior != null) {
+            // The stream cannot be replayed, so a stale link is
+            // only dropped here, and looked up again next time.
+            URL editurl = new URL(findEditURL(prior, "edit-media", mon));
+            try {
+                discardStream
+                    (U.authPutStream(editurl, m_access_token, in, length, mon),
+                     mon);
+            }
+            catch (FileNotFoundException fnfe) {
+                forgetEditURL(prior);
+                throw fnfe;
+            }
+            return prior;
+        }
+        else {
+            return parseUploadResponse
+                (U.authPostMultiStream
+                 (new URL(SITES_CONTENT_PFX+m_site_id), m_access_token,
+                  makeUploadEntry(info), in, length, mon));
+        }
+    }
+
+    private void deleteContent(URL url, IProgressMonitor mon)
+        throws IOException
+    {
+        maybeRefreshTokens(mon);
+        if (!hasCredentials()) {
+            throw new IllegalStateException("missing vault info");
+        }
+
+        String cached = getCachedEditURL(url, "edit");
+        if (cached != null) {
+            try {
+                doDelete(new URL(cached), mon);
+                forgetEditURL(url);
+                return;
+            }
+            catch (FileNotFoundException fnfe) {
+                // stale link, look it up again.
+                forgetEditURL(url);
+            }
+        }
+        URL editurl = new URL(scanEditURL(url, "edit", mon));
         doDelete(editurl, mon);
+        forgetEditURL(url);
     }
 
-    public DownloadStatus download(CDownloadInfo info, IProgressMonitor mon)
+    // Send a GET (following redirects) and return the connection
+    // once it is ready to deliver content, or null if the content
+    // has not been modified. Any timestamps or etags are updated in
+    // the info parameter.
+    private HttpURLConnection openGet(CDownloadInfo info, IProgressMonitor mon)
         throws IOException
     {
         URL src = info.getSource();
@@ -304,7 +516,7 @@ public class CGoogleSitesProvider
                 mon.status("Downloading "+src);
             }
 
-            HttpURLConnection con = (HttpURLConnection) src.openConnection();
+            HttpURLConnection con = U.open(src);
             if (modts != null) {
                 con.setRequestProperty("if-modified-since", modts);
             }
@@ -315,92 +527,54 @@ public class CGoogleSitesProvider
             int code = con.getResponseCode();
             // process as appropriate
             if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
-                return DownloadStatus.NO_UPDATES;
+                CMetrics.count(CMetrics.PROVIDER_NOT_MODIFIED, 1);
+                U.discard(con);
+                return null;
             }
             if (code == HttpURLConnection.HTTP_OK) {
-                U.copy(con.getInputStream(), info.getTarget());
                 // Set any timestamps or etags
                 info.setTimestamp(con.getHeaderFieldDate("last-modified", 0));
                 info.setEtag(con.getHeaderField("etag"));
-                return DownloadStatus.FULL_DOWNLOAD;
+                return con;
             }
             // check for redirects
             if ((code == HttpURLConnection.HTTP_MOVED_TEMP) ||
                 (code == HttpURLConnection.HTTP_MOVED_PERM)) {
                 src = new URL(con.getHeaderField("location"));
+                U.discard(con);
                 continue;
             }
+            String msg = src+" returned "+code+": "+con.getResponseMessage();
+            U.discard(con);
 
             // bail appropriately on 400, which are effectively
             // permanent errors.
             if ((code >= 400) && (code < 500)) {
-                throw new IOException
-                    (src+" returned "+code+": "+ con.getResponseMessage());
+                throw new IOException(msg);
             }
             // bail on 500s, which may be temporary errors
             if ((code >= 500) && (code < 600)) {
-                throw new RetryException
-                    (src+" returned "+code+": "+con.getResponseMessage());
+                throw new RetryException(msg);
             }
             // bail because we're dumb.
-            throw new IOException
-                (src+" returned "+code+": "+con.getResponseMessage());
+            throw new IOException(msg);
         }
         throw new IOException("Too many redirects");
     }
 
-    /**
-     * @return true if the provider has obtained user credentials and
-     * has selected a domain for the vault.
-     */
-    public boolean hasCredentials()
-    {
-        return ((m_access_token != null) &&
-                (m_refresh_token != null) &&
-                (m_site_id != null) &&
-                (m_vault_id != null));
-    }
-
-    // private helpers
-    private final static String getProperty(Properties p, String k)
-    {
-        String ret = p.getProperty(k);
-        if (ret == null) {
-            throw new IllegalStateException
-                ("Missing property '"+k+"' in "+PROPS_PATH);
-        }
-        return ret;
-    }
-
-    private final void maybeRefreshTokens(IProgressMonitor mon)
+    // Look for the edit link of previously uploaded content, first
+    // in the local index, and then in the filecabinet feed.
+    private String findEditURL(URL orig, String rel, IProgressMonitor mon)
         throws IOException
     {
-        if (m_refresh_token == null) {
-            throw new CredentialsException
-                ("Please authenticate with Google Sites");
-        }
-        if ((m_access_token != null) &&
-            (System.currentTimeMillis() < m_valid_until)) {
-            return;
-        }
-
-        // attempt to fetch a new access token.
-        Map<String,String> params = new HashMap<String,String>();
-        params.put("refresh_token", m_refresh_token);
-        params.put("client_id", m_clientid);
-        params.put("client_secret", m_clientsecret);
-        params.put("grant_type", "refresh_token");
-        JSONObject resp = U.getJSON(U.post(new URL(REFRESH_URL), params, mon));
-        m_access_token = resp.optString("access_token");
-        int delta = resp.optInt("expires_in", 3600);
-        if (m_access_token == null) {
-            throw new IOException("Unable to refresh token");
-        }
-        if (delta > 600) { delta -= 300; }
-        m_valid_until = System.currentTimeMillis()+delta*1000;
+        String ret = getCachedEditURL(orig, rel);
+        if (ret != null) { return ret; }
+        return scanEditURL(orig, rel, mon);
     }
 
-    private String findEditURL(URL orig, String rel, IProgressMonitor mon)
+    // Page through the filecabinet feed for the edit link. All
+    // entries seen along the way are added to the local index.
+    private String scanEditURL(URL orig, String rel, IProgressMonitor mon)
         throws IOException
     {
         // Call to list all the elements in the vault.
@@ -408,39 +582,55 @@ public class CGoogleSitesProvider
         URL url = new URL(SITES_CONTENT_PFX+m_site_id+"?parent="+pid);
         final String key = orig.toString();
 
-        do {
-            Element feed = U.getRoot
-                (U.authGet(url, m_access_token, mon));
-            for (Element entry: U.getChildren(feed, "entry")) {
-                Element content = U.getChild(entry, "content");
-                if (key.equals(content.getAttribute("src"))) {
-                    for (Element link: U.getChildren(entry, "link")) {
-                        if (rel.equals(link.getAttribute("rel"))) {
-                            return link.getAttribute("href");
+        try {
+            do {
+                Element feed = U.getRoot
+                    (U.authGet(url, m_access_token, mon));
+                for (Element entry: U.getChildren(feed, "entry")) {
+                    Element content = U.getChild(entry, "content");
+                    if (content == null) { continue; }
+                    String src = content.getAttribute("src");
+                    rememberEditURLs(src, entry);
+                    if (key.equals(src)) {
+                        String ret = getCachedEditURL(orig, rel);
+                        if (ret == null) {
+                            throw new IOException
+                                ("Unexpected -- no "+rel+" link");
                         }
+                        return ret;
                     }
-                    throw new IOException("Unexpected -- no "+rel+" link");
                 }
-            }
 
-            // continue searching if there is a next entry.
-            url = null;
-            for (Element flink: U.getChildren(feed, "link")) {
-                if ("next".equals(flink.getAttribute("rel"))) {
-                    url = new URL(flink.getAttribute("href"));
-                    break;
+                // continue searching if there is a next entry.
+                url = null;
+                for (Element flink: U.getChildren(feed, "link")) {
+                    if ("next".equals(flink.getAttribute("rel"))) {
+                        url = new URL(flink.getAttribute("href"));
+                        break;
+                    }
                 }
-            }
-            if (url == null) {
-                throw new IOException("Failed to find url "+orig);
-            }
-        } while (true);
+                if (url == null) {
+                    throw new IOException("Failed to find url "+orig);
+                }
+            } while (true);
+        }
+        finally {
+            saveEditURLs();
+        }
     }
 
     private URL uploadNew(CUploadInfo info, IProgressMonitor mon)
         throws IOException
     {
-        String xml =
+        return parseUploadResponse
+            (U.authPostMulti
+              (new URL(SITES_CONTENT_PFX+m_site_id), m_access_token,
+               makeUploadEntry(info), info.getSource(), mon));
+    }
+
+    private String makeUploadEntry(CUploadInfo info)
+    {
+        return
             "<entry xmlns='http://www.w3.org/2005/Atom'>"+
             "<category scheme='http://schemas.google.com/g/2005#kind' "+
             "term='http://schemas.google.com/sites/2008#attachment' "+
@@ -450,13 +640,12 @@ public class CGoogleSitesProvider
             "href='"+m_vault_id+"'/>"+
             "<title>"+U.htmlEncode(info.getSuggestedName())+"</title>"+
             "</entry>";
+    }
 
-        Element entry =
-            U.getRoot
-            (U.authPostMulti
-              (new URL(SITES_CONTENT_PFX+m_site_id), m_access_token,
-               xml, info.getSource(), mon));
-
+    private URL parseUploadResponse(InputStream resp)
+        throws IOException
+    {
+        Element entry = U.getRoot(resp);
         Element content = U.getChild(entry, "content");
         if (content == null) {
             throw new IOException("Unexpected -- no content url returned");
@@ -466,9 +655,100 @@ public class CGoogleSitesProvider
         if (urls == null) {
             throw new IOException("Unexpected -- no upload src url found");
         }
+
+        // remember edit links, as outboxes are updated later.
+        rememberEditURLs(urls, entry);
+        saveEditURLs();
         return new URL(urls);
     }
 
+    // The edit link index maps the content url of an uploaded file
+    // to its edit and edit-media links.
+    private synchronized String getCachedEditURL(URL orig, String rel)
+    {
+        Map<String,String> links = m_editurls.get(orig.toString());
+        if (links == null) { return null; }
+        return links.get(rel);
+    }
+
+    private synchronized void rememberEditURLs(String src, Element entry)
+    {
+        if (U.isEmpty(src)) { return; }
+        Map<String,String> links = new HashMap<String,String>();
+        for (Element link: U.getChildren(entry, "link")) {
+            String rel = link.getAttribute("rel");
+            if ("edit".equals(rel) || "edit-media".equals(rel)) {
+                links.put(rel, link.getAttribute("href"));
+            }
+        }
+        if (links.size() == 0) { return; }
+        if (!links.equals(m_editurls.get(src))) {
+            m_editurls.put(src, links);
+            m_editurls_dirty = true;
+        }
+    }
+
+    private void forgetEditURL(URL orig)
+        throws IOException
+    {
+        synchronized (this) {
+            if (m_editurls.remove(orig.toString()) == null) { return; }
+            m_editurls_dirty = true;
+        }
+        saveEditURLs();
+    }
+
+    private synchronized void loadEditURLs(File f)
+        throws IOException
+    {
+        // Links learned before the vault was unlocked are kept, and
+        // written out on the next save.
+        m_editurls_file = f;
+        m_editurls_dirty = (m_editurls.size() > 0);
+        if (!f.canRead()) { return; }
+
+        JSONObject js;
+        try { js = U.getJSON(new FileInputStream(f)); }
+        catch (IOException ioe) {
+            // just a cache, rebuild it as needed.
+            f.delete();
+            return;
+        }
+        String[] srcs = JSONObject.getNames(js);
+        if (srcs == null) { return; }
+        for (String src: srcs) {
+            JSONObject jlinks = js.optJSONObject(src);
+            if (jlinks == null) { continue; }
+            String[] rels = JSONObject.getNames(jlinks);
+            if (rels == null) { continue; }
+            Map<String,String> links = new HashMap<String,String>();
+            for (String rel: rels) {
+                links.put(rel, jlinks.optString(rel));
+            }
+            if (!m_editurls.containsKey(src)) {
+                m_editurls.put(src, links);
+            }
+        }
+    }
+
+    private synchronized void saveEditURLs()
+        throws IOException
+    {
+        if (!m_editurls_dirty || (m_editurls_file == null)) { return; }
+
+        JSONObject js = new JSONObject();
+        for (Map.Entry<String,Map<String,String>> entry:
+                 m_editurls.entrySet()) {
+            JSONObject jlinks = new JSONObject();
+            for (Map.Entry<String,String> link: entry.getValue().entrySet()) {
+                U.put(jlinks, link.getKey(), link.getValue());
+            }
+            U.put(js, entry.getKey(), jlinks);
+        }
+        U.writeJSON(m_editurls_file, js);
+        m_editurls_dirty = false;
+    }
+
     private void update(URL url, File payload, IProgressMonitor mon)
         throws IOException
     { discardStream(U.authPutFile(url, m_access_token, payload, mon), mon); }
@@ -500,6 +780,10 @@ public class CGoogleSitesProvider
     private String m_site_id;
     private String m_vault_id;
     private long m_valid_until;
+    private final Map<String,Map<String,String>> m_editurls =
+        new HashMap<String,Map<String,String>>();
+    private File m_editurls_file = null;
+    private boolean m_editurls_dirty = false;
 
     private final static String PROPS_PATH =
         "/org/thormor/provider/remote/googlesites/key.properties";
@@ -516,6 +800,7 @@ public class CGoogleSitesProvider
     private final static String REFRESH_URL =
         "https://accounts.google.com/o/oauth2/token";
     private final static String CREDS_PATH = "gsites/credentials.json";
+    private final static String EDITURLS_PATH = "gsites/editurls.json";
     private final static String SITES_CONTENT_PFX =
         "https://sites.google.com/feeds/content/site/";
 
@@ -536,7 +821,7 @@ public class CGoogleSitesProvider
      * this may be a temporary situation.
      */
     public static class RetryException
-        extends IOException
+        extends CRetryableException
     {
         static final long serialVersionUID = -8971373237370823162L;
         public RetryException(String s)
@@ -15,9 +15,9 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.InputStreamReader;
 import java.io.InputStream;
+import java.io.FilterInputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.File;
@@ -92,6 +92,42 @@ class U
         }
     }
 
+    static void writeJSON(File f, JSONObject js)
+        throws IOException
+    {
+        File p = f.getParentFile();
+        if ((p != null) && !p.exists()) {
+            p.mkdirs();
+        }
+        // write to a temporary file first, so readers never
+        // see a partial file.
+        File tmp = new File(f.getPath()+".tmp");
+        OutputStreamWriter w = null;
+        boolean ok = false;
+        try {
+            w = new OutputStreamWriter(new FileOutputStream(tmp), "utf-8");
+            js.write(w);
+            w.close();
+            w = null;
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                if (!tmp.renameTo(f)) {
+                    throw new IOException("Unable to rename "+tmp+" to "+f);
+                }
+            }
+            ok = true;
+        }
+        catch (JSONException jse) {
+            throw new IOException(jse);
+        }
+        finally {
+            if (w != null) {
+                try { w.close(); } catch (IOException ign) {}
+            }
+            if (!ok) { tmp.delete(); }
+        }
+    }
+
     static Element getRoot(InputStream inp)
         throws IOException
     {
@@ -175,9 +211,9 @@ class U
         if (mon != null) {
             mon.status("Fetching "+url);
         }
-        URLConnection con = url.openConnection();
+        HttpURLConnection con = open(url);
         auth(con, atok);
-        return con.getInputStream();
+        return getResponse(con);
     }
 
     static InputStream authPostString
@@ -188,14 +224,16 @@ class U
             mon.status("Posting to "+url);
         }
 
-        URLConnection con = url.openConnection();
+        byte[] body = getBytes(content);
+        HttpURLConnection con = open(url);
         con.setDoOutput(true);
+        con.setFixedLengthStreamingMode(body.length);
         auth(con, atok);
         con.setRequestProperty("Content-type", "application/atom+xml");
-        OutputStreamWriter wr = new OutputStreamWriter(con.getOutputStream());
-        wr.write(content);
-        wr.flush();
-        return con.getInputStream();
+        OutputStream os = con.getOutputStream();
+        try { os.write(body); }
+        finally { os.close(); }
+        return getResponse(con);
     }
 
     static String epoch2str(long msec)
@@ -210,53 +248,43 @@ class U
         (URL url,String atok,String content,File payload,IProgressMonitor mon)
         throws IOException
     {
-        if (mon != null) {
-            mon.status("Uploading to "+url);
+        FileInputStream fin = new FileInputStream(payload);
+        try {
+            return authPostMulti
+                (url, atok, content, fin, payload.length(), mon);
+        }
+        finally {
+            try { fin.close(); } catch (IOException ign) {}
         }
-
-        URLConnection con = url.openConnection();
-        con.setDoOutput(true);
-        auth(con, atok);
-        con.setRequestProperty("Content-type", "multipart/related; boundary="+
-                               BOUNDARY);
-
-        OutputStream os = con.getOutputStream();
-
-        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
-        bw.write("--"+BOUNDARY+"\r\n");
-        bw.write("Content-type: application/atom+xml\r\n\r\n");
-        bw.write(content);
-        bw.flush();
-        bw.write("\r\n--"+BOUNDARY+"\r\n");
-        bw.write("Content-Type: application/octet-stream\r\n\r\n");
-        bw.flush();
-        copy(payload, os);
-        bw.write("\r\n--"+BOUNDARY+"--\r\n");
-        bw.flush();
-        return con.getInputStream();
     }
 
+    // paylen may be -1 if the length of the payload is not known
+    // in advance.
+    static InputStream authPostMultiStream
+        (URL url,String atok,String content,InputStream payload,
+         long paylen, IProgressMonitor mon)
+        throws IOException
+    { return authPostMulti(url, atok, content, payload, paylen, mon); }
+
     static InputStream authPutFile
         (URL url,String atok,File payload,IProgressMonitor mon)
         throws IOException
     {
-        if (mon != null) {
-            mon.status("Updating "+url);
+        FileInputStream fin = new FileInputStream(payload);
+        try { return authPut(url, atok, fin, payload.length(), mon); }
+        finally {
+            try { fin.close(); } catch (IOException ign) {}
         }
-
-        HttpURLConnection con = (HttpURLConnection)url.openConnection();
-        con.setDoOutput(true);
-        con.setRequestMethod("PUT");
-        auth(con, atok);
-        con.setRequestProperty("Content-type", "application/octet-stream");
-        con.setRequestProperty("If-Match", "*");
-
-        OutputStream os = con.getOutputStream();
-        copy(payload, os);
-        os.flush();
-        return con.getInputStream();
     }
 
+    // paylen may be -1 if the length of the payload is not known
+    // in advance.
+    static InputStream authPutStream
+        (URL url,String atok,InputStream payload,long paylen,
+         IProgressMonitor mon)
+        throws IOException
+    { return authPut(url, atok, payload, paylen, mon); }
+
     static InputStream authDelete
         (URL url, String atok, IProgressMonitor mon)
         throws IOException
@@ -265,11 +293,11 @@ class U
             mon.status("Deleting "+url);
         }
 
-        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+        HttpURLConnection con = open(url);
         con.setRequestMethod("DELETE");
         auth(con, atok);
         con.setRequestProperty("If-Match", "*");
-        return con.getInputStream();
+        return getResponse(con);
     }
 
     static void copy(InputStream inp, File target)
@@ -297,26 +325,6 @@ class U
         }
     }
 
-    static void copy(File src, OutputStream out)
-        throws IOException
-    {
-        FileInputStream fin = null;
-        try {
-            fin = new FileInputStream(src);
-            byte[] buf = new byte[8192];
-            int nread;
-
-            while ((nread = fin.read(buf)) > 0) {
-                out.write(buf, 0, nread);
-            }
-        }
-        finally {
-            if (fin != null) {
-                try { fin.close(); } catch (IOException ign) {}
-            }
-        }
-    }
-
     static InputStream post
         (URL url, Map<String,String> params, IProgressMonitor mon)
         throws IOException
@@ -324,9 +332,6 @@ class U
         if (mon != null) {
             mon.status("Posting to "+url);
         }
-        URLConnection con = url.openConnection();
-        con.setDoOutput(true);
-
         StringBuilder sb = new StringBuilder();
         boolean first = true;
         for (String k: params.keySet()) {
@@ -336,10 +341,97 @@ class U
             sb.append("=");
             sb.append(URLEncoder.encode(params.get(k), "utf-8"));
         }
-        OutputStreamWriter wr = new OutputStreamWriter(con.getOutputStream());
-        wr.write(sb.toString());
-        wr.flush();
-        return con.getInputStream();
+        byte[] body = getBytes(sb.toString());
+        HttpURLConnection con = open(url);
+        con.setDoOutput(true);
+        con.setFixedLengthStreamingMode(body.length);
+        con.setRequestProperty
+            ("Content-type", "application/x-www-form-urlencoded");
+        OutputStream os = con.getOutputStream();
+        try { os.write(body); }
+        finally { os.close(); }
+        return getResponse(con);
+    }
+
+    // Open a connection with our timeouts. The JDK keeps connections
+    // alive and reuses them for later requests to the same host,
+    // but only once the previous response was read to its end and
+    // closed -- so always go through getResponse() or discard().
+    static HttpURLConnection open(URL url)
+        throws IOException
+    {
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setConnectTimeout(CONNECT_TIMEOUT_MSEC);
+        con.setReadTimeout(READ_TIMEOUT_MSEC);
+        con.setUseCaches(false);
+        return con;
+    }
+
+    // The response body, which drains any unread bytes when closed.
+    // On an error, the error body is drained before the exception is
+    // passed on; the response code remains available. Server errors
+    // are reported as RetryExceptions.
+    static InputStream getResponse(HttpURLConnection con)
+        throws IOException
+    {
+        try { return new DrainingInputStream(con.getInputStream()); }
+        catch (IOException ioe) {
+            drain(con.getErrorStream());
+            // 5xx errors may be temporary.
+            int code = con.getResponseCode();
+            if ((code >= 500) && (code < 600)) {
+                throw new CGoogleSitesProvider.RetryException
+                    (con.getURL()+" returned "+code+": "+
+                     con.getResponseMessage());
+            }
+            throw ioe;
+        }
+    }
+
+    // Read and close whatever response the connection has, so it can
+    // be reused.
+    static void discard(HttpURLConnection con)
+    {
+        InputStream inp;
+        try { inp = con.getInputStream(); }
+        catch (IOException ioe) {
+            inp = con.getErrorStream();
+        }
+        drain(inp);
+    }
+
+    private static void drain(InputStream inp)
+    {
+        if (inp == null) { return; }
+        try {
+            byte[] buf = new byte[8192];
+            long left = MAX_DRAIN;
+            int nread;
+            while ((left > 0) && ((nread = inp.read(buf)) >= 0)) {
+                left -= nread;
+            }
+        }
+        catch (IOException ign) {}
+        finally {
+            try { inp.close(); } catch (IOException ign) {}
+        }
+    }
+
+    private final static class DrainingInputStream
+        extends FilterInputStream
+    {
+        private DrainingInputStream(InputStream in)
+        { super(in); }
+
+        public void close()
+            throws IOException
+        {
+            if (m_closed) { return; }
+            m_closed = true;
+            drain(in);
+        }
+
+        private boolean m_closed = false;
     }
 
     // purely to avoid checked exceptions
@@ -380,6 +472,105 @@ class U
     }
 
     // private helpers
+    private static InputStream authPostMulti
+        (URL url,String atok,String content,InputStream payload,
+         long paylen,IProgressMonitor mon)
+        throws IOException
+    {
+        if (mon != null) {
+            mon.status("Uploading to "+url);
+        }
+
+        byte[] head = getBytes
+            ("--"+BOUNDARY+"\r\n"+
+             "Content-type: application/atom+xml\r\n\r\n"+
+             content+
+             "\r\n--"+BOUNDARY+"\r\n"+
+             "Content-Type: application/octet-stream\r\n\r\n");
+        byte[] tail = getBytes("\r\n--"+BOUNDARY+"--\r\n");
+
+        HttpURLConnection con = open(url);
+        con.setDoOutput(true);
+        long total = -1;
+        if (paylen >= 0) {
+            total = head.length + paylen + tail.length;
+        }
+        setStreamingMode(con, total);
+        auth(con, atok);
+        con.setRequestProperty("Content-type", "multipart/related; boundary="+
+                               BOUNDARY);
+
+        OutputStream os = con.getOutputStream();
+        long sent;
+        try {
+            os.write(head);
+            sent = copy(payload, os, head.length, total, mon);
+            os.write(tail);
+        }
+        finally {
+            os.close();
+        }
+        if (mon != null) {
+            mon.update(sent+tail.length, total);
+        }
+        return getResponse(con);
+    }
+
+    private static InputStream authPut
+        (URL url,String atok,InputStream payload,long paylen,
+         IProgressMonitor mon)
+        throws IOException
+    {
+        if (mon != null) {
+            mon.status("Updating "+url);
+        }
+
+        HttpURLConnection con = open(url);
+        con.setDoOutput(true);
+        setStreamingMode(con, paylen);
+        con.setRequestMethod("PUT");
+        auth(con, atok);
+        con.setRequestProperty("Content-type", "application/octet-stream");
+        con.setRequestProperty("If-Match", "*");
+
+        OutputStream os = con.getOutputStream();
+        try { copy(payload, os, 0, paylen, mon); }
+        finally { os.close(); }
+        return getResponse(con);
+    }
+
+    // Without a streaming mode, HttpURLConnection holds the entire
+    // request body in memory before sending it.
+    private static void setStreamingMode(HttpURLConnection con, long total)
+    {
+        if ((total >= 0) && (total <= Integer.MAX_VALUE)) {
+            con.setFixedLengthStreamingMode((int) total);
+        }
+        else {
+            con.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+    }
+
+    // copy, and report progress as bytes are written. Returns the
+    // number of bytes sent so far, including the starting offset.
+    private static long copy
+        (InputStream inp, OutputStream out, long sent, long total,
+         IProgressMonitor mon)
+        throws IOException
+    {
+        byte[] buf = new byte[CHUNK_SIZE];
+        int nread;
+
+        while ((nread = inp.read(buf)) > 0) {
+            out.write(buf, 0, nread);
+            sent += nread;
+            if (mon != null) {
+                mon.update(sent, total);
+            }
+        }
+        return sent;
+    }
+
     private static void auth(URLConnection con, String atok)
     {
         con.setRequestProperty("Authorization", "Bearer "+atok);
@@ -387,6 +578,12 @@ class U
     }
 
     private final static String BOUNDARY = "THIS_IS_A_BOUNDARY";
+    private final static int CHUNK_SIZE = 1<<16;
+    private final static int CONNECT_TIMEOUT_MSEC = 30*1000;
+    private final static int READ_TIMEOUT_MSEC = 60*1000;
+    // responses longer than this are not worth reading just to
+    // reuse the connection.
+    private final static long MAX_DRAIN = 1<<16;
     private final static SimpleDateFormat s_dateformat;
     static
     {
@@ -0,0 +1,603 @@
+package org.thormor.provider.remote.simulated;
+
+/**
+ * This remote provider keeps files in memory, or under a local
+ * directory, and simulates the behavior of a slow and unreliable
+ * network service. It is meant for load tests and benchmarks that
+ * should not depend on a real network.
+ *
+ * Each kind of request can be given its own latency distribution
+ * and error rate, and transfers can be capped to a bandwidth.
+ * Downloads honor etags and modification times just as an http
+ * server would, so conditional fetches behave realistically.
+ * Counters record the requests made, and what happened to them;
+ * requests are also reported to any {@link CMetrics}, as a real
+ * provider would.
+ *
+ * Injected errors are thrown as {@link CRetryableException}s
+ * before the request has any effect, like a server that is
+ * temporarily unavailable. A missing file results in a
+ * FileNotFoundException.
+ */
+
+import org.thormor.metrics.CMetrics;
+import org.thormor.provider.IStreamingRemoteProvider;
+import org.thormor.provider.CRetryableException;
+import org.thormor.provider.IProgressMonitor;
+import org.thormor.provider.CDownloadInfo;
+import org.thormor.provider.CUploadInfo;
+import org.thormor.vault.CVault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.FilterInputStream;
+import java.io.InterruptedIOException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
+import java.net.URL;
+import java.net.MalformedURLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CSimulatedProvider
+    implements IStreamingRemoteProvider
+{
+    /**
+     * The kinds of requests that can be configured separately.
+     */
+    public enum Request {
+        UPLOAD, DOWNLOAD, DELETE
+    };
+
+    /**
+     * A distribution of request latencies.
+     */
+    public abstract static class Latency
+    {
+        /**
+         * @return the next latency in milliseconds.
+         */
+        public abstract long next(Random random);
+
+        /**
+         * @return a latency that is always the same.
+         */
+        public static Latency fixed(final long msec)
+        {
+            return new Latency() {
+                public long next(Random random)
+                { return msec; }
+            };
+        }
+
+        /**
+         * @return a latency chosen evenly between min and max.
+         */
+        public static Latency uniform(final long min, final long max)
+        {
+            return new Latency() {
+                public long next(Random random)
+                { return min + (long) (random.nextDouble() * (max - min)); }
+            };
+        }
+
+        /**
+         * @return a log-normal latency, which has the long tail seen
+         * in real services.
+         * @param median is the median latency in milliseconds.
+         * @param sigma is the spread; 0.5 gives a 99th percentile
+         * about three times the median.
+         */
+        public static Latency logNormal(final long median, final double sigma)
+        {
+            return new Latency() {
+                public long next(Random random)
+                {
+                    return (long)
+                        (median * Math.exp(sigma * random.nextGaussian()));
+                }
+            };
+        }
+    }
+
+    /**
+     * Create a provider that keeps files in memory.
+     *
+     * @param base is the url under which files appear.
+     */
+    public CSimulatedProvider(URL base)
+    { this(base, null); }
+
+    /**
+     * Create a provider that keeps files under a directory. Files
+     * already there may be downloaded.
+     *
+     * @param base is the url under which files appear.
+     * @param root is the directory, or null to keep files in memory.
+     */
+    public CSimulatedProvider(URL base, File root)
+    {
+        m_base = base;
+        m_root = root;
+        for (Request r: Request.values()) {
+            m_latency.put(r, NO_LATENCY);
+            m_error_rate.put(r, 0.0);
+            m_requests.put(r, new AtomicLong());
+            m_errors.put(r, new AtomicLong());
+        }
+    }
+
+    public synchronized CSimulatedProvider setLatency
+        (Request request, Latency latency)
+    {
+        m_latency.put(request, latency);
+        return this;
+    }
+
+    /**
+     * Set the latency of all requests.
+     */
+    public synchronized CSimulatedProvider setLatency(Latency latency)
+    {
+        for (Request r: Request.values()) { m_latency.put(r, latency); }
+        return this;
+    }
+
+    /**
+     * @param rate is the fraction of requests of this kind that
+     * fail, between 0 and 1.
+     */
+    public synchronized CSimulatedProvider setErrorRate
+        (Request request, double rate)
+    {
+        if ((rate < 0) || (rate > 1)) {
+            throw new IllegalArgumentException("Bad rate: "+rate);
+        }
+        m_error_rate.put(request, rate);
+        return this;
+    }
+
+    /**
+     * Set the error rate of all requests.
+     */
+    public synchronized CSimulatedProvider setErrorRate(double rate)
+    {
+        for (Request r: Request.values()) { setErrorRate(r, rate); }
+        return this;
+    }
+
+    /**
+     * Limit how fast each transfer may go.
+     *
+     * @param bytes_per_sec is the limit, or zero for no limit.
+     */
+    public synchronized CSimulatedProvider setBandwidth(long bytes_per_sec)
+    {
+        m_bandwidth = Math.max(0, bytes_per_sec);
+        return this;
+    }
+
+    /**
+     * Seed the random choices of latencies and errors, so a run
+     * can be repeated.
+     */
+    public synchronized CSimulatedProvider setSeed(long seed)
+    {
+        m_random.setSeed(seed);
+        return this;
+    }
+
+    /**
+     * @return the number of requests of this kind, including
+     * those that failed.
+     */
+    public long getRequests(Request request)
+    { return m_requests.get(request).get(); }
+
+    /**
+     * @return the number of injected errors for this kind of request.
+     */
+    public long getErrors(Request request)
+    { return m_errors.get(request).get(); }
+
+    /**
+     * @return the number of downloads answered with NO_UPDATES.
+     */
+    public long getNotModified()
+    { return m_not_modified.get(); }
+
+    public long getBytesUploaded()
+    { return m_bytes_up.get(); }
+
+    public long getBytesDownloaded()
+    { return m_bytes_down.get(); }
+
+    /**
+     * Set all counters back to zero.
+     */
+    public void resetCounters()
+    {
+        for (Request r: Request.values()) {
+            m_requests.get(r).set(0);
+            m_errors.get(r).set(0);
+        }
+        m_not_modified.set(0);
+        m_bytes_up.set(0);
+        m_bytes_down.set(0);
+    }
+
+    public URL upload(CUploadInfo info, IProgressMonitor mon)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(info.getSource());
+        try { return doUpload(info, in, mon); }
+        finally { in.close(); }
+    }
+
+    public URL uploadStream
+        (CUploadInfo info, InputStream in, long length, IProgressMonitor mon)
+        throws IOException
+    { return doUpload(info, in, mon); }
+
+    public void delete(URL url, IProgressMonitor mon)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_DELETE);
+        try {
+            doDelete(url, mon);
+            timer.stop();
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    public DownloadStatus download(CDownloadInfo info, IProgressMonitor mon)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_DOWNLOAD);
+        try {
+            DownloadStatus ret = doDownload(info, mon);
+            timer.stop();
+            return ret;
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    public InputStream openDownload(CDownloadInfo info, IProgressMonitor mon)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_DOWNLOAD);
+        try {
+            return timer.stopWhenDone(openGet(info, false, mon));
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    public void postUnlockHook(CVault vault)
+    {}
+
+    // private helpers
+
+    private void doDelete(URL url, IProgressMonitor mon)
+        throws IOException
+    {
+        begin(Request.DELETE, "Deleting "+url, mon);
+        String path = pathFor(url);
+        boolean found = (m_files.remove(path) != null);
+        if (m_root != null) {
+            found = fileFor(path).delete() || found;
+        }
+        if (!found) { throw new FileNotFoundException(url.toString()); }
+    }
+
+    private DownloadStatus doDownload(CDownloadInfo info, IProgressMonitor mon)
+        throws IOException
+    {
+        InputStream in = openGet(info, true, mon);
+        if (in == null) { return DownloadStatus.NO_UPDATES; }
+        FileOutputStream out = null;
+        try {
+            File target = info.getTarget();
+            File parent = target.getParentFile();
+            if ((parent != null) && !parent.isDirectory()) { parent.mkdirs(); }
+            out = new FileOutputStream(target);
+            copy(in, out);
+        }
+        finally {
+            in.close();
+            if (out != null) { out.close(); }
+        }
+        return DownloadStatus.FULL_DOWNLOAD;
+    }
+
+    // Start a request, waiting out its latency and possibly failing.
+    private void begin(Request request, String what, IProgressMonitor mon)
+        throws IOException
+    {
+        if (mon != null) { mon.status(what); }
+        m_requests.get(request).incrementAndGet();
+        long delay;
+        boolean fail;
+        synchronized (this) {
+            delay = m_latency.get(request).next(m_random);
+            fail = (m_random.nextDouble() < m_error_rate.get(request));
+        }
+        sleep(delay);
+        if (fail) {
+            m_errors.get(request).incrementAndGet();
+            throw new CRetryableException
+                ("Simulated failure: "+what);
+        }
+    }
+
+    private URL doUpload(CUploadInfo info, InputStream in, IProgressMonitor mon)
+        throws IOException
+    {
+        CMetrics.Timer timer = CMetrics.timer(CMetrics.PROVIDER_UPLOAD);
+        try {
+            URL ret = store(info, in, mon);
+            timer.stop();
+            return ret;
+        }
+        catch (IOException ioe) {
+            throw timer.failed(ioe);
+        }
+    }
+
+    private URL store(CUploadInfo info, InputStream in, IProgressMonitor mon)
+        throws IOException
+    {
+        URL url = info.getUpdateURL();
+        if (url == null) {
+            url = new URL(m_base, info.getSuggestedName());
+        }
+        begin(Request.UPLOAD, "Uploading to "+url, mon);
+        String path = pathFor(url);
+
+        // Read it all before storing anything, so a failed upload
+        // leaves any previous content alone. Files are written
+        // alongside and renamed into place, and only the metadata is
+        // kept in memory.
+        byte[] data = null;
+        long nbytes;
+        if (m_root != null) {
+            nbytes = storeFile(fileFor(path), throttle(in));
+        }
+        else {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            nbytes = copy(throttle(in), bout);
+            data = bout.toByteArray();
+        }
+        m_bytes_up.addAndGet(nbytes);
+        CMetrics.count(CMetrics.PROVIDER_UPLOAD_BYTES, nbytes);
+
+        m_files.put(path, new Meta
+                    ("\""+Long.toHexString(m_generation.incrementAndGet())+"\"",
+                     System.currentTimeMillis(), data));
+        return url;
+    }
+
+    // Open the content of a url, or return null if it is not newer
+    // than the etag or timestamp in the info. The info is updated
+    // with the current etag and timestamp.
+    private InputStream openGet
+        (CDownloadInfo info, boolean conditional, IProgressMonitor mon)
+        throws IOException
+    {
+        URL url = info.getSource();
+        begin(Request.DOWNLOAD, "Downloading "+url, mon);
+        String path = pathFor(url);
+
+        InputStream in;
+        long length;
+        Meta meta = m_files.get(path);
+        if (m_root == null) {
+            if (meta == null) { throw new FileNotFoundException(url.toString()); }
+            in = new ByteArrayInputStream(meta.m_data);
+            length = meta.m_data.length;
+        }
+        else {
+            File src = fileFor(path);
+            if (!src.isFile()) { throw new FileNotFoundException(url.toString()); }
+            if (meta == null) {
+                // A file put there by someone else.
+                meta = new Meta
+                    ("\""+Long.toHexString(src.lastModified())+"-"+
+                     Long.toHexString(src.length())+"\"", src.lastModified(),
+                     null);
+            }
+            in = new FileInputStream(src);
+            length = src.length();
+        }
+
+        if (conditional && !isModified(info, meta)) {
+            in.close();
+            m_not_modified.incrementAndGet();
+            CMetrics.count(CMetrics.PROVIDER_NOT_MODIFIED, 1);
+            return null;
+        }
+        info.setEtag(meta.m_etag);
+        info.setTimestamp(meta.m_timestamp);
+        m_bytes_down.addAndGet(length);
+        CMetrics.count(CMetrics.PROVIDER_DOWNLOAD_BYTES, length);
+        return throttle(in);
+    }
+
+    // As with http, a matching etag takes precedence, and
+    // timestamps are only compared to the second.
+    private static boolean isModified(CDownloadInfo info, Meta meta)
+    {
+        if (info.getEtag() != null) {
+            return !info.getEtag().equals(meta.m_etag);
+        }
+        if (info.getTimestamp() > 0) {
+            return (meta.m_timestamp/1000 > info.getTimestamp()/1000);
+        }
+        return true;
+    }
+
+    private static long storeFile(File target, InputStream in)
+        throws IOException
+    {
+        File parent = target.getParentFile();
+        if ((parent != null) && !parent.isDirectory()) { parent.mkdirs(); }
+        File tmp = File.createTempFile("upload", ".tmp", parent);
+        try {
+            long ret;
+            FileOutputStream out = new FileOutputStream(tmp);
+            try { ret = copy(in, out); }
+            finally { out.close(); }
+            if (!tmp.renameTo(target)) {
+                target.delete();
+                if (!tmp.renameTo(target)) {
+                    throw new IOException("Unable to replace "+target);
+                }
+            }
+            return ret;
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    private InputStream throttle(InputStream in)
+    {
+        long bw;
+        synchronized (this) { bw = m_bandwidth; }
+        if (bw == 0) { return in; }
+        return new ThrottledInputStream(in, bw);
+    }
+
+    private String pathFor(URL url)
+        throws IOException
+    {
+        String path = url.getPath();
+        if (path.startsWith("/")) { path = path.substring(1); }
+        if ((path.length() == 0) ||
+            path.equals("..") || path.startsWith("../") ||
+            (path.indexOf("/../") >= 0) || path.endsWith("/..")) {
+            throw new MalformedURLException("Bad path: "+url);
+        }
+        return path;
+    }
+
+    private File fileFor(String path)
+    { return new File(m_root, path); }
+
+    private static long copy(InputStream in, OutputStream out)
+        throws IOException
+    {
+        byte[] buf = new byte[8192];
+        long total = 0;
+        int nread;
+        while ((nread = in.read(buf)) > 0) {
+            out.write(buf, 0, nread);
+            total += nread;
+        }
+        return total;
+    }
+
+    private static void sleep(long msec)
+        throws IOException
+    {
+        if (msec <= 0) { return; }
+        try { Thread.sleep(msec); }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+
+    // What we know about a stored file, including its content
+    // when kept in memory.
+    private final static class Meta
+    {
+        private Meta(String etag, long timestamp, byte[] data)
+        {
+            m_etag = etag;
+            m_timestamp = timestamp;
+            m_data = data;
+        }
+        private final String m_etag;
+        private final long m_timestamp;
+        private final byte[] m_data;
+    }
+
+    // Delivers bytes no faster than the given rate, measured from
+    // when the stream was created.
+    private final static class ThrottledInputStream
+        extends FilterInputStream
+    {
+        private ThrottledInputStream(InputStream in, long bytes_per_sec)
+        {
+            super(in);
+            m_rate = bytes_per_sec;
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            int ret = super.read();
+            if (ret >= 0) { pace(1); }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len)
+            throws IOException
+        {
+            // Keep chunks small enough that pacing is smooth.
+            int max = (int) Math.max(1, Math.min(len, m_rate/10));
+            int ret = super.read(buf, off, max);
+            if (ret > 0) { pace(ret); }
+            return ret;
+        }
+
+        private void pace(int nread)
+            throws IOException
+        {
+            m_sent += nread;
+            long due = m_start + (m_sent * 1000)/m_rate;
+            sleep(due - System.currentTimeMillis());
+        }
+
+        private final long m_rate;
+        private final long m_start = System.currentTimeMillis();
+        private long m_sent = 0;
+    }
+
+    private final URL m_base;
+    private final File m_root;
+    private final Map<String,Meta> m_files =
+        new ConcurrentHashMap<String,Meta>();
+    private final Random m_random = new Random();
+    private final Map<Request,Latency> m_latency =
+        new EnumMap<Request,Latency>(Request.class);
+    private final Map<Request,Double> m_error_rate =
+        new EnumMap<Request,Double>(Request.class);
+    private final Map<Request,AtomicLong> m_requests =
+        new EnumMap<Request,AtomicLong>(Request.class);
+    private final Map<Request,AtomicLong> m_errors =
+        new EnumMap<Request,AtomicLong>(Request.class);
+    private final AtomicLong m_not_modified = new AtomicLong();
+    private final AtomicLong m_bytes_up = new AtomicLong();
+    private final AtomicLong m_bytes_down = new AtomicLong();
+    private final AtomicLong m_generation = new AtomicLong();
+    private long m_bandwidth = 0;
+
+    private final static Latency NO_LATENCY = Latency.fixed(0);
+}
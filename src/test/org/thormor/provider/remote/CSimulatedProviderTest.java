@@ -0,0 +1,183 @@
+package org.thormor.provider.remote;
+
+import org.thormor.provider.remote.simulated.CSimulatedProvider;
+import org.thormor.metrics.CMetrics;
+import org.thormor.metrics.CMetricsRegistry;
+import org.thormor.metrics.CJmxExporter;
+import org.thormor.provider.IRemoteProvider;
+import org.thormor.provider.CRetryableException;
+import org.thormor.provider.CRetryingRemoteProvider;
+import org.thormor.provider.CDownloadInfo;
+import org.thormor.provider.CUploadInfo;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class CSimulatedProviderTest
+{
+    @Test public void checkConditionalDownloads()
+        throws IOException, JMException
+    {
+        CMetricsRegistry metrics = new CMetricsRegistry();
+        CMetrics.setMetrics(metrics);
+        try { checkConditionalDownloads(metrics); }
+        finally { CMetrics.setMetrics(null); }
+    }
+
+    private void checkConditionalDownloads(CMetricsRegistry metrics)
+        throws IOException, JMException
+    {
+        CSimulatedProvider prov =
+            new CSimulatedProvider(new URL("http://sim.example.com/v/"));
+        File src = makeFile("hello");
+        File dst = File.createTempFile("thormor_sim", null);
+
+        URL url = prov.upload(new CUploadInfo(src, true, "a/b"), null);
+        assertEquals("http://sim.example.com/v/a/b", url.toString());
+
+        CDownloadInfo di = new CDownloadInfo(url, dst, true, -1, null);
+        assertEquals(IRemoteProvider.DownloadStatus.FULL_DOWNLOAD,
+                     prov.download(di, null));
+        assertEquals(5, dst.length());
+        assertNotNull(di.getEtag());
+
+        // Same etag, nothing new.
+        assertEquals(IRemoteProvider.DownloadStatus.NO_UPDATES,
+                     prov.download(di, null));
+        assertEquals(1, prov.getNotModified());
+
+        // An update changes the etag.
+        prov.upload(new CUploadInfo(makeFile("hello again"), true, null, url),
+                    null);
+        assertEquals(IRemoteProvider.DownloadStatus.FULL_DOWNLOAD,
+                     prov.download(di, null));
+        assertEquals(11, dst.length());
+        assertEquals(3, prov.getRequests(CSimulatedProvider.Request.DOWNLOAD));
+        assertEquals(2, prov.getRequests(CSimulatedProvider.Request.UPLOAD));
+
+        // A streamed download is timed until the stream is read.
+        InputStream in = prov.openDownload(di, null);
+        try {
+            assertEquals
+                (3, metrics.getHistogram(CMetrics.PROVIDER_DOWNLOAD).getCount());
+            while (in.read() >= 0) {}
+        }
+        finally {
+            in.close();
+        }
+
+        prov.delete(url, null);
+        try {
+            prov.download(di, null);
+            fail("Downloaded a deleted file");
+        }
+        catch (FileNotFoundException expected) {}
+
+        // The same requests were reported as metrics.
+        assertEquals(1, metrics.getCount(CMetrics.PROVIDER_NOT_MODIFIED));
+        assertEquals(16, metrics.getCount(CMetrics.PROVIDER_UPLOAD_BYTES));
+        assertEquals(27, metrics.getCount(CMetrics.PROVIDER_DOWNLOAD_BYTES));
+        assertEquals
+            (4, metrics.getHistogram(CMetrics.PROVIDER_DOWNLOAD).getCount());
+        assertEquals
+            (1, metrics.getCount
+             (CMetrics.PROVIDER_DOWNLOAD+".failures.FileNotFoundException"));
+
+        // and can be read over jmx.
+        CJmxExporter jmx = CJmxExporter.register(metrics);
+        try {
+            assertEquals
+                (Long.valueOf(2), ManagementFactory.getPlatformMBeanServer()
+                 .getAttribute(new ObjectName(CJmxExporter.DEFAULT_NAME),
+                               CMetrics.PROVIDER_UPLOAD+".count"));
+        }
+        finally {
+            jmx.unregister();
+        }
+
+        src.delete();
+        dst.delete();
+    }
+
+    @Test public void checkInjectedErrors()
+        throws IOException
+    {
+        CSimulatedProvider prov =
+            new CSimulatedProvider(new URL("http://sim.example.com/"))
+            .setSeed(42)
+            .setErrorRate(CSimulatedProvider.Request.DOWNLOAD, 1.0);
+        File src = makeFile("data");
+        File dst = File.createTempFile("thormor_sim", null);
+        URL url = prov.upload(new CUploadInfo(src, true, "x"), null);
+
+        CRetryingRemoteProvider retrying = CRetryingRemoteProvider.wrap(prov)
+            .setMaxAttempts(3)
+            .setBackoff(1, 5);
+        try {
+            retrying.download(new CDownloadInfo(url, dst, true, -1, null), null);
+            fail("Download should have failed");
+        }
+        catch (CRetryableException expected) {}
+        assertEquals(3, prov.getErrors(CSimulatedProvider.Request.DOWNLOAD));
+        assertEquals(2, retrying.getRetries());
+        assertEquals(1, retrying.getGiveUps());
+
+        src.delete();
+        dst.delete();
+    }
+
+    @Test public void checkDirectoryStore()
+        throws IOException
+    {
+        File root = File.createTempFile("thormor_sim", null);
+        root.delete();
+        root.mkdirs();
+        CSimulatedProvider prov =
+            new CSimulatedProvider(new URL("http://sim.example.com/"), root);
+        File src = makeFile("hello");
+        URL url = prov.upload(new CUploadInfo(src, true, "d/x"), null);
+        File stored = new File(root, "d/x");
+        assertEquals(5, stored.length());
+
+        // a failed upload leaves the earlier content, and nothing
+        // else, behind.
+        InputStream broken = new InputStream() {
+                public int read()
+                    throws IOException
+                { throw new IOException("broken upload"); }
+            };
+        try {
+            prov.uploadStream
+                (new CUploadInfo(null, true, null, url), broken, -1, null);
+            fail("Stored a broken upload");
+        }
+        catch (IOException expected) {}
+        assertEquals(5, stored.length());
+        assertEquals(1, stored.getParentFile().list().length);
+
+        stored.delete();
+        stored.getParentFile().delete();
+        root.delete();
+        src.delete();
+    }
+
+    private static File makeFile(String content)
+        throws IOException
+    {
+        File ret = File.createTempFile("thormor_sim", null);
+        FileOutputStream out = new FileOutputStream(ret);
+        try { out.write(content.getBytes("utf-8")); }
+        finally { out.close(); }
+        return ret;
+    }
+}
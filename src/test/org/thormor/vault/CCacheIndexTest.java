@@ -0,0 +1,137 @@
+package org.thormor.vault;
+
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import static org.junit.Assert.*;
+
+import org.json2012.JSONObject;
+import org.json2012.JSONException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CCacheIndexTest
+{
+    @Before public void start()
+    {
+        m_provider = new CProviderImpl(null, "cache_test");
+        m_root = m_provider.getCacheFileFor("files");
+        m_root.mkdirs();
+    }
+
+    @After public void stop()
+    {
+        m_provider.cleanup();
+    }
+
+    @Test public void skipTornLine()
+        throws IOException
+    {
+        CCacheIndex index = new CCacheIndex(m_root);
+        index.put(KEY1, "e1", 1, 10);
+        index.put(KEY2, "e2", 2, 20);
+
+        // a crash while appending leaves half a line.
+        FileWriter fw = new FileWriter(new File(m_root, "index.log"), true);
+        fw.write("{\"k\":\""+KEY3+"\",\"e\":\"e");
+        fw.close();
+
+        index = new CCacheIndex(m_root);
+        assertEquals("e1", index.get(KEY1).getEtag());
+        assertEquals("e2", index.get(KEY2).getEtag());
+        assertNull(index.get(KEY3));
+        assertEquals(30, index.getTotalSize());
+
+        // and the next line is not glued onto it.
+        index.put(KEY3, "e3", 3, 30);
+        index = new CCacheIndex(m_root);
+        assertEquals("e3", index.get(KEY3).getEtag());
+        assertEquals(60, index.getTotalSize());
+    }
+
+    @Test public void compactLog()
+        throws IOException
+    {
+        CCacheIndex index = new CCacheIndex(m_root);
+        for (int i=1; i<=500; i++) {
+            index.put(KEY1, "e"+i, i, i);
+        }
+        index.put(KEY2, "e2", 2, 20);
+        index.remove(KEY2);
+
+        // the log holds far fewer lines than were written.
+        assertTrue(countLines(new File(m_root, "index.log")) < 100);
+        assertFalse(new File(m_root, "index.log.tmp").exists());
+
+        index = new CCacheIndex(m_root);
+        CCacheIndex.Entry entry = index.get(KEY1);
+        assertEquals("e500", entry.getEtag());
+        assertEquals(500, entry.getTimestamp());
+        assertNull(index.get(KEY2));
+        assertEquals(500, index.getTotalSize());
+    }
+
+    @Test public void migrateMetaFiles()
+        throws IOException, JSONException
+    {
+        // earlier versions kept a flat directory with .meta files.
+        writeFile(new File(m_root, KEY1), "content 1");
+        CUtils.writeJSON
+            (new File(m_root, KEY1+".meta"),
+             new JSONObject().put("etag", "e1").put("timestamp", 5));
+        // no .meta
+        writeFile(new File(m_root, KEY2), "content 2");
+        // unreadable .meta
+        writeFile(new File(m_root, KEY3), "content 3");
+        writeFile(new File(m_root, KEY3+".meta"), "{\"etag\":");
+
+        CCacheIndex index = new CCacheIndex(m_root);
+        CCacheIndex.Entry entry = index.get(KEY1);
+        assertEquals("e1", entry.getEtag());
+        assertEquals(5, entry.getTimestamp());
+        assertEquals(9, entry.getSize());
+        assertTrue(index.getFile(KEY1).exists());
+        assertNull(index.get(KEY2));
+        assertNull(index.get(KEY3));
+
+        // only the index and the fanned out directory remain.
+        String[] names = m_root.list();
+        Arrays.sort(names);
+        assertArrayEquals
+            (new String[] { KEY1.substring(0, 2), "index.log" }, names);
+
+        // and the migration is remembered.
+        index = new CCacheIndex(m_root);
+        assertEquals("e1", index.get(KEY1).getEtag());
+    }
+
+    private static void writeFile(File f, String s)
+        throws IOException
+    {
+        FileWriter fw = new FileWriter(f);
+        fw.write(s);
+        fw.close();
+    }
+
+    private static int countLines(File f)
+        throws IOException
+    {
+        BufferedReader br = new BufferedReader(new FileReader(f));
+        int ret = 0;
+        while (br.readLine() != null) { ret++; }
+        br.close();
+        return ret;
+    }
+
+    private CProviderImpl m_provider;
+    private File m_root;
+
+    private final static String KEY1 = CUtils.shasum("http://example.com/1");
+    private final static String KEY2 = CUtils.shasum("http://example.com/2");
+    private final static String KEY3 = CUtils.shasum("http://example.com/3");
+}
@@ -0,0 +1,290 @@
+package org.thormor.vault;
+
+import org.junit.Test;
+import org.junit.BeforeClass;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import org.bouncyrattle.bcpg.HashAlgorithmTags;
+import org.bouncyrattle.openpgp.PGPKeyPair;
+import org.bouncyrattle.openpgp.PGPKeyRingGenerator;
+import org.bouncyrattle.openpgp.PGPPrivateKey;
+import org.bouncyrattle.openpgp.PGPPublicKey;
+import org.bouncyrattle.openpgp.PGPSecretKey;
+import org.bouncyrattle.openpgp.PGPSecretKeyRing;
+import org.bouncyrattle.openpgp.PGPSignature;
+import org.bouncyrattle.openpgp.operator.PGPContentSigner;
+import org.bouncyrattle.openpgp.operator.PGPContentVerifier;
+
+import org.thormor.metrics.CMetrics;
+import org.thormor.metrics.CMetricsRegistry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+public class CPGPUtilsTest
+{
+    @BeforeClass public static void setupKeys()
+        throws Exception
+    {
+        s_me = new Party("me");
+        s_other = new Party("other");
+    }
+
+    @Test public void roundTripParallelDeflate()
+        throws Exception
+    {
+        assumeTrue(CCompressionPolicy.isParallelAvailable());
+
+        // Over a megabyte, and deliberately not a multiple of the
+        // deflate block size, so the last block is a short one.
+        byte[] data = compressible((1<<20) + 12345);
+        CCompressionPolicy policy = new CCompressionPolicy()
+            .setMode(CCompressionPolicy.Mode.ALWAYS)
+            .setThreads(4);
+        assertTrue(CCompressionPolicy.plan
+                   (policy, new ByteArrayInputStream(data), data.length)
+                   .isParallel());
+
+        byte[] enc = encrypt(data, policy);
+        assertArrayEquals(data, decrypt(enc));
+
+        // A single deflate thread reads the same content.
+        policy.setThreads(1);
+        assertFalse(CCompressionPolicy.plan
+                    (policy, new ByteArrayInputStream(data), data.length)
+                    .isParallel());
+        assertArrayEquals(data, decrypt(encrypt(data, policy)));
+    }
+
+    @Test public void rememberSlotsPerSender()
+        throws Exception
+    {
+        // we are the first recipient of messages from "me", and the
+        // second of those from "other".
+        byte[] data = compressible(100);
+        List<PGPPublicKey> mine =
+            Arrays.asList(s_me.m_enc_pubkey, s_other.m_enc_pubkey);
+        List<PGPPublicKey> others =
+            Arrays.asList(s_other.m_enc_pubkey, s_me.m_enc_pubkey);
+        byte[] from_me = encrypt(data, s_me, mine, null);
+        byte[] from_other = encrypt(data, s_other, others, null);
+        List<PGPPublicKey> either =
+            Arrays.asList(s_me.m_sign_pubkey, s_other.m_sign_pubkey);
+
+        CMetricsRegistry metrics = new CMetricsRegistry();
+        CMetrics.setMetrics(metrics);
+        try {
+            // first without knowing the sender in advance.
+            CSlotHints hints = new CSlotHints();
+            assertArrayEquals(data, decrypt(from_me, either, hints));
+            assertArrayEquals(data, decrypt(from_other, either, hints));
+
+            // each sender now has the right slot tried first.
+            metrics.reset();
+            assertArrayEquals
+                (data, decrypt(from_other, Arrays.asList
+                               (s_other.m_sign_pubkey), hints));
+            assertEquals(1, metrics.getCount(CMetrics.RSA_DECRYPT));
+            assertArrayEquals
+                (data, decrypt(from_me, Arrays.asList
+                               (s_me.m_sign_pubkey), hints));
+            assertEquals(2, metrics.getCount(CMetrics.RSA_DECRYPT));
+        }
+        finally {
+            CMetrics.setMetrics(null);
+        }
+    }
+
+    @Test public void crossEngines()
+        throws Exception
+    {
+        assumeTrue(CCryptoEngine.isJCEAvailable());
+
+        // content from either engine reads with the other.
+        byte[] data = compressible(100000);
+        CCryptoEngine.Engine[] engines = {
+            CCryptoEngine.Engine.JCE, CCryptoEngine.Engine.BC
+        };
+        try {
+            for (CCryptoEngine.Engine from: engines) {
+                for (CCryptoEngine.Engine to: engines) {
+                    CCryptoEngine.setEngine(from);
+                    byte[] enc = encrypt(data, null);
+                    CCryptoEngine.setEngine(to);
+                    assertArrayEquals(from+" to "+to, data, decrypt(enc));
+                }
+            }
+        }
+        finally {
+            CCryptoEngine.setEngine(CCryptoEngine.Engine.AUTO);
+        }
+    }
+
+    @Test public void verifyShortSignature()
+        throws Exception
+    {
+        assumeTrue(CCryptoEngine.isJCEAvailable());
+
+        // With this key, the signature of this text has a leading
+        // zero byte, which is lost when it is stored as a number.
+        PGPKeyPair kp = shortSignatureKey();
+        byte[] data = SHORT_SIGNATURE_TEXT.getBytes("utf-8");
+        try {
+            CCryptoEngine.setEngine(CCryptoEngine.Engine.BC);
+            PGPContentSigner signer = CCryptoEngine.contentSigner
+                (PGPPublicKey.RSA_SIGN, HashAlgorithmTags.SHA1)
+                .build(PGPSignature.BINARY_DOCUMENT, kp.getPrivateKey());
+            signer.getOutputStream().write(data);
+            byte[] sig = signer.getSignature();
+            assertEquals(128, sig.length);
+            assertEquals(0, sig[0]);
+            int skip = 0;
+            while (sig[skip] == 0) { skip++; }
+            byte[] mpi = Arrays.copyOfRange(sig, skip, sig.length);
+
+            CCryptoEngine.setEngine(CCryptoEngine.Engine.JCE);
+            PGPContentVerifier verifier = CCryptoEngine.contentVerifier()
+                .get(PGPPublicKey.RSA_SIGN, HashAlgorithmTags.SHA1)
+                .build(kp.getPublicKey());
+            verifier.getOutputStream().write(data);
+            assertTrue(verifier.verify(mpi));
+        }
+        finally {
+            CCryptoEngine.setEngine(CCryptoEngine.Engine.AUTO);
+        }
+    }
+
+    // A fixed 1024 bit signing key, from its two primes.
+    @SuppressWarnings("deprecation")
+    private static PGPKeyPair shortSignatureKey()
+        throws Exception
+    {
+        BigInteger p = new BigInteger(SHORT_SIGNATURE_P, 16);
+        BigInteger q = new BigInteger(SHORT_SIGNATURE_Q, 16);
+        BigInteger n = p.multiply(q);
+        BigInteger e = BigInteger.valueOf(65537);
+        BigInteger d = e.modInverse
+            (p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE)));
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        KeyPair kp = new KeyPair
+            (kf.generatePublic(new RSAPublicKeySpec(n, e)),
+             kf.generatePrivate
+             (new RSAPrivateCrtKeySpec
+              (n, e, d, p, q,
+               d.mod(p.subtract(BigInteger.ONE)),
+               d.mod(q.subtract(BigInteger.ONE)),
+               q.modInverse(p))));
+        return new PGPKeyPair(PGPPublicKey.RSA_SIGN, kp, new Date(0));
+    }
+
+    // A key ring with its signing and encryption keys unlocked.
+    private final static class Party
+    {
+        private Party(String id)
+            throws Exception
+        {
+            PGPKeyRingGenerator krgen =
+                CPGPUtils.generateKeyRingGenerator(id, null, PASS);
+            PGPSecretKeyRing skr = krgen.generateSecretKeyRing();
+
+            PGPSecretKey sign_key = CPGPUtils.getSigningKey(skr);
+            m_sign_pubkey = sign_key.getPublicKey();
+            m_sign_privkey = CPGPUtils.extractPrivateKey(sign_key, PASS);
+
+            m_enc_pubkey = CPGPUtils.getEncryptionKey
+                (krgen.generatePublicKeyRing());
+            PGPPrivateKey enc_privkey = null;
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSecretKey> ski =
+                (Iterator<PGPSecretKey>) skr.getSecretKeys();
+            while (ski.hasNext()) {
+                PGPSecretKey cur = ski.next();
+                if (cur.getKeyID() == m_enc_pubkey.getKeyID()) {
+                    enc_privkey = CPGPUtils.extractPrivateKey(cur, PASS);
+                }
+            }
+            assertNotNull(enc_privkey);
+            m_enc_privkey = enc_privkey;
+        }
+
+        private final PGPPublicKey m_sign_pubkey;
+        private final PGPPrivateKey m_sign_privkey;
+        private final PGPPublicKey m_enc_pubkey;
+        private final PGPPrivateKey m_enc_privkey;
+    }
+
+    private static byte[] encrypt(byte[] data, CCompressionPolicy policy)
+        throws Exception
+    { return encrypt(data, s_me, Arrays.asList(s_me.m_enc_pubkey), policy); }
+
+    private static byte[] encrypt
+        (byte[] data, Party from, List<PGPPublicKey> recipients,
+         CCompressionPolicy policy)
+        throws Exception
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        CPGPUtils.encrypt
+            (new ByteArrayInputStream(data), data.length, bout, recipients,
+             from.m_sign_pubkey, from.m_sign_privkey, "test", new Date(),
+             policy);
+        return bout.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] enc)
+        throws Exception
+    { return decrypt(enc, Arrays.asList(s_me.m_sign_pubkey), null); }
+
+    // decrypt content sent to "me"
+    private static byte[] decrypt
+        (byte[] enc, List<PGPPublicKey> signers, CSlotHints hints)
+        throws Exception
+    {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        CPGPUtils.decrypt
+            (new ByteArrayInputStream(enc),
+             new CPGPUtils.StreamFactory() {
+                 public OutputStream createOutputStream
+                     (String filename, Date modifydate)
+                 { return bout; }
+                 public void fail() {}
+             }, s_me.m_enc_privkey, signers, hints);
+        return bout.toByteArray();
+    }
+
+    // Lines of text that vary a little, so they deflate well but not
+    // to nothing.
+    private static byte[] compressible(int len)
+    {
+        byte[] ret = new byte[len];
+        int i = 0;
+        for (int line = 0; i < len; line++) {
+            byte[] text = ("{\"id\":"+line+",\"hello\":\"world\"}\n").getBytes();
+            for (int j=0; (j<text.length) && (i<len); j++) {
+                ret[i++] = text[j];
+            }
+        }
+        return ret;
+    }
+
+    private static Party s_me;
+    private static Party s_other;
+    private final static String PASS = "A pass phrase for testing";
+    private final static String SHORT_SIGNATURE_TEXT = "short signature 435";
+    private final static String SHORT_SIGNATURE_P =
+        "e9ada6003a930f93f6f06d30b49a72d9865d8eda82098007d077c580ffca25d1"+
+        "ac1eaafac39b6b5f2b29614eca22d1dfdedea7027bfc92910ce15e2537e7ac1d";
+    private final static String SHORT_SIGNATURE_Q =
+        "c470e2f3cd46974df51c2e79e6cce1f0fb173616397aaed6c62eb234260c5c61"+
+        "6fce5373009bb0e28c24330c43c6a505d1ef2935baf4ee1bce897e63a0e9a7d1";
+}
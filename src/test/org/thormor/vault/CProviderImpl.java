@@ -1,6 +1,7 @@
 package org.thormor.vault;
 
 import org.thormor.provider.IRemoteProvider;
+import org.thormor.provider.IStreamingRemoteProvider;
 import org.thormor.provider.ILocalProvider;
 import org.thormor.provider.IProgressMonitor;
 import org.thormor.provider.CUploadInfo;
@@ -12,6 +13,7 @@ import java.util.Set;
 import java.util.HashSet;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -22,7 +24,7 @@ import java.security.NoSuchAlgorithmException;
 
 // Small provider implementation to use in various tests
 public class CProviderImpl
-    implements IRemoteProvider, ILocalProvider
+    implements IStreamingRemoteProvider, ILocalProvider
 {
     public CProviderImpl(File root, String lid)
     {
@@ -110,6 +112,31 @@ public class CProviderImpl
         return new URL("http://www.example.com/"+path);
     }
 
+    public URL uploadStream
+        (CUploadInfo info, InputStream in, long length, IProgressMonitor mon)
+        throws IOException
+    {
+        if (m_fail_upload) {
+            throw new IOException("Request to fail upload");
+        }
+        String path;
+        if (info.getUpdateURL() != null) {
+            path = info.getUpdateURL().getPath();
+        }
+        else {
+            path = m_lid+"/upload/"+info.getSuggestedName();
+        }
+
+        File target = new File(m_root, path);
+        System.out.println("upload-stream: "+info.getSuggestedName()+
+                           " -> "+target);
+        CUtils.makeParents(target);
+        FileOutputStream out = new FileOutputStream(target);
+        try { CUtils.copy(in, out); }
+        finally { out.close(); }
+        return new URL("http://www.example.com/"+path);
+    }
+
     public void delete(URL url, IProgressMonitor mon)
         throws IOException
     {
@@ -143,6 +170,18 @@ public class CProviderImpl
         return DownloadStatus.FULL_DOWNLOAD;
     }
 
+    public InputStream openDownload
+        (CDownloadInfo info, IProgressMonitor mon)
+        throws IOException
+    {
+        File src = new File(m_root, info.getSource().getPath());
+        System.out.println("open-download: "+src);
+        if (m_fail_download) {
+            throw new IOException("Request to fail download");
+        }
+        return new FileInputStream(src);
+    }
+
     private final File m_root;
     private final String m_lid;
     private boolean m_fail_upload = false;
@@ -5,57 +5,88 @@ import org.junit.Before;
 import org.junit.After;
 import static org.junit.Assert.*;
 
+import org.thormor.metrics.CMetrics;
+import org.thormor.metrics.CMetricsRegistry;
+import org.thormor.provider.CFuture;
+
+import org.bouncyrattle.bcpg.ArmoredOutputStream;
+import org.bouncyrattle.openpgp.PGPPublicKey;
+
 import org.json2012.JSONObject;
 import org.json2012.JSONArray;
 import org.json2012.JSONException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.PrintWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Random;
 import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class CVaultLinkTest
 {
-    @Test public void linkVaults()
-        throws IOException, JSONException
+    @Before public void start()
+        throws IOException
     {
         // Create two providers, sharing the same root.
-        File proot = File.createTempFile("thormor_test", null);
+        m_root = File.createTempFile("thormor_test", null);
+
+        m_prov_a = new CProviderImpl(m_root, "prov-a");
+        m_prov_b = new CProviderImpl(m_root, "prov-b");
 
-        CProviderImpl prov_a = new CProviderImpl(proot, "prov-a");
-        CProviderImpl prov_b = new CProviderImpl(proot, "prov-b");
+        m_vault_a = new CVault(m_prov_a, m_prov_a);
+        m_vault_a.createVault("A vault password", null);
 
-        CVault vault_a = new CVault(prov_a, prov_a);
-        vault_a.createVault("A vault password", null);
+        m_vault_b = new CVault(m_prov_b, m_prov_b);
+        m_vault_b.createVault("B vault password", null);
 
-        CVault vault_b = new CVault(prov_b, prov_b);
-        vault_b.createVault("B vault password", null);
+        // Subscribe vault-b to vault-a, and vault-a to vault-b
+        m_vault_b.linkVault(m_vault_a.getId(), null, null);
+        m_vault_a.linkVault(m_vault_b.getId(), null, null);
 
+        // For kicks, vault_b links to itself as well.
+        m_vault_b.linkVault(m_vault_b.getId(), "self", null);
+
+        m_noise = new byte[100*1024];
+        new Random(1).nextBytes(m_noise);
+    }
 
-        // Subscribe vault-b to vault-a
-        vault_b.linkVault(vault_a.getId(), null, null);
+    @After public void stop()
+    {
+        CMetrics.setMetrics(null);
+        m_prov_a.cleanup();
+    }
 
+    @Test public void linkVaults()
+        throws IOException
+    {
         // Reload vault-b
-        vault_b = new CVault(prov_b, prov_b);
+        CVault vault_b = new CVault(m_prov_b, m_prov_b);
         assertEquals(vault_b.getState(), CVault.State.LOCKED);
         assertTrue(vault_b.unlock("B vault password"));
         assertEquals(vault_b.getState(), CVault.State.UNLOCKED);
 
         // We should still be able to see the linked vault.
-        assertNotNull(vault_b.getLinkedVaultById(vault_a.getId()));
-
-        // Subscribe vault-a to vault-b
-        vault_a.linkVault(vault_b.getId(), null, null);
-
-        // For kicks, vault_b links to itself as well.
-        vault_b.linkVault(vault_b.getId(), "self", null);
+        assertNotNull(vault_b.getLinkedVaultById(m_vault_a.getId()));
 
-        // vault-b uploads random content for itself and vault-a
+        // vault-b uploads content for itself and vault-a
         File tmp = File.createTempFile("thormor_test", null);
         PrintWriter pw = null;
         URL ref = null;
@@ -77,8 +108,8 @@ public class CVaultLinkTest
         // vault-a fetches this content from vault-b
         tmp = File.createTempFile("thormor_test", null);
         try {
-            vault_a.fetchContent(ref, vault_a.getLinkedVaults().get(0),
-                                 tmp, null);
+            m_vault_a.fetchContent(ref, m_vault_a.getLinkedVaults().get(0),
+                                   tmp, null);
             BufferedReader br = new BufferedReader(new FileReader(tmp));
             assertEquals(br.readLine(), "hello, message");
             br.close();
@@ -86,48 +117,542 @@ public class CVaultLinkTest
         finally {
             tmp.delete();
         }
+    }
+
+    @Test public void storeIncompressibleContent()
+        throws IOException
+    {
+        // random content doesn't compress, so it is stored as is.
+        long stored = m_vault_b.getCompressionPolicy().getStoredCount();
+        File tmp = writeNoise();
+        try {
+            URL ref = m_vault_b.postContent
+                (m_vault_b.getLinkedVaults(), tmp, null);
+            assertEquals(stored+1,
+                         m_vault_b.getCompressionPolicy().getStoredCount());
+            m_vault_a.fetchContent(ref, m_vault_a.getLinkedVaults().get(0),
+                                   tmp, null);
+            assertTrue(Arrays.equals(m_noise, readFile(tmp)));
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    @Test public void rejectTamperedContent()
+        throws IOException
+    {
+        File tmp = writeNoise();
+        try {
+            URL ref = m_vault_b.postContent
+                (m_vault_b.getLinkedVaults(), tmp, null);
+            m_vault_a.fetchContent(ref, m_vault_a.getLinkedVaults().get(0),
+                                   tmp, null);
+
+            // tampered content must leave the earlier copy alone.
+            RandomAccessFile raf =
+                new RandomAccessFile(new File(m_root, ref.getPath()), "rw");
+            raf.seek(raf.length()/2);
+            int b = raf.read();
+            raf.seek(raf.length()/2);
+            raf.write(b ^ 0x1);
+            raf.close();
+            try {
+                m_vault_a.fetchContent
+                    (ref, m_vault_a.getLinkedVaults().get(0), tmp, null);
+                fail("Fetched tampered content");
+            }
+            catch (IOException expected) {}
+            assertTrue(Arrays.equals(m_noise, readFile(tmp)));
+            assertFalse(new File(tmp.getPath()+".part").exists());
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    @Test public void composeAsyncCalls()
+        throws IOException
+    {
+        // post and fetch, composing the asynchronous calls.
+        final File tmp = writeNoise();
+        try {
+            final CVault fetcher = m_vault_a;
+            File fetched = m_vault_b
+                .postContentAsync(m_vault_b.getLinkedVaults(), tmp, null)
+                .then(new CFuture.Continuation<URL,File>() {
+                        public CFuture<File> apply(URL url)
+                        {
+                            tmp.delete();
+                            return fetcher.fetchContentAsync
+                                (url, fetcher.getLinkedVaults().get(0),
+                                 tmp, null);
+                        }
+                    })
+                .await();
+            assertEquals(tmp, fetched);
+            assertTrue(Arrays.equals(m_noise, readFile(tmp)));
+        }
+        finally {
+            tmp.delete();
+        }
+    }
 
+    @Test public void fetchMessages()
+        throws IOException, JSONException
+    {
         // vault-b posts a message for vault-a
-        JSONObject message = new JSONObject();
-        message
-            .put("id", "a")
-            .put("type", "test/type")
-            .put("created", 1)
-            .put("hello", "world");
-        vault_b.postMessage(vault_b.getLinkedVaults(), message, null);
+        postMessage("a");
 
         // vault-a updates message store from vault-b
-        vault_a.fetchMessages(null);
+        m_vault_a.fetchMessages(null);
+        assertEquals("a", readInbox(m_vault_a).getJSONObject(0).getString("id"));
+
+        // and remembers the decoded outbox urls.
+        assertTrue(m_vault_a.getSecureFile("my/urlkeys.json").exists());
+    }
+
+    @Test public void fetchMessagesConcurrently()
+        throws IOException, JSONException
+    {
+        postMessage("a");
+
+        CBatchResult fetched = m_vault_a.fetchMessages(null, 4);
+        assertFalse(fetched.hasFailures());
+        assertEquals(1, fetched.getCompleted().size());
+        assertEquals(1, readInbox(m_vault_a).length());
+
+        // and on an executor of our choosing.
+        ExecutorService io = CExecutors.isVirtualThreadAvailable()?
+            CExecutors.newVirtualThreadPerTaskExecutor("test"):
+            Executors.newCachedThreadPool();
+        try {
+            m_vault_a.setIOExecutor(io);
+            fetched = m_vault_a.fetchMessages(null, 4);
+            assertFalse(fetched.hasFailures());
+            assertEquals(1, fetched.getCompleted().size());
+        }
+        finally {
+            m_vault_a.setIOExecutor(null);
+            io.shutdown();
+        }
+
+        // but not on a fixed pool, where a fetch could wait forever
+        // on the polls it queued behind itself.
+        io = Executors.newFixedThreadPool(2);
+        try {
+            m_vault_a.setIOExecutor(io);
+            fail("Accepted a bounded executor");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        finally {
+            io.shutdown();
+        }
+    }
+
+    @Test public void postConcurrently()
+        throws IOException, JSONException
+    {
+        // two posts to the same recipient at once must both land
+        // in its outbox.
+        List<CLinkedVault> to_a = m_vault_b.getLinkedVaults().subList(0, 1);
+        CFuture<Void> first = m_vault_b.postMessageAsync
+            (to_a, message("a"), null);
+        CFuture<Void> second = m_vault_b.postMessageAsync
+            (to_a, message("b"), null);
+        first.await();
+        second.await();
+
+        m_vault_a.fetchMessages(null);
+        JSONArray inbox = readInbox(m_vault_a);
+        assertEquals(2, inbox.length());
+        Set<String> ids = new HashSet<String>();
+        for (int i=0; i<inbox.length(); i++) {
+            ids.add(inbox.getJSONObject(i).getString("id"));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), ids);
+    }
+
+    @Test public void pollSeveralOutboxes()
+        throws IOException, JSONException
+    {
+        // vault-b publishes three outboxes for vault-a, as if from
+        // several devices; the last one is missing.
+        PGPPublicKey to_a =
+            m_vault_b.getLinkedVaults().get(0).getEncryptionKey();
+        JSONArray outbox_list = new JSONArray();
+        for (String id: new String[] { "x", "y", "z" }) {
+            String path = "prov-b/upload/outbox/device-"+id;
+            if (!id.equals("z")) {
+                JSONObject outbox = new JSONObject()
+                    .put("version", CLinkedVault.OUTBOX_VERSION)
+                    .put("entries", new JSONArray().put(message(id)))
+                    .put("segments", new JSONArray());
+                writeFile(new File(m_root, path),
+                          encryptFromB(outbox.toString(), to_a, false));
+            }
+            outbox_list.put
+                (new JSONObject().put
+                 ("outbox", new String
+                  (encryptFromB("http://www.example.com/"+path, to_a, true),
+                   "utf-8")));
+        }
+        publishOutboxListFromB(outbox_list);
 
+        // the two outboxes that are there are both read, and the
+        // missing one is reported.
+        CBatchResult fetched = m_vault_a.fetchMessages(null, 4);
+        assertEquals(1, fetched.getFailures().size());
+        assertTrue(fetched.getFailures().values().iterator().next()
+                   instanceof FileNotFoundException);
+        JSONArray inbox = readInbox(m_vault_a);
+        Set<String> ids = new HashSet<String>();
+        for (int i=0; i<inbox.length(); i++) {
+            ids.add(inbox.getJSONObject(i).getString("id"));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("x", "y")), ids);
+    }
+
+    @Test public void cacheURLKeys()
+        throws IOException, JSONException
+    {
+        // vault-b lists one url key for vault-a, one for someone
+        // else, and one for vault-a that is cut short.
+        PGPPublicKey to_a =
+            m_vault_b.getLinkedVaults().get(0).getEncryptionKey();
+        PGPPublicKey to_other =
+            m_vault_b.getLinkedVaults().get(1).getEncryptionKey();
+        String path = "prov-b/upload/outbox/mine";
+        JSONObject outbox = new JSONObject()
+            .put("version", 1)
+            .put("entries", new JSONArray().put(message("m")));
+        writeFile(new File(m_root, path),
+                  encryptFromB(outbox.toString(), to_a, false));
+        String mine = new String
+            (encryptFromB("http://www.example.com/"+path, to_a, true),
+             "utf-8");
+        String other = new String
+            (encryptFromB("http://www.example.com/other", to_other, true),
+             "utf-8");
+        String damaged = new String
+            (encryptFromB("http://www.example.com/damaged", to_a, true),
+             "utf-8");
+        damaged = damaged.substring(0, damaged.length()/2);
+        JSONArray outbox_list = new JSONArray();
+        for (String key: new String[] { mine, other, damaged }) {
+            outbox_list.put(new JSONObject().put("outbox", key));
+        }
+        publishOutboxListFromB(outbox_list);
+        m_vault_a.fetchMessages(null);
+        assertEquals("m", readInbox(m_vault_a).getJSONObject(0).getString("id"));
+
+        // only keys that can never be read are remembered as "",
+        // and they are saved with the rest.
+        CVault reopened = new CVault(m_prov_a, m_prov_a);
+        assertTrue(reopened.unlock("A vault password"));
+        CURLKeyCache urlkeys = new CURLKeyCache(reopened);
+        URL b = m_vault_b.getId();
+        assertEquals("http://www.example.com/"+path,
+                     urlkeys.get(b, CUtils.shasum(mine)));
+        assertEquals("", urlkeys.get(b, CUtils.shasum(other)));
+        assertNull(urlkeys.get(b, CUtils.shasum(damaged)));
+    }
+
+    @Test public void reportMetrics()
+        throws IOException, JSONException
+    {
+        CMetricsRegistry metrics = new CMetricsRegistry();
+        CMetrics.setMetrics(metrics);
+
+        postMessage("a");
+        m_vault_a.fetchMessages(null, 4);
+        m_vault_a.fetchMessages(null, 4);
+
+        // each fetch was timed, along with its crypto.
+        assertEquals(2, metrics.getHistogram(CMetrics.VAULT_POLL).getCount());
+        assertEquals(2, metrics.getHistogram(CMetrics.VAULT_FETCH).getCount());
+        assertTrue(metrics.getCount(CMetrics.VAULT_CACHE_DOWNLOADED) > 0);
+        assertNotNull(metrics.getHistogram(CMetrics.PGP_ENCRYPT));
+        assertNotNull(metrics.getHistogram(CMetrics.PGP_DECRYPT));
+        assertTrue(metrics.getCount(CMetrics.RSA_SIGN) > 0);
+        assertTrue(metrics.getCount(CMetrics.RSA_VERIFY) > 0);
+
+        // failed posts are counted for each recipient.
+        m_prov_b.failUploads(true);
+        CBatchResult posted = m_vault_b.postMessage
+            (m_vault_b.getLinkedVaults(), message("b"), null, 4);
+        assertTrue(posted.hasFailures());
+        assertEquals
+            (m_vault_b.getLinkedVaults().size(),
+             metrics.getCount(CMetrics.VAULT_POST_MESSAGE+".failures"));
+    }
+
+    @Test public void fetchDetachedMessage()
+        throws IOException, JSONException
+    {
         // vault-b posts a detached message for vault-a
-        message.put("id", "detach");
-        URL result = vault_b.postDetachedMessage
-            (vault_b.getLinkedVaults(), message, null);
-        System.out.println("result="+result);
+        URL result = m_vault_b.postDetachedMessage
+            (m_vault_b.getLinkedVaults(), message("detach"), null);
 
         // vault-a should be able to get back the results, also
         // with the correct signer.
-        CVault.DetachedMessage dm = vault_a.fetchDetachedMessage(result, null);
-        assertEquals(dm.getSender().getId(), vault_b.getId());
+        CVault.DetachedMessage dm =
+            m_vault_a.fetchDetachedMessage(result, null);
+        assertEquals(dm.getSender().getId(), m_vault_b.getId());
         assertEquals("detach", dm.getContent().optString("id"));
+    }
+
+    @Test public void keepUndeliveredMessages()
+        throws IOException, JSONException
+    {
+        postMessage("a");
 
         // test that messages are persisted only after
         // delivery by making the provider fail on uploads.
-        prov_b.failUploads(true);
-        message.put("id", "b");
+        m_prov_b.failUploads(true);
         try {
-            vault_b.postMessage(vault_b.getLinkedVaults(), message, null);
+            postMessage("b");
             fail("How did this message get through?");
         }
         catch (IOException ioe) {
         }
+        // and batched posts report the failure per recipient.
+        CBatchResult posted = m_vault_b.postMessage
+            (m_vault_b.getLinkedVaults(), message("b"), null, 4);
+        assertTrue(posted.hasFailures());
+        assertEquals(0, posted.getCompleted().size());
+
         // verify that our outbox only has the one message.
-        CLinkedVault linkedvault_a = vault_b.getLinkedVaults().get(0);
+        CLinkedVault linkedvault_a = m_vault_b.getLinkedVaults().get(0);
         JSONObject outbox_a = linkedvault_a.readLocalOutbox();
         JSONArray entries = outbox_a.getJSONArray("entries");
         assertEquals(1, entries.length());
         JSONObject entry = entries.getJSONObject(0);
         assertEquals("a", entry.getString("id"));
         assertEquals("world", entry.getString("hello"));
+
+        // the delivered message was saved before postMessage
+        // returned, without waiting for a flush.
+        CVault reopened = new CVault(m_prov_b, m_prov_b);
+        assertTrue(reopened.unlock("B vault password"));
+        entries = reopened.getLinkedVaults().get(0)
+            .readLocalOutbox().getJSONArray("entries");
+        assertEquals(1, entries.length());
+        assertEquals("a", entries.getJSONObject(0).getString("id"));
+    }
+
+    @Test public void deferOutboxSaves()
+        throws IOException, JSONException
+    {
+        // deferred outboxes are only saved by a flush.
+        m_vault_b.setDeferOutboxSaves(true);
+        postMessage("a");
+        postMessage("b");
+        CVault reopened = new CVault(m_prov_b, m_prov_b);
+        assertTrue(reopened.unlock("B vault password"));
+        assertEquals(0, reopened.getLinkedVaults().get(0)
+                     .readLocalOutbox().getJSONArray("entries").length());
+        m_vault_b.flush();
+        reopened = new CVault(m_prov_b, m_prov_b);
+        assertTrue(reopened.unlock("B vault password"));
+        assertEquals(2, reopened.getLinkedVaults().get(0)
+                     .readLocalOutbox().getJSONArray("entries").length());
+
+        // locking drops the decrypted outbox of a linked vault we
+        // still hold.
+        CLinkedVault linkedvault_a = m_vault_b.getLinkedVaults().get(0);
+        assertEquals(2, linkedvault_a.readLocalOutbox()
+                     .getJSONArray("entries").length());
+        m_vault_b.lock();
+        try {
+            linkedvault_a.readLocalOutbox();
+            fail("Outbox was still readable after lock");
+        }
+        catch (IllegalStateException ise) {
+        }
     }
+
+    @Test public void sealOutboxSegments()
+        throws IOException, JSONException
+    {
+        // fill up the outbox past a segment. By default, every
+        // message stays in the entries, for older readers.
+        postMessage("a");
+        for (int i=0; i<CLinkedVault.SEGMENT_SIZE; i++) {
+            postMessage("seg-"+i);
+        }
+        CLinkedVault linkedvault_a = m_vault_b.getLinkedVaults().get(0);
+        JSONObject outbox_a = linkedvault_a.readLocalOutbox();
+        assertEquals(CLinkedVault.SEGMENT_SIZE+1,
+                     outbox_a.getJSONArray("entries").length());
+        assertEquals(0, outbox_a.getJSONArray("segments").length());
+        JSONObject published = CLinkedVault.toPublishedOutbox(outbox_a);
+        assertEquals(1, published.getInt("version"));
+        assertFalse(published.has("segments"));
+
+        // Once segmented, the older messages are sealed away but
+        // still delivered.
+        m_vault_b.setSegmentedOutboxes(true);
+        postMessage("b");
+        outbox_a = linkedvault_a.readLocalOutbox();
+        assertEquals(2, outbox_a.getJSONArray("entries").length());
+        assertEquals(1, outbox_a.getJSONArray("segments").length());
+
+        // reposting a sealed message is a no-op.
+        assertNull(linkedvault_a.mergeLocalOutbox(message("a")));
+
+        m_vault_a.fetchMessages(null);
+        JSONArray inbox = readInbox(m_vault_a);
+        assertEquals(CLinkedVault.SEGMENT_SIZE+2, inbox.length());
+        assertEquals("b", inbox.getJSONObject(0).getString("id"));
+        assertEquals("a", inbox.getJSONObject(inbox.length()-1).getString("id"));
+
+        // locking saves pending changes, which survive an unlock.
+        m_vault_b.lock();
+        assertEquals(CVault.State.LOCKED, m_vault_b.getState());
+        assertTrue(m_vault_b.unlock("B vault password"));
+        outbox_a = m_vault_b.getLinkedVaults().get(0).readLocalOutbox();
+        assertEquals(1, outbox_a.getJSONArray("segments").length());
+
+        // the ids of sealed messages stay local.
+        assertFalse(CLinkedVault.toPublishedOutbox(outbox_a)
+                    .getJSONArray("segments").getJSONObject(0).has("ids"));
+
+        // a lost message index is rebuilt with the sealed messages.
+        m_vault_b.lock();
+        File ids = m_prov_b.getFileFor
+            ("my/outbox/"+linkedvault_a.getMessageKey()+".ids");
+        assertTrue(ids.delete());
+        assertTrue(m_vault_b.unlock("B vault password"));
+        linkedvault_a = m_vault_b.getLinkedVaults().get(0);
+        assertNull(linkedvault_a.mergeLocalOutbox(message("a")));
+        assertNull(linkedvault_a.mergeLocalOutbox(message("seg-0")));
+        assertTrue(ids.exists());
+    }
+
+    @Test public void evictCachedFiles()
+        throws IOException, JSONException
+    {
+        postMessage("a");
+        m_vault_a.fetchMessages(null);
+
+        // the cache can be squeezed, and refills as needed.
+        CCacheManager cache = m_vault_a.getCacheManager();
+        assertTrue(cache.getMisses() > 0);
+        assertTrue(cache.getSize() > 0);
+        cache.setMinAge(0);
+        cache.setBudget(1);
+        cache.evict();
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(0, cache.getSize());
+        cache.setBudget(0);
+        m_vault_a.fetchMessages(null);
+        assertTrue(cache.getSize() > 0);
+    }
+
+    // private helpers
+    private static JSONObject message(String id)
+        throws JSONException
+    {
+        JSONObject ret = new JSONObject();
+        ret
+            .put("id", id)
+            .put("type", "test/type")
+            .put("created", 1)
+            .put("hello", "world");
+        return ret;
+    }
+
+    // vault-b posts a message for all its linked vaults.
+    private void postMessage(String id)
+        throws IOException, JSONException
+    { m_vault_b.postMessage(m_vault_b.getLinkedVaults(), message(id), null); }
+
+    private static JSONArray readInbox(CVault vault)
+        throws IOException, JSONException
+    {
+        return vault.getLinkedVaults().get(0)
+            .readLocalInbox().getJSONArray("entries");
+    }
+
+    // encrypt text from vault-b, the way it encrypts outboxes and
+    // their url keys.
+    private byte[] encryptFromB(String text, PGPPublicKey to, boolean armor)
+        throws IOException
+    {
+        CSettings settings_b = m_vault_b.getSettings();
+        byte[] buf = text.getBytes("utf-8");
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        OutputStream out = armor?new ArmoredOutputStream(bout):bout;
+        CPGPUtils.encrypt
+            (new ByteArrayInputStream(buf), buf.length, out,
+             Arrays.asList(to), settings_b.getPublicSigningKey(),
+             settings_b.getPrivateSigningKey(), "outbox.json", new Date());
+        out.close();
+        return bout.toByteArray();
+    }
+
+    // sign and publish vault-b's list of outboxes.
+    private void publishOutboxListFromB(JSONArray outbox_list)
+        throws IOException, JSONException
+    {
+        CSettings settings_b = m_vault_b.getSettings();
+        JSONObject list = new JSONObject()
+            .put("version", 1)
+            .put("outbox_list", outbox_list);
+        byte[] buf = list.toString().getBytes("utf-8");
+        ByteArrayOutputStream signed = new ByteArrayOutputStream();
+        CPGPUtils.sign
+            (new ByteArrayInputStream(buf), buf.length, signed,
+             settings_b.getPublicSigningKey(),
+             settings_b.getPrivateSigningKey(),
+             "outbox_list.json", new Date());
+        writeFile(new File(m_root, settings_b.getOutboxListURL().getPath()),
+                  signed.toByteArray());
+    }
+
+    private static void writeFile(File f, byte[] buf)
+        throws IOException
+    {
+        CUtils.makeParents(f);
+        FileOutputStream fout = new FileOutputStream(f);
+        try { fout.write(buf); }
+        finally { fout.close(); }
+    }
+
+    private File writeNoise()
+        throws IOException
+    {
+        File ret = File.createTempFile("thormor_test", null);
+        FileOutputStream fout = new FileOutputStream(ret);
+        try { fout.write(m_noise); }
+        finally { fout.close(); }
+        return ret;
+    }
+
+    private static byte[] readFile(File f)
+        throws IOException
+    {
+        FileInputStream fin = new FileInputStream(f);
+        try {
+            byte[] ret = new byte[(int) f.length()];
+            int n = 0, nread;
+            while ((n < ret.length) &&
+                   ((nread = fin.read(ret, n, ret.length-n)) > 0)) {
+                n += nread;
+            }
+            return ret;
+        }
+        finally {
+            fin.close();
+        }
+    }
+
+    private File m_root;
+    private CProviderImpl m_prov_a;
+    private CProviderImpl m_prov_b;
+    private CVault m_vault_a;
+    private CVault m_vault_b;
+    private byte[] m_noise;
 }